@@ -0,0 +1,290 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.edu.uq.cmm.tomcat;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Enumeration;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.catalina.Container;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+import org.apache.juli.logging.LogFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import au.edu.uq.cmm.tomcat.filters.RequestDumperFilter;
+import au.edu.uq.cmm.tomcat.valves.RequestDumperValve;
+
+
+/**
+ * Compares the cost of a request passing through a disabled
+ * {@link RequestDumperValve} or {@link RequestDumperFilter} with the cost
+ * when there is no valve or filter at all, and when there is one that does
+ * nothing but pass the request on.  In each case the request ends up in a
+ * trivial valve or filter chain that consumes it.  The valve and filter
+ * are configured and started as they would be by Tomcat, with
+ * <code>enabled="false"</code>, and the requests are never looked at.
+ *
+ * <p>Run with <code>mvn -Pbenchmarks verify</code>.</p>
+ *
+ * @author Stephen Crawley
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(java.util.concurrent.TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class DisabledDumperBenchmark {
+
+    private static final String ENABLED_PARAMETER = "enabled";
+
+    private RequestDumperValve valve;
+    private PassValve passValve;
+    private TerminalValve terminal;
+    private Request request;
+    private Response response;
+
+    private RequestDumperFilter filter;
+    private PassFilter passFilter;
+    private TerminalChain chain;
+    private HttpServletRequest servletRequest;
+    private HttpServletResponse servletResponse;
+
+    @Setup
+    public void setUp(Blackhole blackhole) throws Exception {
+        terminal = new TerminalValve(blackhole);
+        valve = new RequestDumperValve();
+        valve.setContainer(container());
+        valve.setNext(terminal);
+        passValve = new PassValve();
+        passValve.setNext(terminal);
+        valve.setEnabled(false);
+        valve.start();
+        request = new Request();
+        response = new Response();
+
+        chain = new TerminalChain(blackhole);
+        filter = new RequestDumperFilter();
+        filter.init(filterConfig());
+        passFilter = new PassFilter();
+        servletRequest = unsupported(HttpServletRequest.class);
+        servletResponse = unsupported(HttpServletResponse.class);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        valve.stop();
+        filter.destroy();
+    }
+
+    @Benchmark
+    public void noValve() throws IOException, ServletException {
+        terminal.invoke(request, response);
+    }
+
+    @Benchmark
+    public void passValve() throws IOException, ServletException {
+        passValve.invoke(request, response);
+    }
+
+    @Benchmark
+    public void disabledValve() throws IOException, ServletException {
+        valve.invoke(request, response);
+    }
+
+    @Benchmark
+    public void noFilter() throws IOException, ServletException {
+        chain.doFilter(servletRequest, servletResponse);
+    }
+
+    @Benchmark
+    public void passFilter() throws IOException, ServletException {
+        passFilter.doFilter(servletRequest, servletResponse, chain);
+    }
+
+    @Benchmark
+    public void disabledFilter() throws IOException, ServletException {
+        filter.doFilter(servletRequest, servletResponse, chain);
+    }
+
+    private static final class TerminalValve extends ValveBase {
+        private final Blackhole blackhole;
+
+        TerminalValve(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void invoke(Request request, Response response) {
+            blackhole.consume(request);
+            blackhole.consume(response);
+        }
+    }
+
+    private static final class PassValve extends ValveBase {
+        @Override
+        public void invoke(Request request, Response response)
+                throws IOException, ServletException {
+            getNext().invoke(request, response);
+        }
+    }
+
+    private static final class PassFilter implements Filter {
+        @Override
+        public void init(FilterConfig filterConfig) {
+        }
+
+        @Override
+        public void doFilter(ServletRequest request, ServletResponse response,
+                FilterChain chain) throws IOException, ServletException {
+            chain.doFilter(request, response);
+        }
+
+        @Override
+        public void destroy() {
+        }
+    }
+
+    private static final class TerminalChain implements FilterChain {
+        private final Blackhole blackhole;
+
+        TerminalChain(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void doFilter(ServletRequest request, ServletResponse response) {
+            blackhole.consume(request);
+            blackhole.consume(response);
+        }
+    }
+
+    /**
+     * Make a container that just has the name, parent and logger that the
+     * valve needs to start.
+     */
+    private static Container container() {
+        return (Container) Proxy.newProxyInstance(
+                Container.class.getClassLoader(),
+                new Class<?>[] {Container.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        if (method.getName().equals("getName")) {
+                            return "benchmark-valve";
+                        } else if (method.getName().equals("getParent")) {
+                            return null;
+                        } else if (method.getName().equals("getLogger")) {
+                            return LogFactory.getLog(
+                                    DisabledDumperBenchmark.class);
+                        }
+                        throw new UnsupportedOperationException(
+                                method.getName());
+                    }
+                });
+    }
+
+    /**
+     * Make a servlet context that just has the context path that the
+     * filter needs to start.
+     */
+    private static ServletContext servletContext() {
+        return (ServletContext) Proxy.newProxyInstance(
+                ServletContext.class.getClassLoader(),
+                new Class<?>[] {ServletContext.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        if (method.getName().equals("getContextPath")) {
+                            return "/benchmark";
+                        }
+                        throw new UnsupportedOperationException(
+                                method.getName());
+                    }
+                });
+    }
+
+    private static FilterConfig filterConfig() {
+        return new FilterConfig() {
+            @Override
+            public String getFilterName() {
+                return "benchmark-filter";
+            }
+
+            @Override
+            public ServletContext getServletContext() {
+                return servletContext();
+            }
+
+            @Override
+            public String getInitParameter(String name) {
+                return name.equals(ENABLED_PARAMETER) ?
+                        "false" : null;
+            }
+
+            @Override
+            public Enumeration<String> getInitParameterNames() {
+                return Collections.enumeration(Collections.singletonList(
+                        ENABLED_PARAMETER));
+            }
+        };
+    }
+
+    /**
+     * Make an implementation of an interface that fails if it is used.
+     */
+    private static <T> T unsupported(Class<T> iface) {
+        return iface.cast(Proxy.newProxyInstance(
+                iface.getClassLoader(), new Class<?>[] {iface},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        throw new UnsupportedOperationException(
+                                method.getName());
+                    }
+                }));
+    }
+}
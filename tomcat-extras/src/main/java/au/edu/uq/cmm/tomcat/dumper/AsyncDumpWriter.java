@@ -0,0 +1,230 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.edu.uq.cmm.tomcat.dumper;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.juli.logging.Log;
+
+
+/**
+ * <p>A bounded ring of preallocated {@link DumpRecord} slots, drained by a
+ * dedicated writer thread.  Request threads copy their captured record into
+ * a free slot (which only copies references to the captured strings), and
+ * the writer thread formats and logs it.  This takes the formatting and
+ * the logger's I/O off the request thread.</p>
+ *
+ * <p>When the ring is full, a request thread either blocks until a slot
+ * becomes free, or drops its record and bumps the dropped record counter.</p>
+ *
+ * <p>The writer thread takes records in batches: everything that queued
+ * up while it was writing the last batch, up to the batch size.  If there
+ * is a batch window, it also waits up to that long after the first record
+ * of a batch for more to arrive.  Batches let a batched dump file write
+ * many records with one system call.</p>
+ *
+ * @author Stephen Crawley
+ */
+final class AsyncDumpWriter implements Runnable {
+
+    private static final long STOP_TIMEOUT = 10000;
+
+    private final RequestDumper dumper;
+    private final Log log;
+    private final boolean blockWhenFull;
+    private final long batchWindowNanos;
+    private final long idleMillis;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final DumpRecord[] slots;
+    private int head;
+    private int count;
+    private volatile boolean running;
+
+    /**
+     * The writer thread's own records.  They are swapped with the slots at
+     * the head of the ring, so that the slots can be refilled while the
+     * writer thread formats the records it has taken.
+     */
+    private final DumpRecord[] batch;
+    private final StringBuilder buffer = new StringBuilder(4096);
+    private Thread thread;
+
+    /**
+     * @param batchSize the maximum number of records in a batch.
+     * @param batchWindow the time to wait for a batch to fill, in 
+     *     milliseconds, or zero.
+     * @param idleMillis how often the writer thread calls 
+     *     {@link RequestDumper#writerIdle(Log)} when there is nothing to do.
+     */
+    AsyncDumpWriter(RequestDumper dumper, Log log, int queueSize,
+            boolean blockWhenFull, int batchSize, long batchWindow, 
+            long idleMillis) {
+        if (queueSize <= 0) {
+            throw new IllegalArgumentException("queueSize must be positive");
+        }
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+        this.dumper = dumper;
+        this.log = log;
+        this.blockWhenFull = blockWhenFull;
+        this.batchWindowNanos = TimeUnit.MILLISECONDS.toNanos(batchWindow);
+        this.idleMillis = idleMillis;
+        this.slots = new DumpRecord[queueSize];
+        for (int i = 0; i < queueSize; i++) {
+            slots[i] = new DumpRecord();
+        }
+        this.batch = new DumpRecord[Math.min(batchSize, queueSize)];
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = new DumpRecord();
+        }
+    }
+
+    void start(String name) {
+        running = true;
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop the writer thread, after it has written any queued records.
+     * 
+     * @return false if the writer thread didn't exit within the timeout.
+     */
+    boolean stop() {
+        lock.lock();
+        try {
+            running = false;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            thread.join(STOP_TIMEOUT);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return !thread.isAlive();
+    }
+
+    /**
+     * Copy a record into the ring.  This must be called before the request
+     * and response objects that the record was captured from are recycled.
+     * Once the writer is stopping, records are dropped, since there is no
+     * guarantee that the writer thread would see them.
+     *
+     * @return false if the record was dropped.
+     */
+    boolean offer(DumpRecord record) {
+        lock.lock();
+        try {
+            while (!running || count == slots.length) {
+                if (!running || !blockWhenFull) {
+                    dumper.dropped.incrementAndGet();
+                    return false;
+                }
+                notFull.awaitUninterruptibly();
+            }
+            int tail = head + count;
+            if (tail >= slots.length) {
+                tail -= slots.length;
+            }
+            slots[tail].copyFrom(record);
+            count++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void run() {
+        try {
+            drain();
+        } finally {
+            // If we died early, make sure that request threads don't wait
+            // for us or fill the ring with records that nobody will write.
+            lock.lock();
+            try {
+                running = false;
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            int n;
+            lock.lock();
+            try {
+                while (count == 0) {
+                    if (!running) {
+                        return;
+                    }
+                    if (!notEmpty.await(idleMillis, TimeUnit.MILLISECONDS) &&
+                            count == 0) {
+                        lock.unlock();
+                        try {
+                            dumper.writerIdle(log);
+                        } catch (RuntimeException ex) {
+                            log.error("Request dump writer idle task failed", 
+                                    ex);
+                        } finally {
+                            lock.lock();
+                        }
+                    }
+                }
+                long nanos = batchWindowNanos;
+                while (count < batch.length && nanos > 0 && running) {
+                    nanos = notEmpty.awaitNanos(nanos);
+                }
+                n = Math.min(count, batch.length);
+                for (int i = 0; i < n; i++) {
+                    DumpRecord record = slots[head];
+                    slots[head] = batch[i];
+                    batch[i] = record;
+                    head = (head + 1 == slots.length) ? 0 : head + 1;
+                }
+                count -= n;
+                notFull.signalAll();
+            } catch (InterruptedException ex) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                dumper.emitBatch(batch, n, buffer, log);
+                dumper.written.addAndGet(n);
+            } catch (RuntimeException ex) {
+                log.error("Failed to write request dumps", ex);
+            } finally {
+                for (int i = 0; i < n; i++) {
+                    batch[i].clear();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.edu.uq.cmm.tomcat.dumper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.juli.logging.Log;
+
+
+/**
+ * <p>Writes batches of records to a series of segment files, with one
+ * gathering write per batch.  This is driven by the async writer thread,
+ * which hands over all of the records that have queued up since the last
+ * batch.  Each record is encoded into its own reusable direct buffer, and
+ * the buffers are written with a single {@link FileChannel#write(
+ * ByteBuffer[], int, int)} call; so a busy server makes one system call
+ * per batch rather than one per line.</p>
+ *
+ * <p>Depending on the sync policy, the file is forced to disk after every
+ * batch, at most once per sync interval, or never (except when a segment
+ * is closed).  Segments are rolled over, named and compressed in the same
+ * way as for {@link MappedDumpFile}.  Since there is only one writer,
+ * binary segments use a dictionary.  This class is not thread-safe, apart
+ * from the statistics getters.</p>
+ *
+ * <p>If a write or sync fails, the current segment is abandoned: it is
+ * closed as is (possibly ending with a partial record), nothing that was
+ * gathered for it is written anywhere else, and the next record starts a
+ * new segment with a fresh section header and dictionary.</p>
+ *
+ * @author Stephen Crawley
+ */
+final class BatchedDumpFile {
+
+    private static final int MIN_BUFFER = 8192;
+
+    private final RequestDumper dumper;
+    private final SegmentNamer namer;
+    private final long segmentSize;
+    private final long segmentInterval;
+    private final String syncPolicy;
+    private final long syncInterval;
+    private final Log log;
+    private final SegmentCompressor compressor;
+
+    private final BinaryDumpEncoder binaryEncoder = new BinaryDumpEncoder();
+    private final BinaryDumpEncoder textEncoder = new BinaryDumpEncoder(false);
+    private ByteBuffer[] buffers = new ByteBuffer[0];
+    private int gathered;
+    private long gatheredBytes;
+
+    private File file;
+    private FileChannel channel;
+    private String format;
+    private long written;
+    private int segmentRecords;
+    private long deadline;
+    private boolean dirty;
+    private long lastSync;
+
+    private volatile long batches;
+    private volatile long records;
+    private volatile long bytes;
+    private volatile long syncs;
+    private volatile int maxBatchSize;
+    private volatile long totalBatchNanos;
+    private volatile long maxBatchNanos;
+
+    /**
+     * @param dumper the dumper, for rendering text and JSON records.
+     * @param pathname the pathname that segment file names are based on.
+     * @param segmentSize the size at which a segment is rolled over.
+     * @param segmentInterval the maximum time that a segment is written to,
+     *     in milliseconds, or zero for no limit.
+     * @param syncPolicy one of the <code>SYNC_*</code> policies.
+     * @param syncInterval the sync interval in milliseconds, for the
+     *     "interval" policy.
+     * @param log the logger for reporting problems with closed segments.
+     * @param compressor the compressor for closed segments, or null.
+     */
+    BatchedDumpFile(RequestDumper dumper, String pathname, long segmentSize,
+            long segmentInterval, String syncPolicy, long syncInterval,
+            Log log, SegmentCompressor compressor) {
+        this.dumper = dumper;
+        this.namer = new SegmentNamer(pathname);
+        this.segmentSize = segmentSize;
+        this.segmentInterval = segmentInterval;
+        this.syncPolicy = syncPolicy;
+        this.syncInterval = syncInterval;
+        this.log = log;
+        this.compressor = compressor;
+    }
+
+    String getPathname() {
+        return namer.getPathname();
+    }
+
+    /**
+     * Write a batch of records.
+     *
+     * @param sb a scratch buffer for rendering text and JSON records.
+     */
+    void write(DumpRecord[] batch, int count, StringBuilder sb)
+            throws IOException {
+        long start = System.nanoTime();
+        try {
+            writeBatch(batch, count, sb);
+        } catch (IOException ex) {
+            abandonSegment();
+            throw ex;
+        }
+        long nanos = System.nanoTime() - start;
+        batches++;
+        records += count;
+        totalBatchNanos += nanos;
+        if (count > maxBatchSize) {
+            maxBatchSize = count;
+        }
+        if (nanos > maxBatchNanos) {
+            maxBatchNanos = nanos;
+        }
+    }
+
+    private void writeBatch(DumpRecord[] batch, int count, StringBuilder sb)
+            throws IOException {
+        for (int i = 0; i < count; i++) {
+            DumpRecord record = batch[i];
+            String f = record.getConfig() == null ?
+                    RequestDumper.FORMAT_TEXT : record.getConfig().getFormat();
+            if (channel == null || !f.equals(format) ||
+                    (segmentInterval > 0 &&
+                    System.currentTimeMillis() >= deadline)) {
+                roll(f);
+            }
+            BinaryDumpEncoder encoder = encode(record, sb);
+            if (written + gatheredBytes + encoder.length() > segmentSize &&
+                    segmentRecords > 0) {
+                roll(f);
+                // The dictionary has been reset, so encode it again.
+                encoder = encode(record, sb);
+            }
+            gather(encoder);
+            segmentRecords++;
+        }
+        flush();
+        if (dirty && (syncPolicy.equals(RequestDumper.SYNC_BATCH) ||
+                (syncPolicy.equals(RequestDumper.SYNC_INTERVAL) &&
+                System.currentTimeMillis() - lastSync >= syncInterval))) {
+            sync();
+        }
+    }
+
+    /**
+     * Called by the writer thread when no records have arrived for a while,
+     * so that the "interval" policy can sync the last batch.
+     */
+    void idle() throws IOException {
+        if (dirty && syncPolicy.equals(RequestDumper.SYNC_INTERVAL) &&
+                System.currentTimeMillis() - lastSync >= syncInterval) {
+            try {
+                sync();
+            } catch (IOException ex) {
+                abandonSegment();
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Close the current segment.
+     */
+    void close() {
+        closeSegment();
+    }
+
+    long getBatches() {
+        return batches;
+    }
+
+    long getRecords() {
+        return records;
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    long getSyncs() {
+        return syncs;
+    }
+
+    int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    long getTotalBatchNanos() {
+        return totalBatchNanos;
+    }
+
+    long getMaxBatchNanos() {
+        return maxBatchNanos;
+    }
+
+    private BinaryDumpEncoder encode(DumpRecord record, StringBuilder sb) {
+        if (format.equals(RequestDumper.FORMAT_BINARY)) {
+            binaryEncoder.encode(record);
+            return binaryEncoder;
+        }
+        sb.setLength(0);
+        dumper.format(record, sb);
+        sb.append(RequestDumper.LINE_SEPARATOR);
+        textEncoder.encodeText(sb);
+        return textEncoder;
+    }
+
+    /**
+     * Copy the last thing encoded into the next gather buffer.
+     */
+    private void gather(BinaryDumpEncoder encoder) {
+        int length = encoder.length();
+        if (gathered == buffers.length) {
+            ByteBuffer[] bigger = new ByteBuffer[Math.max(16, gathered * 2)];
+            System.arraycopy(buffers, 0, bigger, 0, gathered);
+            buffers = bigger;
+        }
+        ByteBuffer buffer = buffers[gathered];
+        if (buffer == null || buffer.capacity() < length) {
+            buffer = ByteBuffer.allocateDirect(Math.max(MIN_BUFFER, length));
+            buffers[gathered] = buffer;
+        }
+        buffer.clear();
+        buffer.put(encoder.buffer(), encoder.offset(), length);
+        buffer.flip();
+        gathered++;
+        gatheredBytes += length;
+    }
+
+    /**
+     * Write the gathered buffers to the current segment.
+     */
+    private void flush() throws IOException {
+        try {
+            int first = 0;
+            while (first < gathered) {
+                channel.write(buffers, first, gathered - first);
+                while (first < gathered && !buffers[first].hasRemaining()) {
+                    first++;
+                }
+            }
+            if (gathered > 0) {
+                written += gatheredBytes;
+                bytes += gatheredBytes;
+                dirty = true;
+            }
+        } finally {
+            gathered = 0;
+            gatheredBytes = 0;
+        }
+    }
+
+    private void sync() throws IOException {
+        channel.force(false);
+        dirty = false;
+        lastSync = System.currentTimeMillis();
+        syncs++;
+    }
+
+    private void roll(String newFormat) throws IOException {
+        closeSegment();
+        File f = namer.next(newFormat);
+        channel = new FileOutputStream(f).getChannel();
+        file = f;
+        format = newFormat;
+        written = 0;
+        segmentRecords = 0;
+        deadline = System.currentTimeMillis() + segmentInterval;
+        lastSync = System.currentTimeMillis();
+        if (format.equals(RequestDumper.FORMAT_BINARY)) {
+            binaryEncoder.startSection();
+            gather(binaryEncoder);
+        }
+    }
+
+    /**
+     * Give up on the current segment after an I/O error, discarding 
+     * anything gathered for it.  It is not compressed.
+     */
+    private void abandonSegment() {
+        gathered = 0;
+        gatheredBytes = 0;
+        dirty = false;
+        FileChannel c = channel;
+        channel = null;
+        file = null;
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException ex) {
+                // It's already broken.
+            }
+        }
+    }
+
+    /**
+     * Write out anything gathered for the current segment, and close it.
+     * Unless the sync policy is "never", the segment is synced first.
+     */
+    private void closeSegment() {
+        if (channel == null) {
+            return;
+        }
+        File f = file;
+        try {
+            try {
+                flush();
+                if (dirty && !syncPolicy.equals(RequestDumper.SYNC_NEVER)) {
+                    sync();
+                }
+            } finally {
+                FileChannel c = channel;
+                channel = null;
+                file = null;
+                dirty = false;
+                c.close();
+            }
+        } catch (IOException ex) {
+            log.warn("Cannot close request dump segment " + f, ex);
+            return;
+        }
+        if (compressor != null) {
+            compressor.submit(f);
+        }
+    }
+}
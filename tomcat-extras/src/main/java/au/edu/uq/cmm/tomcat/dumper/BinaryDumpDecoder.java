@@ -0,0 +1,280 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.edu.uq.cmm.tomcat.dumper;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Decodes the binary dump format written by {@link BinaryDumpEncoder} back
+ * into {@link DumpRecord}s, so that they can be rendered as text or JSON.
+ *
+ * @author Stephen Crawley
+ */
+final class BinaryDumpDecoder {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final InputStream in;
+    private final List<String> dictionary = new ArrayList<String>();
+    private byte[] frame = new byte[4096];
+    private int pos;
+    private int limit;
+    private long baseMillis;
+    private long startNanos;
+    private boolean started;
+
+    /**
+     * @param in the input stream, which should be buffered.
+     */
+    BinaryDumpDecoder(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Get the start time of the last record read, in nanoseconds since
+     * the epoch.
+     */
+    long getStartNanos() {
+        return startNanos;
+    }
+
+    /**
+     * Read the next record.
+     *
+     * @param record the record to be filled in; it is cleared first.
+     * @return false at the end of the input.
+     * @throws EOFException if the input ends part way through a frame.
+     * @throws IOException if the input can't be read or is not in the
+     *     binary dump format.
+     */
+    boolean next(DumpRecord record) throws IOException {
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                return false;
+            }
+            int length = readVarint(b);
+            if (length == 0) {
+                if (!readHeader()) {
+                    return false;
+                }
+                continue;
+            }
+            if (!started) {
+                throw new IOException("Not a binary request dump");
+            }
+            readFrame(length);
+            decode(record);
+            return true;
+        }
+    }
+
+    /**
+     * Read a section header.  A zero byte (or the end of the input) where 
+     * the header should start is the zero-filled tail of a pre-sized segment
+     * file that wasn't trimmed (e.g. because the server crashed), and is
+     * treated as the end of the input.
+     * 
+     * @return false at the end of the input.
+     */
+    private boolean readHeader() throws IOException {
+        int b = in.read();
+        if (b <= 0) {
+            return false;
+        }
+        if (b != BinaryDumpEncoder.MAGIC[0]) {
+            throw new IOException("Not a binary request dump");
+        }
+        for (int i = 1; i < BinaryDumpEncoder.MAGIC.length; i++) {
+            if (in.read() != BinaryDumpEncoder.MAGIC[i]) {
+                throw new IOException("Not a binary request dump");
+            }
+        }
+        int version = in.read();
+        if (version != BinaryDumpEncoder.VERSION) {
+            throw new IOException("Unsupported binary dump version " + version);
+        }
+        b = in.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        long value = 0;
+        int shift = 0;
+        while ((b & 0x80) != 0) {
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+            b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+        }
+        baseMillis = value | (long) b << shift;
+        dictionary.clear();
+        started = true;
+        return true;
+    }
+
+    private int readVarint(int b) throws IOException {
+        int value = 0;
+        int shift = 0;
+        while ((b & 0x80) != 0) {
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+            b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+        }
+        return value | b << shift;
+    }
+
+    private void readFrame(int length) throws IOException {
+        if (frame.length < length) {
+            frame = new byte[length];
+        }
+        int n = 0;
+        while (n < length) {
+            int count = in.read(frame, n, length - n);
+            if (count < 0) {
+                throw new EOFException();
+            }
+            n += count;
+        }
+        pos = 0;
+        limit = length;
+    }
+
+    private void decode(DumpRecord record) throws IOException {
+        record.clear();
+        startNanos = baseMillis * 1000000L + getSigned();
+        record.setThreadName(getDictionary());
+        int mark = getVarint();
+        int size = getVarint();
+        for (int i = 0; i < size; i++) {
+            if (i == mark) {
+                record.mark();
+            }
+            byte kind = getByte();
+            String label = getDictionary();
+            switch (kind) {
+            case DumpRecord.VALUE:
+                record.add(label, getString());
+                break;
+            case DumpRecord.NAMED_VALUE:
+                String name = getDictionary();
+                record.add(label, name, getString());
+                break;
+            case DumpRecord.RAW:
+                record.raw(label);
+                break;
+            case DumpRecord.DURATION:
+                record.addDuration(label, getSigned());
+                break;
+            case DumpRecord.LONG:
+                record.add(label, getSigned());
+                break;
+            case DumpRecord.BOOLEAN:
+                record.add(label, getByte() != 0);
+                break;
+            case DumpRecord.TIMESTAMP:
+                record.addTimestamp(label, baseMillis + getSigned());
+                break;
+            case DumpRecord.NAMED_TEXT:
+                int nameStart = record.textLength();
+                record.appendText(getDictionary());
+                int valueStart = record.textLength();
+                record.appendText(getString());
+                record.addText(label, nameStart, valueStart);
+                break;
+            default:
+                throw new IOException("Unknown entry kind " + kind);
+            }
+        }
+        if (mark == size) {
+            record.mark();
+        }
+    }
+
+    private byte getByte() throws IOException {
+        if (pos >= limit) {
+            throw new IOException("Truncated record");
+        }
+        return frame[pos++];
+    }
+
+    private int getVarint() throws IOException {
+        return (int) getVarlong();
+    }
+
+    private long getVarlong() throws IOException {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = getByte();
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private long getSigned() throws IOException {
+        long value = getVarlong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private String getString() throws IOException {
+        int length = getVarint();
+        return length == 0 ? null : getUtf8(length - 1);
+    }
+
+    private String getDictionary() throws IOException {
+        int tag = getVarint();
+        if (tag == 0) {
+            return null;
+        }
+        switch (tag & 3) {
+        case BinaryDumpEncoder.TAG_REF:
+            int id = tag >>> 2;
+            if (id >= dictionary.size()) {
+                throw new IOException("Bad dictionary reference " + id);
+            }
+            return dictionary.get(id);
+        case BinaryDumpEncoder.TAG_LITERAL:
+            String str = getUtf8(tag >>> 2);
+            dictionary.add(str);
+            return str;
+        default:
+            return getUtf8(tag >>> 2);
+        }
+    }
+
+    private String getUtf8(int length) throws IOException {
+        if (length > limit - pos) {
+            throw new IOException("Truncated record");
+        }
+        String str = new String(frame, pos, length, UTF_8);
+        pos += length;
+        return str;
+    }
+}
@@ -0,0 +1,437 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.edu.uq.cmm.tomcat.dumper;
+
+
+/**
+ * <p>Encodes {@link DumpRecord}s in the compact binary dump format.  A dump
+ * file is a sequence of frames, each of which is a varint length followed
+ * by that many bytes.  A zero length introduces a section header instead:
+ * the magic bytes "RDMP", a version byte, and the section's base time in
+ * milliseconds since the epoch as a varint.  Every file starts with a
+ * section header, and a new section is started whenever a writer (re)opens
+ * a file.</p>
+ *
+ * <p>A record frame contains:</p>
+ * <ul>
+ * <li>the record's start time in nanoseconds since the section's base time,
+ *     as a signed varint,</li>
+ * <li>the thread name, as a dictionary string,</li>
+ * <li>the mark and the number of entries, as varints, and</li>
+ * <li>the entries, each being a kind byte, the label as a dictionary string,
+ *     and a payload that depends on the kind.  Names are dictionary strings,
+ *     values are plain strings, numbers and durations are signed varints,
+ *     timestamps are signed varints relative to the base time, and booleans
+ *     are single bytes.</li>
+ * </ul>
+ *
+ * <p>A plain string is a varint that is zero for null or the UTF-8 length
+ * plus one, followed by the UTF-8 bytes.  A dictionary string is a varint
+ * tag: zero for null, <code>id&lt;&lt;2|1</code> for a reference to an
+ * earlier string, <code>length&lt;&lt;2|2</code> for a literal that is
+ * given the next id, or <code>length&lt;&lt;2|3</code> for a literal that
+ * isn't (because the dictionary is full).  The dictionary is reset at the
+ * start of each section, so labels, thread names and header, cookie and
+ * parameter names are written out once per section and referred to by a
+ * small number after that.  Signed varints are zigzag encoded.</p>
+ *
+ * <p>An encoder can also be created without a dictionary, in which case
+ * every name is written as an unshared literal.  Frames from such encoders
+ * are self-contained, so frames from many threads can be interleaved in a
+ * section, provided that the encoders use the section's base time.</p>
+ *
+ * <p>Encoding a record only allocates when a new name is added to the
+ * dictionary.  An encoder is not thread-safe.</p>
+ *
+ * @author Stephen Crawley
+ */
+final class BinaryDumpEncoder {
+
+    static final byte[] MAGIC = {'R', 'D', 'M', 'P'};
+    static final int VERSION = 1;
+
+    static final int TAG_REF = 1;
+    static final int TAG_LITERAL = 2;
+    static final int TAG_UNSHARED = 3;
+
+    /**
+     * The maximum number of dictionary entries per section.
+     */
+    static final int MAX_DICTIONARY = 1 << 16;
+
+    /**
+     * Room reserved at the start of the buffer for the frame length.
+     */
+    private static final int LENGTH_ROOM = 5;
+
+    private final boolean shared;
+    private byte[] buf = new byte[4096];
+    private char[] charBuf;
+    private int start;
+    private int end;
+
+    private String[] keys = new String[1024];
+    private int[] ids = new int[1024];
+    private int count;
+
+    private long baseMillis;
+    private long baseNanos;
+
+    BinaryDumpEncoder() {
+        this(true);
+    }
+
+    /**
+     * @param shared if false, the encoder doesn't use a dictionary.
+     */
+    BinaryDumpEncoder(boolean shared) {
+        this.shared = shared;
+    }
+
+    /**
+     * Encode a section header, and reset the dictionary.
+     */
+    void startSection() {
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = null;
+        }
+        count = 0;
+        baseMillis = System.currentTimeMillis();
+        baseNanos = System.nanoTime();
+        start = 0;
+        end = 0;
+        writeVarint(0);
+        for (byte b : MAGIC) {
+            writeByte(b);
+        }
+        writeByte(VERSION);
+        writeVarlong(baseMillis);
+    }
+
+    long getBaseMillis() {
+        return baseMillis;
+    }
+
+    long getBaseNanos() {
+        return baseNanos;
+    }
+
+    /**
+     * Set the base time for the records encoded, without encoding a
+     * section header.  This is for encoders without a dictionary that
+     * write into a section started by another encoder.
+     */
+    void setBase(long baseMillis, long baseNanos) {
+        this.baseMillis = baseMillis;
+        this.baseNanos = baseNanos;
+    }
+
+    /**
+     * Encode a record frame.
+     */
+    void encode(DumpRecord record) {
+        end = LENGTH_ROOM;
+        writeSigned(record.getStartTime() - baseNanos);
+        writeDictionary(record.getThreadName());
+        writeVarint(record.getMark());
+        writeVarint(record.size());
+        for (int i = 0; i < record.size(); i++) {
+            byte kind = record.kindAt(i);
+            writeByte(kind);
+            writeDictionary(record.labelAt(i));
+            switch (kind) {
+            case DumpRecord.NAMED_VALUE:
+                writeDictionary(record.nameAt(i));
+                // fall through
+            case DumpRecord.VALUE:
+                writeString(record.valueAt(i));
+                break;
+            case DumpRecord.DURATION:
+            case DumpRecord.LONG:
+                writeSigned(record.numberAt(i));
+                break;
+            case DumpRecord.BOOLEAN:
+                writeByte(record.numberAt(i) != 0 ? 1 : 0);
+                break;
+            case DumpRecord.TIMESTAMP:
+                writeSigned(record.numberAt(i) - baseMillis);
+                break;
+            case DumpRecord.NAMED_TEXT:
+                char[] text = record.text();
+                int nameStart = (int) (record.numberAt(i) >>> 32);
+                int valueStart = (int) record.numberAt(i);
+                writeDictionary(text, nameStart, valueStart - nameStart);
+                writeString(text, valueStart,
+                        record.textEndAt(i) - valueStart);
+                break;
+            default:
+                break;
+            }
+        }
+        // Put the length in front of the body.
+        int length = end - LENGTH_ROOM;
+        start = LENGTH_ROOM - varintSize(length);
+        int saved = end;
+        end = start;
+        writeVarint(length);
+        end = saved;
+    }
+
+    /**
+     * Encode a rendered text or JSON record as plain UTF-8, with no
+     * framing.
+     */
+    void encodeText(StringBuilder sb) {
+        int length = sb.length();
+        if (charBuf == null || charBuf.length < length) {
+            charBuf = new char[Math.max(length, 4096)];
+        }
+        sb.getChars(0, length, charBuf, 0);
+        start = 0;
+        end = 0;
+        int bytes = utf8Length(null, charBuf, 0, length);
+        putUtf8(null, charBuf, 0, length, bytes);
+    }
+
+    /**
+     * Get the buffer holding the last header or frame encoded.
+     */
+    byte[] buffer() {
+        return buf;
+    }
+
+    /**
+     * Get the offset of the last header or frame encoded in the buffer.
+     */
+    int offset() {
+        return start;
+    }
+
+    /**
+     * Get the length of the last header or frame encoded.
+     */
+    int length() {
+        return end - start;
+    }
+
+    private void writeDictionary(String str) {
+        if (str == null) {
+            writeVarint(0);
+        } else {
+            writeDictionary(str, null, 0, str.length());
+        }
+    }
+
+    private void writeDictionary(char[] chars, int offset, int length) {
+        writeDictionary(null, chars, offset, length);
+    }
+
+    /**
+     * Write a dictionary string, given either as a string or as a range of
+     * a character array.  The string is only created if a character range
+     * is added to the dictionary.
+     */
+    private void writeDictionary(String str, char[] chars, int offset,
+            int length) {
+        if (!shared) {
+            writeUtf8(str, chars, offset, length, TAG_UNSHARED);
+            return;
+        }
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + charAt(str, chars, offset, i);
+        }
+        int mask = keys.length - 1;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (keys[slot] != null) {
+            if (matches(keys[slot], str, chars, offset, length)) {
+                writeVarint(ids[slot] << 2 | TAG_REF);
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        int tag = TAG_UNSHARED;
+        if (shared && count < MAX_DICTIONARY) {
+            keys[slot] = str != null ? str : new String(chars, offset, length);
+            ids[slot] = count++;
+            tag = TAG_LITERAL;
+            if (count * 2 > keys.length) {
+                rehash();
+            }
+        }
+        writeUtf8(str, chars, offset, length, tag);
+    }
+
+    private static char charAt(String str, char[] chars, int offset, int i) {
+        return str != null ? str.charAt(i) : chars[offset + i];
+    }
+
+    private static boolean matches(String key, String str, char[] chars,
+            int offset, int length) {
+        if (key.length() != length) {
+            return false;
+        }
+        if (str != null) {
+            return key.equals(str);
+        }
+        for (int i = 0; i < length; i++) {
+            if (key.charAt(i) != chars[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rehash() {
+        String[] oldKeys = keys;
+        int[] oldIds = ids;
+        keys = new String[oldKeys.length * 2];
+        ids = new int[oldKeys.length * 2];
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            String key = oldKeys[i];
+            if (key != null) {
+                int hash = 0;
+                for (int j = 0; j < key.length(); j++) {
+                    hash = 31 * hash + key.charAt(j);
+                }
+                int slot = (hash ^ (hash >>> 16)) & mask;
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = key;
+                ids[slot] = oldIds[i];
+            }
+        }
+    }
+
+    private void writeString(String str) {
+        if (str == null) {
+            writeVarint(0);
+        } else {
+            writeUtf8(str, null, 0, str.length(), -1);
+        }
+    }
+
+    private void writeString(char[] chars, int offset, int length) {
+        writeUtf8(null, chars, offset, length, -1);
+    }
+
+    /**
+     * Write a string as UTF-8, preceded by its length.  If the tag is
+     * negative the length is written plus one; otherwise the length is
+     * written shifted and or'ed with the tag.  Unpaired surrogates are
+     * written as '?'.
+     */
+    private void writeUtf8(String str, char[] chars, int offset, int length,
+            int tag) {
+        int bytes = utf8Length(str, chars, offset, length);
+        writeVarint(tag < 0 ? bytes + 1 : bytes << 2 | tag);
+        putUtf8(str, chars, offset, length, bytes);
+    }
+
+    private static int utf8Length(String str, char[] chars, int offset,
+            int length) {
+        int bytes = 0;
+        for (int i = 0; i < length; i++) {
+            char ch = charAt(str, chars, offset, i);
+            if (ch < 0x80) {
+                bytes++;
+            } else if (ch < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(ch) && i + 1 < length &&
+                    Character.isLowSurrogate(
+                            charAt(str, chars, offset, i + 1))) {
+                bytes += 4;
+                i++;
+            } else if (Character.isSurrogate(ch)) {
+                bytes++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    private void putUtf8(String str, char[] chars, int offset, int length,
+            int bytes) {
+        ensure(bytes);
+        for (int i = 0; i < length; i++) {
+            char ch = charAt(str, chars, offset, i);
+            if (ch < 0x80) {
+                buf[end++] = (byte) ch;
+            } else if (ch < 0x800) {
+                buf[end++] = (byte) (0xc0 | (ch >> 6));
+                buf[end++] = (byte) (0x80 | (ch & 0x3f));
+            } else if (Character.isHighSurrogate(ch) && i + 1 < length &&
+                    Character.isLowSurrogate(
+                            charAt(str, chars, offset, i + 1))) {
+                int cp = Character.toCodePoint(ch,
+                        charAt(str, chars, offset, ++i));
+                buf[end++] = (byte) (0xf0 | (cp >> 18));
+                buf[end++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                buf[end++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                buf[end++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(ch)) {
+                buf[end++] = (byte) '?';
+            } else {
+                buf[end++] = (byte) (0xe0 | (ch >> 12));
+                buf[end++] = (byte) (0x80 | ((ch >> 6) & 0x3f));
+                buf[end++] = (byte) (0x80 | (ch & 0x3f));
+            }
+        }
+    }
+
+    private void writeByte(int b) {
+        ensure(1);
+        buf[end++] = (byte) b;
+    }
+
+    private void writeVarint(int value) {
+        writeVarlong(value & 0xffffffffL);
+    }
+
+    private void writeSigned(long value) {
+        writeVarlong((value << 1) ^ (value >> 63));
+    }
+
+    private void writeVarlong(long value) {
+        ensure(10);
+        while ((value & ~0x7fL) != 0) {
+            buf[end++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buf[end++] = (byte) value;
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7f) != 0) {
+            size++;
+            value >>>= 7;
+        }
+        return size;
+    }
+
+    private void ensure(int n) {
+        if (end + n > buf.length) {
+            byte[] bigger = new byte[Math.max(buf.length * 2, end + n)];
+            System.arraycopy(buf, 0, bigger, 0, end);
+            buf = bigger;
+        }
+    }
+}
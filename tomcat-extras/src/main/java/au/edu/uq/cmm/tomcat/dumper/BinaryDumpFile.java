@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.edu.uq.cmm.tomcat.dumper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+
+/**
+ * <p>Writes records to a file in the binary dump format.  If the file
+ * already exists, it is appended to, starting a new section.  Each record is
+ * written with a single write call, so a crash can only truncate the last
+ * record.  Writes are serialized, since the dictionary is shared by all of
+ * the records in a section.</p>
+ *
+ * @author Stephen Crawley
+ */
+final class BinaryDumpFile {
+
+    private final File file;
+    private final FileOutputStream out;
+    private final BinaryDumpEncoder encoder = new BinaryDumpEncoder();
+
+    BinaryDumpFile(File file) throws IOException {
+        this.file = file;
+        this.out = new FileOutputStream(file, true);
+        encoder.startSection();
+        write();
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    synchronized void write(DumpRecord record) throws IOException {
+        encoder.encode(record);
+        write();
+    }
+
+    synchronized void close() throws IOException {
+        out.close();
+    }
+
+    private void write() throws IOException {
+        out.write(encoder.buffer(), encoder.offset(), encoder.length());
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.edu.uq.cmm.tomcat.dumper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.juli.logging.Log;
+
+
+/**
+ * <p>Loads a {@link RequestDumper}'s settings from a properties file, and
+ * reloads them whenever the file changes.  The property names are the same
+ * as the valve and filter parameter names; e.g. "paramFilter" or
+ * "sampleRate".</p>
+ *
+ * <p>The file's directory is watched by a background thread using a
+ * {@link WatchService}, so there is no per-request check.  The settings are
+ * parsed and the filter regexes compiled on that thread, and the result is
+ * swapped in as a single {@link DumperConfig}.  If the file cannot be read,
+ * or any setting is invalid, the previous settings stay in effect.  The
+ * settings in the file are applied on top of the settings the dumper had
+ * when the watcher was created, so removing a property from the file reverts
+ * it.  (Note that this also reverts any change made via JMX.)</p>
+ *
+ * <p>The file is first loaded before the dumper starts its services, so
+ * that settings such as "async" and "dumpFile" are in effect from the
+ * start.  Settings like "dumpFile" that are only used at startup can be
+ * changed later, but a warning is logged that they won't take effect
+ * until the dumper is restarted.</p>
+ *
+ * @author Stephen Crawley
+ */
+final class ConfigWatcher implements Runnable {
+
+    /**
+     * How long to wait for a burst of change events (e.g. from an editor
+     * that truncates and then writes the file) to settle before reloading.
+     */
+    private static final long SETTLE_TIME = 200;
+
+    private static final long STOP_TIMEOUT = 10000;
+
+    private final RequestDumper dumper;
+    private final DumperConfig base;
+    private final Properties baseStartSettings;
+    private final Path file;
+    private final Log log;
+    private final WatchService watcher;
+    private Thread thread;
+
+    ConfigWatcher(RequestDumper dumper, Path file, Log log)
+            throws IOException {
+        this.dumper = dumper;
+        this.base = dumper.getConfig();
+        this.baseStartSettings = dumper.getStartSettings();
+        this.file = file.toAbsolutePath();
+        this.log = log;
+        this.watcher = this.file.getFileSystem().newWatchService();
+        this.file.getParent().register(watcher,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+    }
+
+    /**
+     * Start watching the file.  Changes made since the watcher was created
+     * are picked up straight away.
+     */
+    void start(String name) {
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    boolean isWatching() {
+        return thread != null;
+    }
+
+    void stop() {
+        try {
+            watcher.close();
+        } catch (IOException ex) {
+            log.warn("Cannot close watch service", ex);
+        }
+        if (thread == null) {
+            return;
+        }
+        try {
+            thread.join(STOP_TIMEOUT);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void run() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                boolean changed = false;
+                do {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (file.getFileName().equals(event.context()) ||
+                                event.kind() ==
+                                StandardWatchEventKinds.OVERFLOW) {
+                            changed = true;
+                        }
+                    }
+                    key.reset();
+                    key = changed ? 
+                            watcher.poll(SETTLE_TIME, TimeUnit.MILLISECONDS) :
+                            null;
+                } while (key != null);
+                if (changed) {
+                    load();
+                }
+            }
+        } catch (ClosedWatchServiceException ex) {
+            // We have been stopped.
+        } catch (InterruptedException ex) {
+            // Ditto.
+        }
+    }
+
+    /**
+     * Load the file, and apply the settings in it.
+     */
+    void load() {
+        if (!Files.exists(file)) {
+            log.warn("Request dumper settings file " + file +
+                    " does not exist");
+            return;
+        }
+        Properties props = new Properties();
+        try {
+            InputStream is = Files.newInputStream(file);
+            try {
+                props.load(is);
+            } finally {
+                is.close();
+            }
+            if (props.remove("configFile") != null) {
+                log.warn("Ignoring the 'configFile' setting in " + file);
+            }
+            Properties merged = new Properties();
+            merged.putAll(baseStartSettings);
+            merged.putAll(props);
+            List<String> deferred = dumper.configure(base, merged);
+            log.info("Loaded request dumper settings from " + file);
+            if (!deferred.isEmpty()) {
+                log.warn("Request dumper settings " + deferred + " in " + 
+                        file + " will take effect when the dumper is restarted");
+            }
+        } catch (IOException ex) {
+            log.warn("Cannot read request dumper settings from " + file, ex);
+        } catch (IllegalArgumentException ex) {
+            log.warn("Invalid request dumper settings in " + file +
+                    "; keeping the previous settings", ex);
+        }
+    }
+}
@@ -0,0 +1,696 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.edu.uq.cmm.tomcat.dumper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+
+/**
+ * <p>A regex matcher that compiles a regex into a deterministic finite
+ * automaton, so that matching takes time linear in the length of the input
+ * no matter what the regex is.  This is used for redaction regexes, which
+ * are matched against attacker-controlled names; a backtracking matcher
+ * can be made to take exponential time by a careless regex.</p>
+ *
+ * <p>The supported syntax is the subset of {@link java.util.regex.Pattern}
+ * syntax that can be implemented without backtracking: literals and
+ * escaped metacharacters, <code>.</code>, character classes with ranges
+ * and negation, the predefined classes <code>\d \D \s \S \w \W</code>,
+ * capturing and non-capturing groups, alternation, and the greedy or
+ * reluctant quantifiers <code>* + ? {n} {n,} {n,m}</code>.  A leading
+ * <code>^</code> and trailing <code>$</code> are accepted and ignored.
+ * Backreferences, lookaround, possessive quantifiers, embedded flags and
+ * the like are rejected with an {@link IllegalArgumentException}, as are
+ * regexes whose automaton would be too large.  Matching is done on UTF-16
+ * code units rather than code points, and always matches the entire input
+ * (as {@link java.util.regex.Matcher#matches()} does).</p>
+ *
+ * <p>A DfaMatcher is immutable and thread-safe.</p>
+ *
+ * @author Stephen Crawley
+ */
+public final class DfaMatcher {
+
+    private static final int MAX_REPEAT = 100;
+    private static final int MAX_NFA_STATES = 10000;
+    private static final int MAX_DFA_STATES = 2000;
+    private static final int ASCII = 128;
+
+    private final String regex;
+    private final int[] bounds;
+    private final byte[] asciiClasses;
+    private final int classCount;
+    private final int[] transitions;
+    private final boolean[] accepting;
+
+    private DfaMatcher(String regex) {
+        this.regex = regex;
+        Nfa nfa = new Nfa();
+        Parser parser = new Parser(regex);
+        Node root = parser.parse();
+        int accept = nfa.newState();
+        int start = nfa.build(root, accept);
+
+        // Partition the chars into classes that no transition distinguishes
+        TreeSet<Integer> cuts = new TreeSet<Integer>();
+        cuts.add(0);
+        for (CharSet set : nfa.sets) {
+            if (set != null) {
+                for (int i = 0; i < set.ranges.length; i += 2) {
+                    cuts.add(set.ranges[i]);
+                    if (set.ranges[i + 1] < Character.MAX_VALUE) {
+                        cuts.add(set.ranges[i + 1] + 1);
+                    }
+                }
+            }
+        }
+        bounds = new int[cuts.size()];
+        int n = 0;
+        for (Integer cut : cuts) {
+            bounds[n++] = cut;
+        }
+        classCount = bounds.length;
+        asciiClasses = new byte[ASCII];
+        if (classCount <= Byte.MAX_VALUE) {
+            for (int ch = 0; ch < ASCII; ch++) {
+                asciiClasses[ch] = (byte) classOf(bounds, ch);
+            }
+        }
+
+        // Subset construction
+        Map<StateSet, Integer> ids = new HashMap<StateSet, Integer>();
+        List<StateSet> pending = new ArrayList<StateSet>();
+        List<int[]> rows = new ArrayList<int[]>();
+        List<Boolean> accepts = new ArrayList<Boolean>();
+        StateSet initial = nfa.closure(new int[] {start});
+        ids.put(initial, 0);
+        pending.add(initial);
+        for (int d = 0; d < pending.size(); d++) {
+            StateSet current = pending.get(d);
+            int[] row = new int[classCount];
+            for (int c = 0; c < classCount; c++) {
+                int[] moved = nfa.move(current.states, bounds[c]);
+                if (moved.length == 0) {
+                    row[c] = -1;
+                    continue;
+                }
+                StateSet next = nfa.closure(moved);
+                Integer id = ids.get(next);
+                if (id == null) {
+                    if (pending.size() >= MAX_DFA_STATES) {
+                        throw new IllegalArgumentException(
+                                "Regex is too complex for the DFA engine: " +
+                                regex);
+                    }
+                    id = pending.size();
+                    ids.put(next, id);
+                    pending.add(next);
+                }
+                row[c] = id;
+            }
+            rows.add(row);
+            accepts.add(Arrays.binarySearch(current.states, accept) >= 0);
+        }
+        transitions = new int[rows.size() * classCount];
+        accepting = new boolean[rows.size()];
+        for (int d = 0; d < rows.size(); d++) {
+            System.arraycopy(rows.get(d), 0, transitions, d * classCount,
+                    classCount);
+            accepting[d] = accepts.get(d);
+        }
+    }
+
+    /**
+     * Compile a regex.
+     *
+     * @throws IllegalArgumentException if the regex is not valid, or if it
+     *     can't be implemented by a DFA.
+     */
+    public static DfaMatcher compile(String regex) {
+        return new DfaMatcher(regex);
+    }
+
+    /**
+     * Test if the entire input matches the regex.
+     */
+    public boolean matches(CharSequence input) {
+        int state = 0;
+        for (int i = 0; i < input.length(); i++) {
+            char ch = input.charAt(i);
+            int c = (ch < ASCII && classCount <= Byte.MAX_VALUE) ?
+                    asciiClasses[ch] : classOf(bounds, ch);
+            state = transitions[state * classCount + c];
+            if (state < 0) {
+                return false;
+            }
+        }
+        return accepting[state];
+    }
+
+    @Override
+    public String toString() {
+        return regex;
+    }
+
+    private static int classOf(int[] bounds, int ch) {
+        int pos = Arrays.binarySearch(bounds, ch);
+        return pos >= 0 ? pos : -pos - 2;
+    }
+
+    // ------------------------------------------------------------ Regex AST
+
+    private static final int SET = 0;
+    private static final int CONCAT = 1;
+    private static final int ALT = 2;
+    private static final int REPEAT = 3;
+
+    private static final class Node {
+        private final int kind;
+        private final CharSet set;
+        private final List<Node> kids;
+        private final int min;
+        private final int max;
+
+        private Node(int kind, CharSet set, List<Node> kids, int min, int max) {
+            this.kind = kind;
+            this.set = set;
+            this.kids = kids;
+            this.min = min;
+            this.max = max;
+        }
+    }
+
+    /**
+     * A set of chars, represented as sorted, disjoint, inclusive ranges.
+     */
+    private static final class CharSet {
+        private static final CharSet DIGIT = new CharSet(new int[] {'0', '9'});
+        private static final CharSet WORD = new CharSet(new int[] {
+                '0', '9', 'A', 'Z', '_', '_', 'a', 'z'});
+        private static final CharSet SPACE = new CharSet(new int[] {
+                '\t', '\r', ' ', ' '});
+        private static final CharSet LINE_TERMINATORS = new CharSet(new int[] {
+                '\n', '\n', '\r', '\r', '\u0085', '\u0085',
+                '\u2028', '\u2029'});
+        private static final CharSet DOT = LINE_TERMINATORS.complement();
+
+        private final int[] ranges;
+
+        private CharSet(int[] ranges) {
+            this.ranges = ranges;
+        }
+
+        private static CharSet of(int ch) {
+            return new CharSet(new int[] {ch, ch});
+        }
+
+        private boolean contains(int ch) {
+            for (int i = 0; i < ranges.length; i += 2) {
+                if (ch >= ranges[i] && ch <= ranges[i + 1]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private CharSet complement() {
+            List<Integer> res = new ArrayList<Integer>();
+            int next = 0;
+            for (int i = 0; i < ranges.length; i += 2) {
+                if (ranges[i] > next) {
+                    res.add(next);
+                    res.add(ranges[i] - 1);
+                }
+                next = ranges[i + 1] + 1;
+            }
+            if (next <= Character.MAX_VALUE) {
+                res.add(next);
+                res.add((int) Character.MAX_VALUE);
+            }
+            return new CharSet(toArray(res));
+        }
+
+        private static CharSet union(List<int[]> pairs) {
+            int[][] sorted = pairs.toArray(new int[pairs.size()][]);
+            Arrays.sort(sorted, new java.util.Comparator<int[]>() {
+                public int compare(int[] o1, int[] o2) {
+                    return o1[0] - o2[0];
+                }
+            });
+            List<Integer> res = new ArrayList<Integer>();
+            for (int[] pair : sorted) {
+                int last = res.size() - 1;
+                if (last > 0 && pair[0] <= res.get(last) + 1) {
+                    res.set(last, Math.max(res.get(last), pair[1]));
+                } else {
+                    res.add(pair[0]);
+                    res.add(pair[1]);
+                }
+            }
+            return new CharSet(toArray(res));
+        }
+
+        private void addTo(List<int[]> pairs) {
+            for (int i = 0; i < ranges.length; i += 2) {
+                pairs.add(new int[] {ranges[i], ranges[i + 1]});
+            }
+        }
+
+        private static int[] toArray(List<Integer> list) {
+            int[] res = new int[list.size()];
+            for (int i = 0; i < res.length; i++) {
+                res[i] = list.get(i);
+            }
+            return res;
+        }
+    }
+
+    // --------------------------------------------------------------- Parser
+
+    private static final class Parser {
+        private final String regex;
+        private int pos;
+
+        private Parser(String regex) {
+            this.regex = regex;
+        }
+
+        private Node parse() {
+            if (regex.startsWith("^")) {
+                pos++;
+            }
+            Node res = parseAlternation();
+            if (pos < regex.length()) {
+                throw error(regex.charAt(pos) == ')' ?
+                        "Unmatched ')'" : "Unsupported syntax");
+            }
+            return res;
+        }
+
+        private Node parseAlternation() {
+            List<Node> alternatives = new ArrayList<Node>();
+            alternatives.add(parseConcatenation());
+            while (pos < regex.length() && regex.charAt(pos) == '|') {
+                pos++;
+                alternatives.add(parseConcatenation());
+            }
+            return alternatives.size() == 1 ? alternatives.get(0) :
+                new Node(ALT, null, alternatives, 0, 0);
+        }
+
+        private Node parseConcatenation() {
+            List<Node> items = new ArrayList<Node>();
+            while (pos < regex.length()) {
+                char ch = regex.charAt(pos);
+                if (ch == '|' || ch == ')') {
+                    break;
+                }
+                if (ch == '$' && pos == regex.length() - 1) {
+                    pos++;
+                    break;
+                }
+                items.add(parseRepeat());
+            }
+            return new Node(CONCAT, null, items, 0, 0);
+        }
+
+        private Node parseRepeat() {
+            Node atom = parseAtom();
+            boolean quantified = false;
+            while (pos < regex.length()) {
+                char ch = regex.charAt(pos);
+                int min;
+                int max;
+                if (quantified && 
+                        (ch == '*' || ch == '+' || ch == '?' || ch == '{')) {
+                    // Pattern rejects most of these, and doesn't treat 
+                    // "a{2}{3}" as "(?:a{2}){3}".
+                    throw error("Stacked quantifiers are not supported");
+                } else if (ch == '*') {
+                    min = 0;
+                    max = -1;
+                    pos++;
+                } else if (ch == '+') {
+                    min = 1;
+                    max = -1;
+                    pos++;
+                } else if (ch == '?') {
+                    min = 0;
+                    max = 1;
+                    pos++;
+                } else if (ch == '{') {
+                    pos++;
+                    min = parseNumber();
+                    max = min;
+                    if (pos < regex.length() && regex.charAt(pos) == ',') {
+                        pos++;
+                        max = (pos < regex.length() &&
+                                regex.charAt(pos) == '}') ? -1 : parseNumber();
+                    }
+                    expect('}');
+                    if (min > MAX_REPEAT || max > MAX_REPEAT ||
+                            (max >= 0 && max < min)) {
+                        throw error("Unsupported repetition count");
+                    }
+                } else {
+                    break;
+                }
+                if (pos < regex.length()) {
+                    if (regex.charAt(pos) == '+') {
+                        throw error("Possessive quantifiers are not supported");
+                    } else if (regex.charAt(pos) == '?') {
+                        // Reluctant; same result for a whole-input match
+                        pos++;
+                    }
+                }
+                List<Node> kids = new ArrayList<Node>();
+                kids.add(atom);
+                atom = new Node(REPEAT, null, kids, min, max);
+                quantified = true;
+            }
+            return atom;
+        }
+
+        private Node parseAtom() {
+            char ch = regex.charAt(pos++);
+            switch (ch) {
+            case '(':
+                if (pos < regex.length() && regex.charAt(pos) == '?') {
+                    if (regex.startsWith("?:", pos)) {
+                        pos += 2;
+                    } else {
+                        throw error("Unsupported group construct");
+                    }
+                }
+                Node res = parseAlternation();
+                expect(')');
+                return res;
+            case '[':
+                return set(parseClass());
+            case '.':
+                return set(CharSet.DOT);
+            case '\\':
+                return set(parseEscape());
+            case '*': case '+': case '?': case '{':
+                throw error("Dangling meta character '" + ch + "'");
+            case '^': case '$':
+                throw error("Anchors are only supported at the ends");
+            default:
+                return set(CharSet.of(ch));
+            }
+        }
+
+        private CharSet parseClass() {
+            boolean negated = false;
+            if (pos < regex.length() && regex.charAt(pos) == '^') {
+                negated = true;
+                pos++;
+            }
+            List<int[]> pairs = new ArrayList<int[]>();
+            boolean first = true;
+            while (true) {
+                if (pos >= regex.length()) {
+                    throw error("Unclosed character class");
+                }
+                char ch = regex.charAt(pos++);
+                if (ch == ']' && !first) {
+                    break;
+                }
+                first = false;
+                if (ch == '[' || (ch == '&' && pos < regex.length() &&
+                        regex.charAt(pos) == '&')) {
+                    throw error("Nested classes and intersections " +
+                            "are not supported");
+                }
+                int lo;
+                if (ch == '\\') {
+                    CharSet escaped = parseEscape();
+                    if (escaped.ranges.length != 2 ||
+                            escaped.ranges[0] != escaped.ranges[1]) {
+                        escaped.addTo(pairs);
+                        continue;
+                    }
+                    lo = escaped.ranges[0];
+                } else {
+                    lo = ch;
+                }
+                int hi = lo;
+                if (pos + 1 < regex.length() && regex.charAt(pos) == '-' &&
+                        regex.charAt(pos + 1) != ']') {
+                    pos++;
+                    char end = regex.charAt(pos++);
+                    if (end == '\\') {
+                        CharSet escaped = parseEscape();
+                        if (escaped.ranges.length != 2 ||
+                                escaped.ranges[0] != escaped.ranges[1]) {
+                            throw error("Illegal character range");
+                        }
+                        hi = escaped.ranges[0];
+                    } else {
+                        hi = end;
+                    }
+                    if (hi < lo) {
+                        throw error("Illegal character range");
+                    }
+                }
+                pairs.add(new int[] {lo, hi});
+            }
+            CharSet res = CharSet.union(pairs);
+            return negated ? res.complement() : res;
+        }
+
+        private CharSet parseEscape() {
+            if (pos >= regex.length()) {
+                throw error("Trailing backslash");
+            }
+            char ch = regex.charAt(pos++);
+            switch (ch) {
+            case 'd': return CharSet.DIGIT;
+            case 'D': return CharSet.DIGIT.complement();
+            case 'w': return CharSet.WORD;
+            case 'W': return CharSet.WORD.complement();
+            case 's': return CharSet.SPACE;
+            case 'S': return CharSet.SPACE.complement();
+            case 't': return CharSet.of('\t');
+            case 'n': return CharSet.of('\n');
+            case 'r': return CharSet.of('\r');
+            case 'f': return CharSet.of('\f');
+            case 'a': return CharSet.of('\u0007');
+            case 'e': return CharSet.of('\u001B');
+            case 'x': return CharSet.of(parseHex(2));
+            case 'u': return CharSet.of(parseHex(4));
+            default:
+                if (Character.isLetterOrDigit(ch)) {
+                    throw error("Unsupported escape '\\" + ch + "'");
+                }
+                return CharSet.of(ch);
+            }
+        }
+
+        private int parseHex(int digits) {
+            if (pos + digits > regex.length()) {
+                throw error("Illegal hexadecimal escape");
+            }
+            try {
+                int res = Integer.parseInt(
+                        regex.substring(pos, pos + digits), 16);
+                pos += digits;
+                return res;
+            } catch (NumberFormatException ex) {
+                throw error("Illegal hexadecimal escape");
+            }
+        }
+
+        private int parseNumber() {
+            int start = pos;
+            while (pos < regex.length() &&
+                    Character.isDigit(regex.charAt(pos))) {
+                pos++;
+            }
+            if (start == pos || pos - start > 6) {
+                throw error("Illegal repetition");
+            }
+            return Integer.parseInt(regex.substring(start, pos));
+        }
+
+        private void expect(char ch) {
+            if (pos >= regex.length() || regex.charAt(pos) != ch) {
+                throw error("Expected '" + ch + "'");
+            }
+            pos++;
+        }
+
+        private Node set(CharSet set) {
+            return new Node(SET, set, null, 0, 0);
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " near index " +
+                    pos + " of regex: " + regex);
+        }
+    }
+
+    // ------------------------------------------------------------------ NFA
+
+    /**
+     * A Thompson-style NFA.  Each state either consumes a char in its set
+     * and moves to its single successor, or has epsilon edges to any number
+     * of successors.
+     */
+    private static final class Nfa {
+        private final List<CharSet> sets = new ArrayList<CharSet>();
+        private final List<Integer> targets = new ArrayList<Integer>();
+        private final List<int[]> epsilons = new ArrayList<int[]>();
+
+        private int newState() {
+            if (sets.size() >= MAX_NFA_STATES) {
+                throw new IllegalArgumentException(
+                        "Regex is too large for the DFA engine");
+            }
+            sets.add(null);
+            targets.add(-1);
+            epsilons.add(new int[0]);
+            return sets.size() - 1;
+        }
+
+        /**
+         * Build the states for a node, leading to <code>next</code>.
+         *
+         * @return the node's start state.
+         */
+        private int build(Node node, int next) {
+            switch (node.kind) {
+            case SET: {
+                int s = newState();
+                sets.set(s, node.set);
+                targets.set(s, next);
+                return s;
+            }
+            case CONCAT:
+                for (int i = node.kids.size() - 1; i >= 0; i--) {
+                    next = build(node.kids.get(i), next);
+                }
+                return next;
+            case ALT: {
+                int s = newState();
+                int[] edges = new int[node.kids.size()];
+                for (int i = 0; i < edges.length; i++) {
+                    edges[i] = build(node.kids.get(i), next);
+                }
+                epsilons.set(s, edges);
+                return s;
+            }
+            default: {
+                Node body = node.kids.get(0);
+                if (node.max < 0) {
+                    int loop = newState();
+                    int start = build(body, loop);
+                    epsilons.set(loop, new int[] {start, next});
+                    next = loop;
+                } else {
+                    for (int i = node.min; i < node.max; i++) {
+                        int opt = newState();
+                        epsilons.set(opt, new int[] {build(body, next), next});
+                        next = opt;
+                    }
+                }
+                for (int i = 0; i < node.min; i++) {
+                    next = build(body, next);
+                }
+                return next;
+            }
+            }
+        }
+
+        private StateSet closure(int[] states) {
+            boolean[] seen = new boolean[sets.size()];
+            int[] stack = new int[sets.size()];
+            int top = 0;
+            for (int s : states) {
+                if (!seen[s]) {
+                    seen[s] = true;
+                    stack[top++] = s;
+                }
+            }
+            while (top > 0) {
+                int s = stack[--top];
+                for (int t : epsilons.get(s)) {
+                    if (!seen[t]) {
+                        seen[t] = true;
+                        stack[top++] = t;
+                    }
+                }
+            }
+            int count = 0;
+            for (int s = 0; s < seen.length; s++) {
+                if (seen[s] && (sets.get(s) != null || isFinal(s))) {
+                    count++;
+                }
+            }
+            int[] res = new int[count];
+            count = 0;
+            for (int s = 0; s < seen.length; s++) {
+                if (seen[s] && (sets.get(s) != null || isFinal(s))) {
+                    res[count++] = s;
+                }
+            }
+            return new StateSet(res);
+        }
+
+        private boolean isFinal(int s) {
+            return sets.get(s) == null && epsilons.get(s).length == 0;
+        }
+
+        private int[] move(int[] states, int ch) {
+            int[] res = new int[states.length];
+            int count = 0;
+            for (int s : states) {
+                CharSet set = sets.get(s);
+                if (set != null && set.contains(ch)) {
+                    res[count++] = targets.get(s);
+                }
+            }
+            return Arrays.copyOf(res, count);
+        }
+    }
+
+    private static final class StateSet {
+        private final int[] states;
+        private final int hash;
+
+        private StateSet(int[] states) {
+            this.states = states;
+            this.hash = Arrays.hashCode(states);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof StateSet &&
+                    Arrays.equals(states, ((StateSet) obj).states);
+        }
+    }
+}
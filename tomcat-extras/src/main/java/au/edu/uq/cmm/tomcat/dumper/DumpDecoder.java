@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.edu.uq.cmm.tomcat.dumper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+
+/**
+ * <p>A command line tool that converts binary request dump files (see
+ * {@link BinaryDumpEncoder}) back into the text or JSON layout, and writes
+ * the result to standard output.  Usage:</p>
+ *
+ * <pre>
+ * java -cp tomcat-extras.jar au.edu.uq.cmm.tomcat.dumper.DumpDecoder \
+ *         [-json] [-threads] file ...
+ * </pre>
+ *
+ * <p>The "-threads" option prefixes each text line with the thread name,
+ * or adds the "thread" field to each JSON object.  A file name of "-"
+ * means standard input.  A truncated record at the end of a file (e.g.
+ * because the server crashed while writing it) is reported and
+ * skipped.</p>
+ *
+ * @author Stephen Crawley
+ */
+public final class DumpDecoder {
+
+    private static final String LINE_SEPARATOR =
+            System.getProperty("line.separator");
+
+    private DumpDecoder() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean json = false;
+        boolean threads = false;
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("-") &&
+                !args[i].equals("-"); i++) {
+            if (args[i].equals("-json")) {
+                json = true;
+            } else if (args[i].equals("-threads")) {
+                threads = true;
+            } else {
+                usage();
+                return;
+            }
+        }
+        if (i == args.length) {
+            usage();
+            return;
+        }
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+        int status = 0;
+        try {
+            for (; i < args.length; i++) {
+                InputStream in = args[i].equals("-") ? System.in :
+                        new FileInputStream(args[i]);
+                try {
+                    decode(new BufferedInputStream(in, 65536), out,
+                            json, threads);
+                } catch (EOFException ex) {
+                    System.err.println(args[i] + ": truncated record");
+                    status = 1;
+                } catch (IOException ex) {
+                    System.err.println(args[i] + ": " + ex.getMessage());
+                    status = 1;
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            out.flush();
+        }
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+
+    private static void usage() {
+        System.err.println("usage: DumpDecoder [-json] [-threads] file ...");
+        System.exit(2);
+    }
+
+    private static void decode(InputStream in, Writer out, boolean json,
+            boolean threads) throws IOException {
+        BinaryDumpDecoder decoder = new BinaryDumpDecoder(in);
+        DumpRecord record = new DumpRecord();
+        StringBuilder sb = new StringBuilder(4096);
+        while (decoder.next(record)) {
+            sb.setLength(0);
+            if (json) {
+                record.formatJson(sb, threads);
+                sb.append(LINE_SEPARATOR);
+            } else {
+                for (int i = 0; i < record.size(); i++) {
+                    record.formatEntry(i, sb, threads);
+                    sb.append(LINE_SEPARATOR);
+                }
+            }
+            out.append(sb);
+        }
+    }
+}
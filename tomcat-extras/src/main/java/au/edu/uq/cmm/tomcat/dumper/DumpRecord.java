@@ -0,0 +1,867 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.edu.uq.cmm.tomcat.dumper;
+
+
+/**
+ * <p>The captured contents of one request / response dump.  A record is an
+ * ordered list of entries, each of which renders as one line of the
+ * traditional dumper output; e.g. <code>"            header=Host=foo"</code>
+ * is an entry with label <code>"            header"</code>, name
+ * <code>"Host"</code> and value <code>"foo"</code>.</p>
+ *
+ * <p>Records hold references to the captured strings rather than formatted
+ * text, and are cleared and reused rather than reallocated.  A record is not
+ * thread-safe.</p>
+ *
+ * <p>For text that isn't already available as a string (e.g. header bytes 
+ * in the connector's buffers), the characters can be copied into a reusable
+ * text area in the record using the <code>appendText</code> methods, and
+ * then referred to by an entry added with {@link #addText}.  Similarly,
+ * numbers and booleans are held in primitive form and rendered directly
+ * into the output buffer.  This avoids creating strings that would only
+ * be used once.</p>
+ *
+ * <p>The number of named entries (headers, cookies and parameters) in a
+ * record is capped at {@link #MAX_NAMED_ENTRIES}, since a client controls
+ * how many there are.  Any more are dropped, and counted by an
+ * "omittedEntries" entry that is added when the first one is dropped.</p>
+ *
+ * @author Stephen Crawley
+ */
+public final class DumpRecord {
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int INITIAL_TEXT_CAPACITY = 2048;
+
+    /**
+     * Text areas larger than this are discarded when the record is 
+     * cleared, so that one unusually large request doesn't pin a lot of
+     * memory to a thread.
+     */
+    private static final int MAX_RETAINED_TEXT = 64 * 1024;
+
+    /**
+     * The maximum number of named entries in a record.
+     */
+    static final int MAX_NAMED_ENTRIES = 4096;
+
+    private static final String OMITTED_LABEL = "    omittedEntries";
+
+    // The entry kinds.  These are part of the binary dump format, so they
+    // must not be renumbered.
+    static final byte VALUE = 0;
+    static final byte NAMED_VALUE = 1;
+    static final byte RAW = 2;
+    static final byte DURATION = 3;
+    static final byte NAMED_TEXT = 4;
+    static final byte LONG = 5;
+    static final byte BOOLEAN = 6;
+    static final byte TIMESTAMP = 7;
+
+    /**
+     * Set while the record is being used by {@link RequestDumper}.
+     */
+    boolean busy;
+
+    /**
+     * The record that {@link RequestDumper} uses for a nested request 
+     * (e.g. a forward) while this one is busy, or null.
+     */
+    DumpRecord nested;
+
+    private DumperConfig config;
+    private String threadName;
+    private long startTime;
+    private long chainStartTime;
+    private long chainEndTime;
+    private long firstByteTime;
+    private long commitTime;
+    private int size;
+    private int mark;
+    private byte[] kinds = new byte[INITIAL_CAPACITY];
+    private String[] labels = new String[INITIAL_CAPACITY];
+    private String[] names = new String[INITIAL_CAPACITY];
+    private String[] values = new String[INITIAL_CAPACITY];
+    private long[] numbers = new long[INITIAL_CAPACITY];
+    private int[] textEnds = new int[INITIAL_CAPACITY];
+    private char[] text = new char[INITIAL_TEXT_CAPACITY];
+    private int textLength;
+    private int namedCount;
+    private int omittedIndex = -1;
+
+    // Scratch arrays for grouping the named entries when rendering JSON;
+    // see groupNamedEntries().  They are allocated when first needed.
+    private int[] order;
+    private int[] scratch;
+    private int[] labelFirst;
+    private int[] nextValue;
+    private int[] nextName;
+    private int[] lastName;
+
+    /**
+     * Reset the record so that it can be reused.  The entry arrays are
+     * nulled out so that we don't retain references to the strings from
+     * the previous request.
+     */
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            labels[i] = null;
+            names[i] = null;
+            values[i] = null;
+        }
+        size = 0;
+        mark = 0;
+        textLength = 0;
+        namedCount = 0;
+        omittedIndex = -1;
+        if (text.length > MAX_RETAINED_TEXT) {
+            text = new char[INITIAL_TEXT_CAPACITY];
+        }
+        config = null;
+        threadName = null;
+        startTime = 0;
+        chainStartTime = 0;
+        chainEndTime = 0;
+        firstByteTime = 0;
+        commitTime = 0;
+    }
+
+    /**
+     * Make this record a copy of another one.  Only the references to
+     * the captured strings are copied, but the text area is copied.
+     */
+    public void copyFrom(DumpRecord other) {
+        clear();
+        while (labels.length < other.size) {
+            grow();
+        }
+        System.arraycopy(other.kinds, 0, kinds, 0, other.size);
+        System.arraycopy(other.labels, 0, labels, 0, other.size);
+        System.arraycopy(other.names, 0, names, 0, other.size);
+        System.arraycopy(other.values, 0, values, 0, other.size);
+        System.arraycopy(other.numbers, 0, numbers, 0, other.size);
+        System.arraycopy(other.textEnds, 0, textEnds, 0, other.size);
+        ensureText(other.textLength);
+        System.arraycopy(other.text, 0, text, 0, other.textLength);
+        textLength = other.textLength;
+        size = other.size;
+        mark = other.mark;
+        namedCount = other.namedCount;
+        omittedIndex = other.omittedIndex;
+        config = other.config;
+        threadName = other.threadName;
+        startTime = other.startTime;
+        chainStartTime = other.chainStartTime;
+        chainEndTime = other.chainEndTime;
+        firstByteTime = other.firstByteTime;
+        commitTime = other.commitTime;
+    }
+
+    /**
+     * Get the dumper settings that apply to the request being captured.
+     */
+    public DumperConfig getConfig() {
+        return config;
+    }
+
+    public void setConfig(DumperConfig config) {
+        this.config = config;
+    }
+
+    public String getThreadName() {
+        return threadName;
+    }
+
+    public void setThreadName(String threadName) {
+        this.threadName = threadName;
+    }
+
+    /**
+     * Get the time at which capture started, as given by 
+     * {@link System#nanoTime()}.
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public void setStartTime(long startTime) {
+        this.startTime = startTime;
+    }
+
+    /**
+     * Record the time at which the rest of the valve / filter chain 
+     * was invoked.
+     */
+    public void chainStarted() {
+        chainStartTime = System.nanoTime();
+    }
+
+    /**
+     * Record the time at which the rest of the valve / filter chain 
+     * returned or threw an exception.
+     */
+    public void chainEnded() {
+        chainEndTime = System.nanoTime();
+    }
+
+    /**
+     * Get the time at which the rest of the valve / filter chain returned,
+     * as given by {@link System#nanoTime()}.
+     */
+    public long getChainEndTime() {
+        return chainEndTime;
+    }
+
+    /**
+     * Get the time spent in the rest of the valve / filter chain in 
+     * nanoseconds.
+     */
+    public long getChainTime() {
+        return chainEndTime - chainStartTime;
+    }
+
+    /**
+     * Get the time at which the first byte of the response was produced,
+     * as given by {@link System#nanoTime()}, or zero if it is not known.
+     */
+    public long getFirstByteTime() {
+        return firstByteTime;
+    }
+
+    public void setFirstByteTime(long firstByteTime) {
+        this.firstByteTime = firstByteTime;
+    }
+
+    /**
+     * Get the time at which the response was committed, as given by 
+     * {@link System#nanoTime()}, or zero if it is not known.
+     */
+    public long getCommitTime() {
+        return commitTime;
+    }
+
+    public void setCommitTime(long commitTime) {
+        this.commitTime = commitTime;
+    }
+
+    /**
+     * Add an entry that renders as <code>label=value</code>.
+     */
+    public void add(String label, String value) {
+        append(VALUE, label, null, value);
+    }
+
+    /**
+     * Add an entry that renders as <code>label=name=value</code>.  This is
+     * used for cookies, headers and parameters.
+     */
+    public void add(String label, String name, String value) {
+        if (omitNamed()) {
+            return;
+        }
+        append(NAMED_VALUE, label, name, value);
+    }
+
+    /**
+     * Add an entry that renders as <code>label=value</code> for a number.
+     */
+    public void add(String label, long value) {
+        append(LONG, label, null, null);
+        numbers[size - 1] = value;
+    }
+
+    /**
+     * Add an entry that renders as <code>label=value</code> for a boolean.
+     */
+    public void add(String label, boolean value) {
+        append(BOOLEAN, label, null, null);
+        numbers[size - 1] = value ? 1 : 0;
+    }
+
+    /**
+     * Add an entry that renders as <code>label=timestamp</code> for a
+     * wall-clock time; see {@link TimestampFormat}.
+     *
+     * @param millis the time, as given by {@link System#currentTimeMillis()}.
+     */
+    public void addTimestamp(String label, long millis) {
+        append(TIMESTAMP, label, null, null);
+        numbers[size - 1] = millis;
+    }
+
+    /**
+     * Add an entry that renders a duration in milliseconds with 
+     * microsecond precision; e.g. <code>label=12.345 ms</code>.
+     * 
+     * @param nanos the duration in nanoseconds.
+     */
+    public void addDuration(String label, long nanos) {
+        append(DURATION, label, null, null);
+        numbers[size - 1] = nanos;
+    }
+
+    /**
+     * Get the current length of the text area.  This is the position at 
+     * which the next <code>appendText</code> call will put its text.
+     */
+    public int textLength() {
+        return textLength;
+    }
+
+    /**
+     * Append ISO-8859-1 encoded bytes to the text area.
+     */
+    public void appendText(byte[] buf, int offset, int length) {
+        ensureText(textLength + length);
+        for (int i = 0; i < length; i++) {
+            text[textLength++] = (char) (buf[offset + i] & 0xff);
+        }
+    }
+
+    /**
+     * Append characters to the text area.
+     */
+    public void appendText(char[] buf, int offset, int length) {
+        ensureText(textLength + length);
+        System.arraycopy(buf, offset, text, textLength, length);
+        textLength += length;
+    }
+
+    /**
+     * Append a string to the text area.  A null is appended as "null".
+     */
+    public void appendText(String str) {
+        if (str == null) {
+            str = "null";
+        }
+        ensureText(textLength + str.length());
+        str.getChars(0, str.length(), text, textLength);
+        textLength += str.length();
+    }
+
+    /**
+     * Add an entry that renders as <code>label=name=value</code>, where
+     * the name and value are in the text area.  The name is the text from
+     * <code>nameStart</code> to <code>valueStart</code>, and the value is 
+     * the text from <code>valueStart</code> to the current end of the text
+     * area.  If the entry is dropped because the record has too many
+     * named entries, the text from <code>nameStart</code> is discarded.
+     */
+    public void addText(String label, int nameStart, int valueStart) {
+        if (omitNamed()) {
+            textLength = nameStart;
+            return;
+        }
+        append(NAMED_TEXT, label, null, null);
+        numbers[size - 1] = ((long) nameStart << 32) | valueStart;
+        textEnds[size - 1] = textLength;
+    }
+
+    /**
+     * Add an entry that renders verbatim; e.g. a separator line.
+     */
+    public void raw(String line) {
+        append(RAW, line, null, null);
+    }
+
+    /**
+     * Record the boundary between the pre-service and post-service entries.
+     */
+    public void mark() {
+        mark = size;
+    }
+
+    public int getMark() {
+        return mark;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Raw access to the entries, for BinaryDumpEncoder.
+
+    byte kindAt(int index) {
+        return kinds[index];
+    }
+
+    String labelAt(int index) {
+        return labels[index];
+    }
+
+    String nameAt(int index) {
+        return names[index];
+    }
+
+    String valueAt(int index) {
+        return values[index];
+    }
+
+    long numberAt(int index) {
+        return numbers[index];
+    }
+
+    int textEndAt(int index) {
+        return textEnds[index];
+    }
+
+    char[] text() {
+        return text;
+    }
+
+    /**
+     * Append the text rendering of an entry (without a line terminator)
+     * to a buffer.
+     *
+     * @param index the entry index
+     * @param sb the destination buffer
+     * @param withThreadName if true, the line is prefixed with the name
+     *     of the thread that captured the record.
+     */
+    public void formatEntry(int index, StringBuilder sb,
+            boolean withThreadName) {
+        if (withThreadName) {
+            sb.append(threadName).append(' ');
+        }
+        sb.append(labels[index]);
+        switch (kinds[index]) {
+        case NAMED_VALUE:
+            sb.append('=').append(names[index]);
+            // fall through
+        case VALUE:
+            sb.append('=').append(values[index]);
+            break;
+        case DURATION:
+            sb.append('=');
+            appendDuration(numbers[index], sb);
+            break;
+        case LONG:
+            sb.append('=').append(numbers[index]);
+            break;
+        case BOOLEAN:
+            sb.append('=').append(numbers[index] != 0);
+            break;
+        case TIMESTAMP:
+            sb.append('=');
+            TimestampFormat.getInstance().append(numbers[index], sb);
+            break;
+        case NAMED_TEXT:
+            int nameStart = (int) (numbers[index] >>> 32);
+            int valueStart = (int) numbers[index];
+            sb.append('=').append(text, nameStart, valueStart - nameStart);
+            sb.append('=').append(text, valueStart, 
+                    textEnds[index] - valueStart);
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * Append the JSON rendering of the record, as a single object on one
+     * line.  The keys are the entry labels without the padding.  Entries
+     * captured after the {@link #mark() mark} (i.e. after the request was
+     * processed) are grouped into a nested "response" object, since some
+     * of their labels are the same as the pre-service ones.  Entries with
+     * names (headers, cookies and parameters) are grouped by label into
+     * objects that map each name to an array of its values.  Numbers,
+     * booleans and durations (in milliseconds) are JSON numbers, and raw 
+     * lines are omitted.
+     *
+     * @param sb the destination buffer
+     * @param withThreadName if true, the object includes a "thread" field
+     *     giving the name of the thread that captured the record.
+     */
+    public void formatJson(StringBuilder sb, boolean withThreadName) {
+        sb.append('{');
+        boolean first = true;
+        if (withThreadName) {
+            sb.append("\"thread\":");
+            JsonWriter.appendString(sb, threadName);
+            first = false;
+        }
+        first = formatJson(0, mark, sb, first);
+        if (mark < size) {
+            if (!first) {
+                sb.append(',');
+            }
+            sb.append("\"response\":{");
+            formatJson(mark, size, sb, true);
+            sb.append('}');
+        }
+        sb.append('}');
+    }
+
+    private boolean formatJson(int from, int to, StringBuilder sb, 
+            boolean first) {
+        groupNamedEntries(from, to);
+        for (int i = from; i < to; i++) {
+            byte kind = kinds[i];
+            if (kind == RAW) {
+                continue;
+            }
+            boolean named = isNamed(i);
+            if (named && labelFirst[i] != i) {
+                // Already written as part of this label's group
+                continue;
+            }
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            appendJsonKey(labels[i], sb);
+            if (named) {
+                formatJsonGroup(i, sb);
+            } else {
+                formatJsonValue(i, sb);
+            }
+        }
+        return first;
+    }
+
+    /**
+     * Write the named entries with the same label as entry 'first' as an
+     * object that maps each name to an array of values.
+     */
+    private void formatJsonGroup(int first, StringBuilder sb) {
+        sb.append('{');
+        for (int j = first; j >= 0; j = nextName[j]) {
+            if (j != first) {
+                sb.append(',');
+            }
+            if (kinds[j] == NAMED_TEXT) {
+                int nameStart = (int) (numbers[j] >>> 32);
+                JsonWriter.appendString(sb, text, nameStart, 
+                        (int) numbers[j] - nameStart);
+            } else {
+                JsonWriter.appendString(sb, String.valueOf(names[j]));
+            }
+            sb.append(":[");
+            for (int k = j; k >= 0; k = nextValue[k]) {
+                if (k != j) {
+                    sb.append(',');
+                }
+                formatJsonValue(k, sb);
+            }
+            sb.append(']');
+        }
+        sb.append('}');
+    }
+
+    /**
+     * Link up the named entries from 'from' to 'to' for rendering as JSON.
+     * After this, for each named entry i:
+     * <ul>
+     * <li><code>labelFirst[i]</code> is the first entry with its label,</li>
+     * <li><code>nextValue[i]</code> is the next entry with its label and
+     *     name, or -1, and</li>
+     * <li>if i is the first entry with its label and name, 
+     *     <code>nextName[i]</code> is the first entry with its label and
+     *     the next name, or -1.</li>
+     * </ul>
+     * The entries are sorted by label and name (in O(n log n) time, since
+     * the client controls how many there are), and then the runs with the
+     * same label and name are linked together in entry order.
+     */
+    private void groupNamedEntries(int from, int to) {
+        ensureIndex(to);
+        int n = 0;
+        for (int i = from; i < to; i++) {
+            if (isNamed(i)) {
+                order[n++] = i;
+            }
+        }
+        if (n == 0) {
+            return;
+        }
+        sortEntries(0, n);
+        int labelStart = 0;
+        while (labelStart < n) {
+            // Find the run with this label, and its first entry.
+            int labelEnd = labelStart + 1;
+            int first = order[labelStart];
+            while (labelEnd < n && 
+                    sameLabel(order[labelStart], order[labelEnd])) {
+                first = Math.min(first, order[labelEnd]);
+                labelEnd++;
+            }
+            for (int k = labelStart; k < labelEnd; k++) {
+                int i = order[k];
+                labelFirst[i] = first;
+                nextValue[i] = k + 1 < labelEnd && 
+                        sameName(i, order[k + 1]) ? order[k + 1] : -1;
+                // -1 marks the first entry with a name, for now.
+                nextName[i] = k == labelStart || 
+                        !sameName(order[k - 1], i) ? -1 : -2;
+            }
+            lastName[first] = first;
+            labelStart = labelEnd;
+        }
+        // Chain the first entry for each name onto its label's list, in 
+        // entry order.
+        for (int i = from; i < to; i++) {
+            if (isNamed(i) && nextName[i] == -1 && labelFirst[i] != i) {
+                int first = labelFirst[i];
+                nextName[lastName[first]] = i;
+                lastName[first] = i;
+            }
+        }
+    }
+
+    /**
+     * A stable merge sort of order[from..to) by label and name, using
+     * 'scratch' as the merge buffer.
+     */
+    private void sortEntries(int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        sortEntries(from, middle);
+        sortEntries(middle, to);
+        if (compareEntries(order[middle - 1], order[middle]) <= 0) {
+            return;
+        }
+        System.arraycopy(order, from, scratch, from, to - from);
+        int a = from;
+        int b = middle;
+        for (int k = from; k < to; k++) {
+            if (b >= to || (a < middle && 
+                    compareEntries(scratch[a], scratch[b]) <= 0)) {
+                order[k] = scratch[a++];
+            } else {
+                order[k] = scratch[b++];
+            }
+        }
+    }
+
+    private int compareEntries(int a, int b) {
+        if (!sameLabel(a, b)) {
+            return labels[a].compareTo(labels[b]);
+        }
+        int aLength = nameLength(a);
+        int bLength = nameLength(b);
+        int length = Math.min(aLength, bLength);
+        for (int i = 0; i < length; i++) {
+            char ca = nameChar(a, i);
+            char cb = nameChar(b, i);
+            if (ca != cb) {
+                return ca - cb;
+            }
+        }
+        return aLength - bLength;
+    }
+
+    private boolean sameLabel(int a, int b) {
+        return labels[a] == labels[b] || labels[a].equals(labels[b]);
+    }
+
+    private void ensureIndex(int capacity) {
+        if (order == null || order.length < capacity) {
+            int length = Math.max(capacity, labels.length);
+            order = new int[length];
+            scratch = new int[length];
+            labelFirst = new int[length];
+            nextValue = new int[length];
+            nextName = new int[length];
+            lastName = new int[length];
+        }
+    }
+
+    private void formatJsonValue(int index, StringBuilder sb) {
+        switch (kinds[index]) {
+        case VALUE:
+        case NAMED_VALUE:
+            JsonWriter.appendString(sb, values[index]);
+            break;
+        case NAMED_TEXT:
+            int valueStart = (int) numbers[index];
+            JsonWriter.appendString(sb, text, valueStart, 
+                    textEnds[index] - valueStart);
+            break;
+        case DURATION:
+            appendMillis(numbers[index], sb);
+            break;
+        case LONG:
+            sb.append(numbers[index]);
+            break;
+        case BOOLEAN:
+            sb.append(numbers[index] != 0);
+            break;
+        case TIMESTAMP:
+            sb.append('"');
+            TimestampFormat.getInstance().append(numbers[index], sb);
+            sb.append('"');
+            break;
+        default:
+            sb.append("null");
+            break;
+        }
+    }
+
+    /**
+     * Append a label as a JSON key, without the padding.  The upper case
+     * labels that head the traditional output are turned into camel case;
+     * e.g. "START TIME" becomes "startTime".  (The labels are all plain
+     * ASCII, so they don't need escaping.)
+     */
+    private static void appendJsonKey(String label, StringBuilder sb) {
+        int start = 0;
+        int end = label.length();
+        while (start < end && label.charAt(start) == ' ') {
+            start++;
+        }
+        while (end > start && label.charAt(end - 1) == ' ') {
+            end--;
+        }
+        sb.append('"');
+        if (label.equals("REQUEST URI       ")) {
+            sb.append("requestURI");
+        } else if (start < end && Character.isUpperCase(label.charAt(start))) {
+            boolean upper = false;
+            for (int i = start; i < end; i++) {
+                char ch = label.charAt(i);
+                if (ch == ' ') {
+                    upper = true;
+                } else {
+                    sb.append(upper ? ch : Character.toLowerCase(ch));
+                    upper = false;
+                }
+            }
+        } else {
+            sb.append(label, start, end);
+        }
+        sb.append("\":");
+    }
+
+    private boolean isNamed(int index) {
+        return kinds[index] == NAMED_VALUE || kinds[index] == NAMED_TEXT;
+    }
+
+    private boolean sameName(int a, int b) {
+        int aLength = nameLength(a);
+        if (aLength != nameLength(b)) {
+            return false;
+        }
+        for (int i = 0; i < aLength; i++) {
+            if (nameChar(a, i) != nameChar(b, i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int nameLength(int index) {
+        if (kinds[index] == NAMED_TEXT) {
+            return (int) numbers[index] - (int) (numbers[index] >>> 32);
+        }
+        return names[index] == null ? 4 : names[index].length();
+    }
+
+    private char nameChar(int index, int i) {
+        if (kinds[index] == NAMED_TEXT) {
+            return text[(int) (numbers[index] >>> 32) + i];
+        }
+        return names[index] == null ? "null".charAt(i) : 
+            names[index].charAt(i);
+    }
+
+    private static void appendDuration(long nanos, StringBuilder sb) {
+        appendMillis(nanos, sb);
+        sb.append(" ms");
+    }
+
+    /**
+     * Append a duration in milliseconds with microsecond precision.
+     */
+    private static void appendMillis(long nanos, StringBuilder sb) {
+        if (nanos < 0) {
+            sb.append('-');
+            nanos = -nanos;
+        }
+        long micros = nanos / 1000;
+        sb.append(micros / 1000).append('.');
+        long fraction = micros % 1000;
+        if (fraction < 100) {
+            sb.append('0');
+        }
+        if (fraction < 10) {
+            sb.append('0');
+        }
+        sb.append(fraction);
+    }
+
+    /**
+     * Check whether a named entry must be dropped because the record 
+     * already has the maximum number of them, and if so count it.
+     */
+    private boolean omitNamed() {
+        if (namedCount < MAX_NAMED_ENTRIES) {
+            namedCount++;
+            return false;
+        }
+        if (omittedIndex < 0) {
+            append(LONG, OMITTED_LABEL, null, null);
+            omittedIndex = size - 1;
+            numbers[omittedIndex] = 0;
+        }
+        numbers[omittedIndex]++;
+        return true;
+    }
+
+    private void append(byte kind, String label, String name, String value) {
+        if (size == labels.length) {
+            grow();
+        }
+        kinds[size] = kind;
+        labels[size] = label;
+        names[size] = name;
+        values[size] = value;
+        size++;
+    }
+
+    private void ensureText(int capacity) {
+        if (capacity > text.length) {
+            char[] newText = new char[Math.max(capacity, text.length * 2)];
+            System.arraycopy(text, 0, newText, 0, textLength);
+            text = newText;
+        }
+    }
+
+    private void grow() {
+        int capacity = labels.length * 2;
+        byte[] newKinds = new byte[capacity];
+        String[] newLabels = new String[capacity];
+        String[] newNames = new String[capacity];
+        String[] newValues = new String[capacity];
+        long[] newNumbers = new long[capacity];
+        int[] newTextEnds = new int[capacity];
+        System.arraycopy(kinds, 0, newKinds, 0, size);
+        System.arraycopy(labels, 0, newLabels, 0, size);
+        System.arraycopy(names, 0, newNames, 0, size);
+        System.arraycopy(values, 0, newValues, 0, size);
+        System.arraycopy(numbers, 0, newNumbers, 0, size);
+        System.arraycopy(textEnds, 0, newTextEnds, 0, size);
+        kinds = newKinds;
+        labels = newLabels;
+        names = newNames;
+        values = newValues;
+        numbers = newNumbers;
+        textEnds = newTextEnds;
+    }
+}
@@ -0,0 +1,361 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.edu.uq.cmm.tomcat.dumper;
+
+import javax.servlet.http.HttpServletRequest;
+
+
+/**
+ * <p>An immutable snapshot of a {@link RequestDumper}'s settings.  The
+ * dumper's setters make a {@link Builder} from the current snapshot, modify
+ * it, and swap in the snapshot built from it.  A request reads the current
+ * snapshot once, and uses it throughout, so that it sees a consistent set of
+ * settings even if they are changed (e.g. via JMX) while it is being
+ * processed.</p>
+ *
+ * <p>The settings that control the async writer and the aggregator are
+ * included for completeness, but they only take effect when the dumper
+ * is started.</p>
+ *
+ * @author Stephen Crawley
+ */
+public final class DumperConfig {
+
+    final boolean enabled;
+    final boolean dump;
+    final boolean aggregate;
+    final boolean singleRecord;
+    final String format;
+    final boolean async;
+    final int queueSize;
+    final boolean blockWhenFull;
+    final boolean failuresOnly;
+    final int failureStatus;
+    final long slowThreshold;
+    final boolean splitTimings;
+    final double sampleRate;
+    final int sampleLimit;
+    final String sampleRules;
+    final Sampler sampler;
+    final String paramMode;
+    final boolean captureBody;
+    final int bodyLimit;
+    final boolean captureResponseBody;
+    final long slowClientThreshold;
+    final long slowUploadThreshold;
+    final String filterEngine;
+    final NameMatcher paramMatcher;
+    final NameMatcher cookieMatcher;
+    final NameMatcher requestHeaderMatcher;
+    final NameMatcher responseHeaderMatcher;
+
+    /**
+     * Make a snapshot with the default settings.
+     */
+    DumperConfig() {
+        this(new Builder());
+    }
+
+    private DumperConfig(Builder b) {
+        enabled = b.enabled;
+        dump = b.dump;
+        aggregate = b.aggregate;
+        singleRecord = b.singleRecord;
+        format = b.format;
+        async = b.async;
+        queueSize = b.queueSize;
+        blockWhenFull = b.blockWhenFull;
+        failuresOnly = b.failuresOnly;
+        failureStatus = b.failureStatus;
+        slowThreshold = b.slowThreshold;
+        splitTimings = b.splitTimings;
+        sampleRate = b.sampleRate;
+        sampleLimit = b.sampleLimit;
+        sampleRules = b.sampleRules;
+        sampler = b.sampler;
+        paramMode = b.paramMode;
+        captureBody = b.captureBody;
+        bodyLimit = b.bodyLimit;
+        captureResponseBody = b.captureResponseBody;
+        slowClientThreshold = b.slowClientThreshold;
+        slowUploadThreshold = b.slowUploadThreshold;
+        filterEngine = b.filterEngine;
+        paramMatcher = b.paramMatcher;
+        cookieMatcher = b.cookieMatcher;
+        requestHeaderMatcher = b.requestHeaderMatcher;
+        responseHeaderMatcher = b.responseHeaderMatcher;
+    }
+
+    /**
+     * A modifiable set of settings, from which a snapshot is built.  The
+     * dumper's setters modify a builder made from the current snapshot,
+     * and publish the snapshot built from it.
+     */
+    static final class Builder {
+        boolean enabled = true;
+        boolean dump = true;
+        boolean aggregate;
+        boolean singleRecord;
+        String format = RequestDumper.FORMAT_TEXT;
+        boolean async;
+        int queueSize = RequestDumper.DEFAULT_QUEUE_SIZE;
+        boolean blockWhenFull;
+        boolean failuresOnly;
+        int failureStatus = 500;
+        long slowThreshold;
+        boolean splitTimings;
+        double sampleRate = 1.0;
+        int sampleLimit;
+        String sampleRules = "";
+        Sampler sampler;
+        String paramMode = RequestDumper.PARAMS_ALL;
+        boolean captureBody;
+        int bodyLimit = RequestDumper.DEFAULT_BODY_LIMIT;
+        boolean captureResponseBody;
+        long slowClientThreshold = RequestDumper.DEFAULT_SLOW_CLIENT_THRESHOLD;
+        long slowUploadThreshold = RequestDumper.DEFAULT_SLOW_UPLOAD_THRESHOLD;
+        String filterEngine = NameMatcher.REGEX_ENGINE;
+        NameMatcher paramMatcher = NameMatcher.compile("password");
+        NameMatcher cookieMatcher;
+        NameMatcher requestHeaderMatcher;
+        NameMatcher responseHeaderMatcher;
+
+        /**
+         * Make a builder with the default settings.
+         */
+        Builder() {
+        }
+
+        /**
+         * Make a builder with the settings of a snapshot.
+         */
+        Builder(DumperConfig c) {
+            enabled = c.enabled;
+            dump = c.dump;
+            aggregate = c.aggregate;
+            singleRecord = c.singleRecord;
+            format = c.format;
+            async = c.async;
+            queueSize = c.queueSize;
+            blockWhenFull = c.blockWhenFull;
+            failuresOnly = c.failuresOnly;
+            failureStatus = c.failureStatus;
+            slowThreshold = c.slowThreshold;
+            splitTimings = c.splitTimings;
+            sampleRate = c.sampleRate;
+            sampleLimit = c.sampleLimit;
+            sampleRules = c.sampleRules;
+            sampler = c.sampler;
+            paramMode = c.paramMode;
+            captureBody = c.captureBody;
+            bodyLimit = c.bodyLimit;
+            captureResponseBody = c.captureResponseBody;
+            slowClientThreshold = c.slowClientThreshold;
+            slowUploadThreshold = c.slowUploadThreshold;
+            filterEngine = c.filterEngine;
+            paramMatcher = c.paramMatcher;
+            cookieMatcher = c.cookieMatcher;
+            requestHeaderMatcher = c.requestHeaderMatcher;
+            responseHeaderMatcher = c.responseHeaderMatcher;
+        }
+
+        DumperConfig build() {
+            return new DumperConfig(this);
+        }
+    }
+
+    /**
+     * Test the master switch.  If this is false, the dumper does nothing
+     * at all; requests are neither dumped nor aggregated.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean isDump() {
+        return dump;
+    }
+
+    public boolean isAggregate() {
+        return aggregate;
+    }
+
+    public boolean isSingleRecord() {
+        return singleRecord;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    /**
+     * Test if each record is rendered as a single JSON object.
+     */
+    public boolean isJson() {
+        return format.equals(RequestDumper.FORMAT_JSON);
+    }
+
+    /**
+     * Test if each record is written in the binary dump format.
+     */
+    public boolean isBinary() {
+        return format.equals(RequestDumper.FORMAT_BINARY);
+    }
+
+    /**
+     * Test if records are rendered in the traditional multi-line layout.
+     */
+    public boolean isText() {
+        return format.equals(RequestDumper.FORMAT_TEXT);
+    }
+
+    public boolean isAsync() {
+        return async;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    public boolean isBlockWhenFull() {
+        return blockWhenFull;
+    }
+
+    public boolean isFailuresOnly() {
+        return failuresOnly;
+    }
+
+    public int getFailureStatus() {
+        return failureStatus;
+    }
+
+    public long getSlowThreshold() {
+        return slowThreshold;
+    }
+
+    public boolean isSplitTimings() {
+        return splitTimings;
+    }
+
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getSampleLimit() {
+        return sampleLimit;
+    }
+
+    public String getSampleRules() {
+        return sampleRules;
+    }
+
+    public String getParamMode() {
+        return paramMode;
+    }
+
+    public boolean isCaptureBody() {
+        return captureBody;
+    }
+
+    public int getBodyLimit() {
+        return bodyLimit;
+    }
+
+    public boolean isCaptureResponseBody() {
+        return captureResponseBody;
+    }
+
+    public long getSlowClientThreshold() {
+        return slowClientThreshold;
+    }
+
+    public long getSlowUploadThreshold() {
+        return slowUploadThreshold;
+    }
+
+    public String getFilterEngine() {
+        return filterEngine;
+    }
+
+    /**
+     * Get the matcher for the names of parameters to be obscured, or null.
+     */
+    public NameMatcher getParamMatcher() {
+        return paramMatcher;
+    }
+
+    /**
+     * Get the matcher for the names of cookies to be obscured, or null.
+     */
+    public NameMatcher getCookieMatcher() {
+        return cookieMatcher;
+    }
+
+    /**
+     * Get the matcher for the names of request headers to be obscured,
+     * or null.
+     */
+    public NameMatcher getRequestHeaderMatcher() {
+        return requestHeaderMatcher;
+    }
+
+    /**
+     * Get the matcher for the names of response headers to be obscured,
+     * or null.
+     */
+    public NameMatcher getResponseHeaderMatcher() {
+        return responseHeaderMatcher;
+    }
+
+    /**
+     * Decide whether the current request should be dumped.  This must be
+     * called before anything is captured from the request.
+     *
+     * @param request the request, or null if it is not an HTTP request.
+     */
+    public boolean isSampled(HttpServletRequest request) {
+        return sampler == null || sampler.sample(request);
+    }
+
+    /**
+     * Decide if a request should be flagged as having a slow client.  This
+     * is the case if the time blocked writing the response is at least the
+     * slow client threshold, and more than half of the request's latency.
+     *
+     * @param writeNanos the time blocked writing, in nanoseconds.
+     * @param nanos the request's latency, in nanoseconds.
+     */
+    public boolean isSlowClient(long writeNanos, long nanos) {
+        return slowClientThreshold > 0 &&
+                writeNanos >= slowClientThreshold * 1000000L &&
+                writeNanos * 2 > nanos;
+    }
+
+    /**
+     * Decide if a request should be flagged as a slow upload.  This is the
+     * case if the time blocked reading the request body is at least the
+     * slow upload threshold, and more than half of the request's latency.
+     *
+     * @param readNanos the time blocked reading, in nanoseconds.
+     * @param nanos the request's latency, in nanoseconds.
+     */
+    public boolean isSlowUpload(long readNanos, long nanos) {
+        return slowUploadThreshold > 0 &&
+                readNanos >= slowUploadThreshold * 1000000L &&
+                readNanos * 2 > nanos;
+    }
+}
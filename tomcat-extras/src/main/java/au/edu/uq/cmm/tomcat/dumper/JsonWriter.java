@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.edu.uq.cmm.tomcat.dumper;
+
+
+/**
+ * <p>Minimal streaming JSON string encoding, appending straight into the
+ * caller's buffer.  Quotes, backslashes and control characters are escaped,
+ * as are U+2028 and U+2029 (which some JavaScript-based log tools treat as
+ * line terminators), so an encoded value never spans lines.</p>
+ *
+ * @author Stephen Crawley
+ */
+final class JsonWriter {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private JsonWriter() {
+    }
+
+    /**
+     * Append a string as a JSON string literal, or <code>null</code> if
+     * the string is null.
+     */
+    static void appendString(StringBuilder sb, String str) {
+        if (str == null) {
+            sb.append("null");
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < str.length(); i++) {
+            appendChar(sb, str.charAt(i));
+        }
+        sb.append('"');
+    }
+
+    /**
+     * Append part of a character array as a JSON string literal.
+     */
+    static void appendString(StringBuilder sb, char[] buf, int offset,
+            int length) {
+        sb.append('"');
+        for (int i = offset; i < offset + length; i++) {
+            appendChar(sb, buf[i]);
+        }
+        sb.append('"');
+    }
+
+    private static void appendChar(StringBuilder sb, char ch) {
+        switch (ch) {
+        case '"':
+            sb.append("\\\"");
+            break;
+        case '\\':
+            sb.append("\\\\");
+            break;
+        case '\n':
+            sb.append("\\n");
+            break;
+        case '\r':
+            sb.append("\\r");
+            break;
+        case '\t':
+            sb.append("\\t");
+            break;
+        default:
+            if (ch < 0x20 || ch == 0x2028 || ch == 0x2029) {
+                sb.append('\\').append('u');
+                sb.append(HEX[ch >> 12]).append(HEX[(ch >> 8) & 0xf]);
+                sb.append(HEX[(ch >> 4) & 0xf]).append(HEX[ch & 0xf]);
+            } else {
+                sb.append(ch);
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.edu.uq.cmm.tomcat.dumper;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.juli.logging.Log;
+
+
+/**
+ * <p>Aggregates request latencies, times to first byte and response sizes
+ * into {@link RouteStats} keyed by context path, servlet path, request
+ * method and response status class, and registers each one as an MBean
+ * named
+ * <code>au.edu.uq.cmm.tomcat:type=RequestLatency,dumper=...,context=...,
+ * servlet=...,method=...,status=...</code>.</p>
+ *
+ * <p>The lookup is done with nested maps and arrays rather than a composite
+ * key, so that recording a latency doesn't allocate.  The number of distinct
+ * context path / servlet path pairs is bounded; requests beyond the limit
+ * are aggregated under the context path "(other)".  (Requests mapped to a
+ * default servlet have a servlet path for every distinct URI.)</p>
+ *
+ * @author Stephen Crawley
+ */
+final class LatencyAggregator {
+
+    static final String DOMAIN = "au.edu.uq.cmm.tomcat";
+
+    private static final int MAX_ROUTES = 1000;
+    private static final String OTHER = "(other)";
+
+    private static final String[] METHODS = {
+        "GET", "POST", "PUT", "DELETE", "HEAD", "OPTIONS", "PATCH", "TRACE",
+        "OTHER"
+    };
+    private static final String[] STATUS_CLASSES = {
+        "other", "1xx", "2xx", "3xx", "4xx", "5xx"
+    };
+
+    private final String name;
+    private final Log log;
+    private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    private final ConcurrentMap<String, ConcurrentMap<String, Route>> routes =
+            new ConcurrentHashMap<String, ConcurrentMap<String, Route>>();
+    private final AtomicInteger routeCount = new AtomicInteger();
+    private final List<ObjectName> registered = new ArrayList<ObjectName>();
+    private volatile boolean closed;
+
+    LatencyAggregator(String name, Log log) {
+        this.name = name;
+        this.log = log;
+    }
+
+    /**
+     * Record the latency, time to first byte and response size of a request.
+     *
+     * @param contextPath the context path, or null
+     * @param servletPath the servlet path, or null
+     * @param method the request method, or null
+     * @param status the response status, or zero if not known
+     * @param nanos the latency in nanoseconds
+     * @param ttfbNanos the time to first byte in nanoseconds, or -1 if 
+     *     not known
+     * @param bytes the response body size, or -1 if not known
+     * @param flags the request's flags
+     */
+    void record(String contextPath, String servletPath, String method,
+            int status, long nanos, long ttfbNanos, long bytes, int flags) {
+        Route route = getRoute(contextPath == null ? "" : contextPath,
+                servletPath == null ? "" : servletPath);
+        int statusClass = status / 100;
+        if (statusClass < 0 || statusClass >= STATUS_CLASSES.length) {
+            statusClass = 0;
+        }
+        int index = methodIndex(method) * STATUS_CLASSES.length + statusClass;
+        RouteStats stats = route.stats.get(index);
+        if (stats == null) {
+            stats = new RouteStats();
+            if (route.stats.compareAndSet(index, null, stats)) {
+                register(route, METHODS[index / STATUS_CLASSES.length],
+                        STATUS_CLASSES[statusClass], stats);
+            } else {
+                stats = route.stats.get(index);
+            }
+        }
+        stats.record(nanos, ttfbNanos, bytes, flags);
+    }
+
+    /**
+     * Unregister all of the stats MBeans.
+     */
+    void close() {
+        synchronized (registered) {
+            closed = true;
+            for (ObjectName oname : registered) {
+                try {
+                    server.unregisterMBean(oname);
+                } catch (Exception ex) {
+                    log.warn("Cannot unregister MBean " + oname, ex);
+                }
+            }
+            registered.clear();
+        }
+    }
+
+    private Route getRoute(String contextPath, String servletPath) {
+        ConcurrentMap<String, Route> servlets = routes.get(contextPath);
+        if (servlets != null) {
+            Route route = servlets.get(servletPath);
+            if (route != null) {
+                return route;
+            }
+        }
+        if (routeCount.get() >= MAX_ROUTES) {
+            contextPath = OTHER;
+            servletPath = "";
+            servlets = routes.get(contextPath);
+        }
+        if (servlets == null) {
+            ConcurrentMap<String, Route> fresh =
+                    new ConcurrentHashMap<String, Route>();
+            servlets = routes.putIfAbsent(contextPath, fresh);
+            if (servlets == null) {
+                servlets = fresh;
+            }
+        }
+        Route route = servlets.get(servletPath);
+        if (route == null) {
+            Route fresh = new Route(contextPath, servletPath);
+            route = servlets.putIfAbsent(servletPath, fresh);
+            if (route == null) {
+                routeCount.incrementAndGet();
+                route = fresh;
+            }
+        }
+        return route;
+    }
+
+    private void register(Route route, String method, String statusClass,
+            RouteStats stats) {
+        synchronized (registered) {
+            if (closed) {
+                return;
+            }
+            try {
+                ObjectName oname = new ObjectName(DOMAIN +
+                        ":type=RequestLatency" +
+                        ",dumper=" + ObjectName.quote(name) +
+                        ",context=" + ObjectName.quote(route.contextPath) +
+                        ",servlet=" + ObjectName.quote(route.servletPath) +
+                        ",method=" + method + ",status=" + statusClass);
+                server.registerMBean(stats, oname);
+                registered.add(oname);
+            } catch (Exception ex) {
+                log.warn("Cannot register route stats MBean", ex);
+            }
+        }
+    }
+
+    private static int methodIndex(String method) {
+        if (method != null) {
+            for (int i = 0; i < METHODS.length - 1; i++) {
+                if (METHODS[i].equals(method)) {
+                    return i;
+                }
+            }
+        }
+        return METHODS.length - 1;
+    }
+
+    private static final class Route {
+        private final String contextPath;
+        private final String servletPath;
+        private final AtomicReferenceArray<RouteStats> stats =
+                new AtomicReferenceArray<RouteStats>(
+                        METHODS.length * STATUS_CLASSES.length);
+
+        private Route(String contextPath, String servletPath) {
+            this.contextPath = contextPath;
+            this.servletPath = servletPath;
+        }
+    }
+}
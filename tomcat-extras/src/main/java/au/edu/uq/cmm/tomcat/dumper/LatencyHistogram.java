@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.edu.uq.cmm.tomcat.dumper;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * <p>A fixed-size, lock-free latency histogram in the style of
+ * HdrHistogram.  Latencies are recorded in microseconds, in log-linear
+ * buckets: each power of two range is divided into 16 equal sub-buckets,
+ * so a recorded value is accurate to within about 6%.  Values up to
+ * 2<sup>36</sup> microseconds (about 19 hours) are recorded; larger values
+ * are clamped.</p>
+ *
+ * <p>Recording is a couple of atomic increments, and can be done
+ * concurrently by any number of threads.  The statistics are reported in
+ * milliseconds, and are computed by walking the buckets when they are 
+ * requested; they are consistent enough for monitoring purposes, but not
+ * a point-in-time snapshot.</p>
+ *
+ * @author Stephen Crawley
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+    private static final int MAX_MAGNITUDE = 36;
+    private static final long MAX_VALUE = (1L << MAX_MAGNITUDE) - 1;
+    private static final int BUCKETS =
+            bucketIndex(MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a latency.
+     *
+     * @param nanos the latency in nanoseconds.
+     */
+    public void record(long nanos) {
+        long micros = nanos / 1000;
+        if (micros < 0) {
+            micros = 0;
+        } else if (micros > MAX_VALUE) {
+            micros = MAX_VALUE;
+        }
+        counts.incrementAndGet(bucketIndex(micros));
+        total.incrementAndGet();
+        sum.addAndGet(micros);
+        long m = max.get();
+        while (micros > m && !max.compareAndSet(m, micros)) {
+            m = max.get();
+        }
+    }
+
+    public long getCount() {
+        return total.get();
+    }
+
+    public double getMean() {
+        long n = total.get();
+        return n == 0 ? 0.0 : (sum.get() / (double) n) / 1000.0;
+    }
+
+    public double getMax() {
+        return max.get() / 1000.0;
+    }
+
+    public double getP50() {
+        return getPercentile(50.0);
+    }
+
+    public double getP90() {
+        return getPercentile(90.0);
+    }
+
+    public double getP99() {
+        return getPercentile(99.0);
+    }
+
+    public double getP999() {
+        return getPercentile(99.9);
+    }
+
+    /**
+     * Get the latency at a given percentile, in milliseconds.  This is the
+     * highest value that is equivalent (to within the histogram's precision)
+     * to the recorded value at that percentile.
+     */
+    public double getPercentile(double percentile) {
+        long n = total.get();
+        if (n == 0) {
+            return 0.0;
+        }
+        long target = (long) Math.ceil(n * percentile / 100.0);
+        if (target < 1) {
+            target = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestEquivalent(i), max.get()) / 1000.0;
+            }
+        }
+        return max.get() / 1000.0;
+    }
+
+    static int bucketIndex(long micros) {
+        if (micros < SUB_BUCKET_COUNT) {
+            return (int) micros;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(micros);
+        int shift = magnitude - (SUB_BUCKET_BITS - 1);
+        return shift * SUB_BUCKET_HALF + (int) (micros >>> shift);
+    }
+
+    static long highestEquivalent(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_HALF - 1;
+        long lowest = ((long) (index - shift * SUB_BUCKET_HALF)) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
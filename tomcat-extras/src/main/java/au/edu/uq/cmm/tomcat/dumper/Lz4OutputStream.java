@@ -0,0 +1,238 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.edu.uq.cmm.tomcat.dumper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * <p>Writes data in the LZ4 frame format, so that it can be decompressed
+ * with the standard <code>lz4</code> tool.  The data is split into
+ * independent 64 KiB blocks, and each block is compressed with a simple
+ * greedy, single-probe matcher.  This trades compression ratio for speed:
+ * it is several times faster than gzip, which matters when compressing
+ * dumps from a busy server.  Blocks that don't compress are stored as is.
+ * Block and content checksums are not written.</p>
+ *
+ * @author Stephen Crawley
+ */
+final class Lz4OutputStream extends OutputStream {
+
+    private static final int MAGIC = 0x184D2204;
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int HASH_BITS = 12;
+    private static final int MAX_OFFSET = 65535;
+
+    private final OutputStream out;
+    private final byte[] block = new byte[BLOCK_SIZE];
+    private final byte[] compressed =
+            new byte[4 + BLOCK_SIZE + BLOCK_SIZE / 255 + 16];
+    private final int[] table = new int[1 << HASH_BITS];
+    private int count;
+    private boolean closed;
+
+    Lz4OutputStream(OutputStream out) throws IOException {
+        this.out = out;
+        byte flg = 0x60;   // version 01, independent blocks
+        byte bd = 0x40;    // 64 KiB maximum block size
+        byte[] header = new byte[7];
+        putInt(header, 0, MAGIC);
+        header[4] = flg;
+        header[5] = bd;
+        header[6] = (byte) (xxh32(header, 4, 2) >>> 8);
+        out.write(header);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == BLOCK_SIZE) {
+            flushBlock();
+        }
+        block[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] buf, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (count == BLOCK_SIZE) {
+                flushBlock();
+            }
+            int n = Math.min(length, BLOCK_SIZE - count);
+            System.arraycopy(buf, offset, block, count, n);
+            count += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (count > 0) {
+                flushBlock();
+            }
+            byte[] endMark = new byte[4];
+            out.write(endMark);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void flushBlock() throws IOException {
+        int length = compress(block, count, compressed, 4);
+        if (length < count) {
+            putInt(compressed, 0, length);
+            out.write(compressed, 0, 4 + length);
+        } else {
+            putInt(compressed, 0, count | 0x80000000);
+            out.write(compressed, 0, 4);
+            out.write(block, 0, count);
+        }
+        count = 0;
+    }
+
+    /**
+     * Compress a block in the LZ4 block format.
+     *
+     * @return the compressed length.
+     */
+    private int compress(byte[] src, int length, byte[] dst, int dstStart) {
+        int d = dstStart;
+        int anchor = 0;
+        if (length > MF_LIMIT) {
+            // Table entries are positions plus one, so that zero is empty.
+            for (int i = 0; i < table.length; i++) {
+                table[i] = 0;
+            }
+            int limit = length - MF_LIMIT;
+            int matchLimit = length - LAST_LITERALS;
+            int i = 0;
+            while (i < limit) {
+                int seq = getInt(src, i);
+                int h = (seq * -1640531535) >>> (32 - HASH_BITS);
+                int ref = table[h] - 1;
+                table[h] = i + 1;
+                if (ref < 0 || i - ref > MAX_OFFSET ||
+                        getInt(src, ref) != seq) {
+                    i++;
+                    continue;
+                }
+                while (i > anchor && ref > 0 && src[i - 1] == src[ref - 1]) {
+                    i--;
+                    ref--;
+                }
+                int matchLength = MIN_MATCH;
+                while (i + matchLength < matchLimit &&
+                        src[i + matchLength] == src[ref + matchLength]) {
+                    matchLength++;
+                }
+                int token = d;
+                d = putSequence(src, anchor, i - anchor, dst, d);
+                int offset = i - ref;
+                dst[d++] = (byte) offset;
+                dst[d++] = (byte) (offset >>> 8);
+                int extra = matchLength - MIN_MATCH;
+                if (extra >= 15) {
+                    dst[token] |= 0x0f;
+                    d = putLength(extra - 15, dst, d);
+                } else {
+                    dst[token] |= (byte) extra;
+                }
+                i += matchLength;
+                anchor = i;
+            }
+        }
+        d = putSequence(src, anchor, length - anchor, dst, d);
+        return d - dstStart;
+    }
+
+    /**
+     * Write a sequence token with the literal length (the match length
+     * part is or'ed in later), followed by the literals.  The token is
+     * written at the starting position.
+     */
+    private static int putSequence(byte[] src, int from, int literals,
+            byte[] dst, int d) {
+        int token = d++;
+        if (literals >= 15) {
+            dst[token] = (byte) 0xf0;
+            d = putLength(literals - 15, dst, d);
+        } else {
+            dst[token] = (byte) (literals << 4);
+        }
+        System.arraycopy(src, from, dst, d, literals);
+        return d + literals;
+    }
+
+    private static int putLength(int length, byte[] dst, int d) {
+        while (length >= 255) {
+            dst[d++] = (byte) 255;
+            length -= 255;
+        }
+        dst[d++] = (byte) length;
+        return d;
+    }
+
+    private static int getInt(byte[] buf, int pos) {
+        return (buf[pos] & 0xff) | (buf[pos + 1] & 0xff) << 8 |
+                (buf[pos + 2] & 0xff) << 16 | (buf[pos + 3] & 0xff) << 24;
+    }
+
+    private static void putInt(byte[] buf, int pos, int value) {
+        buf[pos] = (byte) value;
+        buf[pos + 1] = (byte) (value >>> 8);
+        buf[pos + 2] = (byte) (value >>> 16);
+        buf[pos + 3] = (byte) (value >>> 24);
+    }
+
+    /**
+     * XXH32 with a zero seed, for inputs shorter than 16 bytes; which is
+     * all that the frame header checksum needs.
+     */
+    static int xxh32(byte[] buf, int offset, int length) {
+        final int prime1 = 0x9E3779B1;
+        final int prime2 = 0x85EBCA77;
+        final int prime3 = 0xC2B2AE3D;
+        final int prime4 = 0x27D4EB2F;
+        final int prime5 = 0x165667B1;
+        int h = prime5 + length;
+        int i = offset;
+        int end = offset + length;
+        for (; i + 4 <= end; i += 4) {
+            h += getInt(buf, i) * prime3;
+            h = Integer.rotateLeft(h, 17) * prime4;
+        }
+        for (; i < end; i++) {
+            h += (buf[i] & 0xff) * prime5;
+            h = Integer.rotateLeft(h, 11) * prime1;
+        }
+        h ^= h >>> 15;
+        h *= prime2;
+        h ^= h >>> 13;
+        h *= prime3;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.edu.uq.cmm.tomcat.dumper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.juli.logging.Log;
+
+
+/**
+ * <p>Appends encoded records to a series of pre-sized, memory-mapped segment
+ * files.  A writer claims space in the current segment by atomically
+ * advancing the segment's write offset, and then copies its bytes into the
+ * mapping; so any number of request threads can write at once without
+ * taking a lock.  A lock is only taken to roll over to a new segment,
+ * which happens when the current one is full, when it has been open for
+ * the segment interval, or when the output format changes.</p>
+ *
+ * <p>Segment files are named by a {@link SegmentNamer}.  A binary segment
+ * starts with a section header, and its records are written by encoders without a dictionary,
+ * using the base time of this file's header.  When a segment has been
+ * retired and the last writer has finished with it, it is trimmed to the
+ * bytes actually written, and handed to the compressor if there is one.
+ * If the server crashes, a segment is left with a zero-filled tail.</p>
+ *
+ * <p>Java has no supported way to unmap a file, and some platforms 
+ * (notably Windows) won't truncate or delete a file while it is mapped.
+ * So when a segment is finished its mapping is released explicitly if the
+ * JVM allows it (see {@link #unmap}), and otherwise left for the garbage
+ * collector.  If the segment still can't be trimmed, only the bytes that
+ * were written are compressed; but the uncompressed segment keeps its
+ * zero-filled tail, and may not be deleted until the mapping is
+ * collected.</p>
+ *
+ * @author Stephen Crawley
+ */
+final class MappedDumpFile {
+
+    /**
+     * The default segment size: 64 MiB.
+     */
+    static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+
+    /**
+     * Each thread's view of the last segment it wrote to.  A view has its
+     * own position, so writers don't interfere with each other; and it is
+     * kept rather than duplicating the mapping for every write.  (Where
+     * the JVM doesn't let us unmap a retired segment, this may keep it
+     * mapped until the thread next writes.)
+     */
+    private static final ThreadLocal<View> views = new ThreadLocal<View>() {
+        @Override
+        protected View initialValue() {
+            return new View();
+        }
+    };
+
+    private final SegmentNamer namer;
+    private final int segmentSize;
+    private final long segmentInterval;
+    private final Log log;
+    private final SegmentCompressor compressor;
+    private final byte[] header;
+    private final long baseMillis;
+    private final long baseNanos;
+
+    private volatile Segment current;
+    private volatile boolean closed;
+
+    /**
+     * @param pathname the pathname that segment file names are based on.
+     * @param segmentSize the size of each segment in bytes.
+     * @param segmentInterval the maximum time that a segment is written to,
+     *     in milliseconds, or zero for no limit.
+     * @param log the logger for reporting problems with retired segments.
+     * @param compressor the compressor for retired segments, or null.
+     */
+    MappedDumpFile(String pathname, int segmentSize, long segmentInterval,
+            Log log, SegmentCompressor compressor) {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("segmentSize must be positive");
+        }
+        this.namer = new SegmentNamer(pathname);
+        this.segmentSize = segmentSize;
+        this.segmentInterval = segmentInterval;
+        this.log = log;
+        this.compressor = compressor;
+        BinaryDumpEncoder encoder = new BinaryDumpEncoder();
+        encoder.startSection();
+        this.header = Arrays.copyOfRange(encoder.buffer(), encoder.offset(),
+                encoder.offset() + encoder.length());
+        this.baseMillis = encoder.getBaseMillis();
+        this.baseNanos = encoder.getBaseNanos();
+    }
+
+    String getPathname() {
+        return namer.getPathname();
+    }
+
+    /**
+     * Get the base time that binary records must be encoded against, in
+     * milliseconds since the epoch.
+     */
+    long getBaseMillis() {
+        return baseMillis;
+    }
+
+    /**
+     * Get the base time that binary records must be encoded against, as
+     * a {@link System#nanoTime()} value.
+     */
+    long getBaseNanos() {
+        return baseNanos;
+    }
+
+    /**
+     * Append an encoded record.
+     *
+     * @param format the record's output format.
+     * @throws IOException if a new segment file can't be created, or the
+     *     file has been closed.
+     */
+    void write(byte[] buf, int offset, int length, String format)
+            throws IOException {
+        while (true) {
+            Segment s = current;
+            if (s != null && s.format.equals(format) &&
+                    (segmentInterval <= 0 ||
+                    System.currentTimeMillis() < s.deadline)) {
+                int pos = s.reserve(length);
+                if (pos >= 0) {
+                    try {
+                        s.put(pos, buf, offset, length);
+                    } finally {
+                        s.release();
+                    }
+                    return;
+                }
+            }
+            roll(s, format, length);
+        }
+    }
+
+    /**
+     * Retire the current segment.  Writers that have already claimed space
+     * in it finish their writes, and later writes fail.
+     */
+    synchronized void close() {
+        closed = true;
+        Segment s = current;
+        current = null;
+        if (s != null) {
+            s.retire();
+        }
+    }
+
+    /**
+     * Replace a segment that can't take a record, unless another writer
+     * has already done so.
+     */
+    private synchronized void roll(Segment old, String format, int length)
+            throws IOException {
+        if (closed) {
+            throw new IOException(
+                    "Dump file " + namer.getPathname() + " is closed");
+        }
+        if (current != old) {
+            return;
+        }
+        current = newSegment(format, length);
+        if (old != null) {
+            old.retire();
+        }
+    }
+
+    private Segment newSegment(String format, int length) throws IOException {
+        boolean binary = format.equals(RequestDumper.FORMAT_BINARY);
+        File file = namer.next(format);
+        int start = binary ? header.length : 0;
+        int capacity = (int) Math.min(Integer.MAX_VALUE,
+                Math.max(segmentSize, (long) start + length));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        MappedByteBuffer buffer;
+        try {
+            raf.setLength(capacity);
+            buffer = raf.getChannel().map(
+                    FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } catch (IOException ex) {
+            raf.close();
+            throw ex;
+        }
+        if (binary) {
+            buffer.put(header);
+        }
+        long deadline = System.currentTimeMillis() + segmentInterval;
+        return new Segment(file, raf, buffer, format, start, deadline);
+    }
+
+    /**
+     * Unmap a buffer straight away if the JVM lets us; i.e. using
+     * <code>sun.misc.Unsafe.invokeCleaner</code> on Java 9 and later, or
+     * the buffer's cleaner on Java 8.  The buffer must not be used again.
+     * If neither works, the mapping is released when the buffer is 
+     * garbage collected.
+     */
+    static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = 
+                    unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (Exception ex) {
+            // Not Java 9 or later; try the Java 8 way.
+        }
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception ex) {
+            // Leave it to the garbage collector.
+        }
+    }
+
+    /**
+     * A segment file and its mapping.  The number of writers that may be
+     * copying into the mapping is counted, so that the segment is only
+     * trimmed and closed once they have all finished.
+     */
+    private final class Segment {
+        final File file;
+        final RandomAccessFile raf;
+        final String format;
+        final long deadline;
+        final int capacity;
+        final AtomicInteger position;
+        final AtomicInteger pending = new AtomicInteger();
+        final AtomicBoolean finished = new AtomicBoolean();
+        volatile boolean retired;
+        // Nulled by finish(), which only runs once no writer can use it.
+        MappedByteBuffer buffer;
+
+        Segment(File file, RandomAccessFile raf, MappedByteBuffer buffer,
+                String format, int start, long deadline) {
+            this.file = file;
+            this.raf = raf;
+            this.buffer = buffer;
+            this.format = format;
+            this.deadline = deadline;
+            this.capacity = buffer.capacity();
+            this.position = new AtomicInteger(start);
+        }
+
+        /**
+         * Claim space for a record.  On success, the caller must copy the
+         * record in and then call {@link #release()}.
+         *
+         * @return the offset of the space, or -1 if the segment has been
+         *     retired or doesn't have room.
+         */
+        int reserve(int length) {
+            // Register as a writer before checking 'retired', so that
+            // retire() either sees us or we see it.
+            pending.incrementAndGet();
+            if (!retired) {
+                while (true) {
+                    int pos = position.get();
+                    if ((long) pos + length > capacity) {
+                        break;
+                    }
+                    if (position.compareAndSet(pos, pos + length)) {
+                        return pos;
+                    }
+                }
+            }
+            release();
+            return -1;
+        }
+
+        void put(int pos, byte[] buf, int offset, int length) {
+            View view = views.get();
+            if (view.segment != this) {
+                view.segment = this;
+                view.buffer = buffer.duplicate();
+            }
+            view.buffer.position(pos);
+            view.buffer.put(buf, offset, length);
+        }
+
+        void release() {
+            if (pending.decrementAndGet() == 0 && retired) {
+                finish();
+            }
+        }
+
+        void retire() {
+            retired = true;
+            if (pending.get() == 0) {
+                finish();
+            }
+        }
+
+        /**
+         * Release the mapping, and trim and close the file.  The dirty
+         * pages are left for the operating system to write back, rather 
+         * than forcing them out on the thread that happens to be the last
+         * writer.
+         */
+        private void finish() {
+            if (!finished.compareAndSet(false, true)) {
+                return;
+            }
+            MappedByteBuffer b = buffer;
+            buffer = null;
+            unmap(b);
+            int length = position.get();
+            try {
+                try {
+                    raf.getChannel().truncate(length);
+                } finally {
+                    raf.close();
+                }
+            } catch (IOException ex) {
+                log.warn("Cannot trim request dump segment " + file, ex);
+            }
+            if (compressor != null) {
+                compressor.submit(file, length);
+            }
+        }
+    }
+
+    private static final class View {
+        Segment segment;
+        ByteBuffer buffer;
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.edu.uq.cmm.tomcat.dumper;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+
+/**
+ * <p>A compiled form of a redaction regex, for deciding which header,
+ * cookie and parameter names have their values obscured.  The result is
+ * the same as <code>Pattern.compile(regex).matcher(name).matches()</code>,
+ * but it is usually much cheaper to compute.  (The one exception is that
+ * the "dfa" engine matches UTF-16 code units rather than code points, so
+ * <code>.</code> or a negated character class matches each half of a
+ * surrogate pair separately.  Header, cookie and parameter names are very
+ * rarely outside the Basic Multilingual Plane.)</p>
+ *
+ * <p>The regex is split into its top-level alternatives.  Alternatives
+ * that are plain literals (e.g. <code>password</code>) go into a hash set
+ * of exact names, and alternatives that are a literal followed by
+ * <code>.*</code> become literal prefixes.  Any remaining alternatives are
+ * combined into a residual regex, and the residual regex's decisions are
+ * memoised per distinct name in a bounded cache.  Since the set of names
+ * seen in real traffic is small, the steady state does no regex matching
+ * at all.</p>
+ *
+ * <p>The residual regex is matched using either <code>java.util.regex</code>
+ * (the "regex" engine) or a {@link DfaMatcher} (the "dfa" engine).  The
+ * latter guarantees matching in linear time, but rejects regexes that use
+ * features that need backtracking.</p>
+ *
+ * @author Stephen Crawley
+ */
+public final class NameMatcher {
+
+    /**
+     * The memo cache is cleared when it reaches this size, so that a
+     * stream of distinct junk names can't make it grow without bound.
+     */
+    private static final int MAX_CACHED = 4096;
+
+    /**
+     * Names longer than this are not memoised; they are unlikely to recur,
+     * and we don't want to hold onto them.
+     */
+    private static final int MAX_CACHED_LENGTH = 256;
+
+    public static final String REGEX_ENGINE = "regex";
+    public static final String DFA_ENGINE = "dfa";
+
+    private static final String META_CHARS = "\\^$.|?*+()[]{}";
+
+    private final String regex;
+    private final Set<String> exact = new HashSet<String>();
+    private final String[] prefixes;
+    private final String engine;
+    private final Pattern residual;
+    private final DfaMatcher dfaResidual;
+    private final ConcurrentHashMap<String, Boolean> cache;
+
+    private NameMatcher(String regex, String engine) {
+        this.regex = regex;
+        this.engine = engine;
+        List<String> prefixList = new ArrayList<String>();
+        StringBuilder others = new StringBuilder();
+        for (String alternative : splitAlternatives(regex)) {
+            String literal;
+            if ((literal = literal(alternative)) != null) {
+                exact.add(literal);
+            } else if (alternative.endsWith(".*") &&
+                    (literal = literal(alternative.substring(
+                            0, alternative.length() - 2))) != null) {
+                prefixList.add(literal);
+            } else {
+                if (others.length() > 0) {
+                    others.append('|');
+                }
+                others.append(alternative);
+            }
+        }
+        this.prefixes = prefixList.toArray(new String[prefixList.size()]);
+        if (others.length() == 0) {
+            this.residual = null;
+            this.dfaResidual = null;
+            this.cache = null;
+        } else if (engine.equals(DFA_ENGINE)) {
+            this.residual = null;
+            this.dfaResidual = DfaMatcher.compile(others.toString());
+            this.cache = new ConcurrentHashMap<String, Boolean>();
+        } else {
+            this.residual = Pattern.compile(others.toString());
+            this.dfaResidual = null;
+            this.cache = new ConcurrentHashMap<String, Boolean>();
+        }
+    }
+
+    /**
+     * Compile a redaction regex using the "regex" engine.
+     *
+     * @param regex the regex, in {@link Pattern} syntax.
+     * @return the matcher.
+     * @throws java.util.regex.PatternSyntaxException if the regex is
+     *     not valid.
+     */
+    public static NameMatcher compile(String regex) {
+        return compile(regex, REGEX_ENGINE);
+    }
+
+    /**
+     * Compile a redaction regex.
+     *
+     * @param regex the regex, in {@link Pattern} syntax.
+     * @param engine the matching engine; "regex" or "dfa".
+     * @return the matcher.
+     * @throws IllegalArgumentException if the regex is not valid, if it 
+     *     can't be handled by the engine, or if the engine is unknown.
+     */
+    public static NameMatcher compile(String regex, String engine) {
+        // Validate the regex as a whole, so that we report syntax errors
+        // in the same way as before.
+        if (engine.equals(REGEX_ENGINE)) {
+            Pattern.compile(regex);
+        } else if (engine.equals(DFA_ENGINE)) {
+            DfaMatcher.compile(regex);
+        } else {
+            throw new IllegalArgumentException(
+                    "Unknown filter engine '" + engine + "'");
+        }
+        return new NameMatcher(regex, engine);
+    }
+
+    /**
+     * Check that an engine name is valid.
+     * 
+     * @throws IllegalArgumentException if it isn't.
+     */
+    public static String checkEngine(String engine) {
+        if (!engine.equals(REGEX_ENGINE) && !engine.equals(DFA_ENGINE)) {
+            throw new IllegalArgumentException(
+                    "Unknown filter engine '" + engine + "'");
+        }
+        return engine;
+    }
+
+    public String getEngine() {
+        return engine;
+    }
+
+    /**
+     * Test if a name matches the regex.
+     */
+    public boolean matches(String name) {
+        if (exact.contains(name)) {
+            return true;
+        }
+        for (int i = 0; i < prefixes.length; i++) {
+            if (name.startsWith(prefixes[i]) &&
+                    !hasLineTerminator(name, prefixes[i].length())) {
+                return true;
+            }
+        }
+        if (cache == null) {
+            return false;
+        }
+        Boolean res = cache.get(name);
+        if (res == null) {
+            boolean matched = residual != null ? 
+                    residual.matcher(name).matches() :
+                    dfaResidual.matches(name);
+            if (name.length() > MAX_CACHED_LENGTH) {
+                return matched;
+            }
+            res = Boolean.valueOf(matched);
+            if (cache.size() >= MAX_CACHED) {
+                cache.clear();
+            }
+            cache.put(name, res);
+        }
+        return res.booleanValue();
+    }
+
+    @Override
+    public String toString() {
+        return regex;
+    }
+
+    /**
+     * Split a regex into its top-level alternatives.  If the regex uses
+     * a construct that we don't want to reason about (quoting, or embedded
+     * flags which could apply across alternatives), the regex is returned
+     * as a single alternative.
+     */
+    private static List<String> splitAlternatives(String regex) {
+        List<String> res = new ArrayList<String>();
+        if (regex.contains("\\Q") || regex.contains("(?")) {
+            res.add(regex);
+            return res;
+        }
+        int depth = 0;
+        boolean inClass = false;
+        int start = 0;
+        for (int i = 0; i < regex.length(); i++) {
+            char ch = regex.charAt(i);
+            if (ch == '\\') {
+                i++;
+            } else if (inClass) {
+                if (ch == ']') {
+                    inClass = false;
+                }
+            } else if (ch == '[') {
+                inClass = true;
+            } else if (ch == '(') {
+                depth++;
+            } else if (ch == ')') {
+                depth--;
+            } else if (ch == '|' && depth == 0) {
+                res.add(regex.substring(start, i));
+                start = i + 1;
+            }
+        }
+        res.add(regex.substring(start));
+        return res;
+    }
+
+    /**
+     * If a regex fragment matches exactly one literal string, return
+     * the string.  Otherwise return null.
+     */
+    private static String literal(String fragment) {
+        StringBuilder sb = new StringBuilder(fragment.length());
+        for (int i = 0; i < fragment.length(); i++) {
+            char ch = fragment.charAt(i);
+            if (ch == '\\') {
+                if (i + 1 == fragment.length()) {
+                    return null;
+                }
+                char next = fragment.charAt(++i);
+                if (Character.isLetterOrDigit(next)) {
+                    // A character class like \d or an escape like \t
+                    return null;
+                }
+                sb.append(next);
+            } else if (META_CHARS.indexOf(ch) >= 0) {
+                return null;
+            } else {
+                sb.append(ch);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The "." in ".*" doesn't match line terminators, so a literal prefix
+     * only matches if the rest of the name doesn't contain any.
+     */
+    private static boolean hasLineTerminator(String name, int from) {
+        for (int i = from; i < name.length(); i++) {
+            char ch = name.charAt(i);
+            if (ch == '\n' || ch == '\r' || ch == '\u0085' ||
+                    ch == '\u2028' || ch == '\u2029') {
+                return true;
+            }
+        }
+        return false;
+    }
+}
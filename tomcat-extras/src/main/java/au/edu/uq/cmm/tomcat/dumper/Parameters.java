@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.edu.uq.cmm.tomcat.dumper;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * <p>Parsing of <code>application/x-www-form-urlencoded</code> parameters
+ * from a query string or a captured request body.  The dumpers use this
+ * so that they can log parameters without calling
+ * <code>getParameterNames()</code>, which makes the container read and
+ * parse the body of a form POST.</p>
+ *
+ * @author Stephen Crawley
+ */
+public final class Parameters {
+
+    /**
+     * The encoding that Tomcat uses for query strings by default.
+     */
+    public static final String DEFAULT_ENCODING = "ISO-8859-1";
+
+    private static final String FORM_CONTENT_TYPE =
+            "application/x-www-form-urlencoded";
+
+    private Parameters() {
+    }
+
+    /**
+     * Parse url-encoded parameters.
+     *
+     * @param encoded the parameters; e.g. a query string.  This may be null.
+     * @param encoding the character encoding of the escaped characters, or
+     *     null for the default encoding.
+     * @return a map from parameter names to their values, in the order that
+     *     the names first appear.
+     */
+    public static Map<String, List<String>> parse(String encoded,
+            String encoding) {
+        if (encoded == null || encoded.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        if (encoding == null) {
+            encoding = DEFAULT_ENCODING;
+        }
+        Map<String, List<String>> res =
+                new LinkedHashMap<String, List<String>>();
+        int start = 0;
+        while (start <= encoded.length()) {
+            int end = encoded.indexOf('&', start);
+            if (end < 0) {
+                end = encoded.length();
+            }
+            if (end > start) {
+                int eq = encoded.indexOf('=', start);
+                String name;
+                String value;
+                if (eq < 0 || eq > end) {
+                    name = decode(encoded.substring(start, end), encoding);
+                    value = "";
+                } else {
+                    name = decode(encoded.substring(start, eq), encoding);
+                    value = decode(encoded.substring(eq + 1, end), encoding);
+                }
+                List<String> values = res.get(name);
+                if (values == null) {
+                    values = new ArrayList<String>(1);
+                    res.put(name, values);
+                }
+                values.add(value);
+            }
+            start = end + 1;
+        }
+        return res;
+    }
+
+    /**
+     * Parse url-encoded parameters from a captured request body.
+     */
+    public static Map<String, List<String>> parse(byte[] body, int offset,
+            int length, String encoding) {
+        try {
+            return parse(new String(body, offset, length, DEFAULT_ENCODING),
+                    encoding);
+        } catch (UnsupportedEncodingException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    /**
+     * Test if a content type denotes an url-encoded form.
+     */
+    public static boolean isForm(String contentType) {
+        return contentType != null &&
+                contentType.regionMatches(true, 0, FORM_CONTENT_TYPE, 0,
+                        FORM_CONTENT_TYPE.length());
+    }
+
+    private static String decode(String str, String encoding) {
+        try {
+            return URLDecoder.decode(str, encoding);
+        } catch (IllegalArgumentException ex) {
+            // Malformed escape; show it as-is
+            return str;
+        } catch (UnsupportedEncodingException ex) {
+            return str;
+        }
+    }
+}
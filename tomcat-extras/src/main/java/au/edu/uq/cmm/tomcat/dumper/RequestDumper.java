@@ -0,0 +1,1563 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.edu.uq.cmm.tomcat.dumper;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.juli.logging.Log;
+
+
+/**
+ * <p>The machinery shared by the RequestDumperValve and RequestDumperFilter
+ * for turning captured {@link DumpRecord}s into log output.</p>
+ *
+ * <p>By default, each entry is logged as a separate message as soon as it
+ * is available; i.e. the pre-service entries are logged before the request
+ * is processed, and the post-service entries afterwards.  In "single record"
+ * mode, the entire dump is rendered into a reusable per-thread buffer and
+ * logged as one message after the request has been processed.  This keeps
+ * the lines for each request together, and means that the logger's handler
+ * lock is acquired once per request rather than once per line.</p>
+ *
+ * <p>In "json" format, each record is rendered as one JSON object on a single
+ * line (see {@link DumpRecord#formatJson}), and logged as one message after
+ * the request has been processed, as in "single record" mode.</p>
+ *
+ * <p>In "async" mode, the captured record is handed off to a background
+ * writer thread via a bounded ring buffer (see {@link AsyncDumpWriter}),
+ * and the writer thread formats and logs it as a single message.  The
+ * writer thread runs between calls to {@link #start(Log, String)} and
+ * {@link #stop()}; at other times the dump is logged synchronously.</p>
+ *
+ * <p>In "failures only" mode, the captured record is only logged if the
+ * request turns out to have failed; i.e. the request threw an exception,
+ * its response status was at least the failure status (500 by default),
+ * or it took longer than the slow threshold.  Nothing is formatted for
+ * requests that succeed, and the callers should skip capturing the
+ * post-service entries when {@link #isWanted} returns false.</p>
+ *
+ * <p>In "aggregate" mode, the latency, time to first byte and response size
+ * of every request are recorded in histograms that are published as MBeans
+ * (see {@link LatencyAggregator}).
+ * This can be combined with dumping, or used instead of it.  Like the async
+ * writer, the aggregator is only active between calls to 
+ * {@link #start(Log, String)} and {@link #stop()}.</p>
+ *
+ * <p>Dumping can be restricted to a sample of the requests; see
+ * {@link Sampler}.  The callers must call {@link #isSampled} before
+ * capturing anything, and skip the dump if it returns false.</p>
+ *
+ * <p>The settings are held in an immutable {@link DumperConfig} that is
+ * replaced whenever a setting is changed, so they can be changed safely while
+ * requests are being processed.  The callers should read the configuration
+ * once per request with {@link #getConfig()}, and pass it to
+ * {@link #begin(DumperConfig)}; the other methods then use the copy held by
+ * the record.  While the dumper is started, its settings are published as an
+ * MBean named <code>au.edu.uq.cmm.tomcat:type=RequestDumper,name=...</code>,
+ * so that dumping can be turned on or adjusted at runtime.  When the master
+ * "enabled" setting is false, the callers should pass requests straight
+ * through after reading the configuration, without touching anything
+ * else.</p>
+ *
+ * <p>The "parameter mode" determines how the callers capture request
+ * parameters.  In "all" mode (the default) they use 
+ * <code>getParameterNames()</code>, which makes the container read and parse
+ * the body of a form POST before the application sees it.  In "query" mode
+ * only the query string is parsed (see {@link Parameters}), so the body is
+ * left alone.  In "tee" mode the callers also parse the form parameters from
+ * whatever part of the body the application read, as captured by a bounded
+ * wrapper.  In "none" mode parameters are not captured.</p>
+ *
+ * @author Stephen Crawley
+ */
+public class RequestDumper implements RequestDumperMBean {
+
+    static final String LINE_SEPARATOR =
+            System.getProperty("line.separator");
+
+    /**
+     * Per-thread buffers larger than this are discarded after use, so that
+     * one unusually large request doesn't pin a lot of memory to a thread.
+     */
+    private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+
+    /**
+     * The default segment interval for the dump file: one hour.
+     */
+    private static final long DEFAULT_SEGMENT_INTERVAL = 3600000;
+
+    private static final ThreadLocal<DumpRecord> records =
+            new ThreadLocal<DumpRecord>() {
+        @Override
+        protected DumpRecord initialValue() {
+            return new DumpRecord();
+        }
+    };
+
+    private static final ThreadLocal<BinaryDumpEncoder> encoders =
+            new ThreadLocal<BinaryDumpEncoder>() {
+        @Override
+        protected BinaryDumpEncoder initialValue() {
+            return new BinaryDumpEncoder(false);
+        }
+    };
+
+    private static final ThreadLocal<StringBuilder> buffers =
+            new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(4096);
+        }
+    };
+
+    /**
+     * A one-entry cache for {@link #toString(Locale)}.  Most requests have
+     * the same locale, and <code>Locale.toString()</code> builds a new
+     * string each time.
+     */
+    private static volatile Object[] lastLocale = {null, "null"};
+
+    public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+    public static final int DEFAULT_BODY_LIMIT = 8192;
+
+    public static final long DEFAULT_SLOW_CLIENT_THRESHOLD = 1000;
+
+    /**
+     * Request flag: the request spent most of its time blocked writing
+     * the response to the client.
+     */
+    public static final int FLAG_SLOW_CLIENT = 1;
+
+    /**
+     * Request flag: the request spent most of its time blocked reading
+     * the request body from the client.
+     */
+    public static final int FLAG_SLOW_UPLOAD = 2;
+
+    public static final long DEFAULT_SLOW_UPLOAD_THRESHOLD = 1000;
+
+    /**
+     * Parameter mode: log all parameters, as reported by the request.
+     */
+    public static final String PARAMS_ALL = "all";
+
+    /**
+     * Parameter mode: log only the parameters in the query string.
+     */
+    public static final String PARAMS_QUERY = "query";
+
+    /**
+     * Parameter mode: log the query string parameters, and the form
+     * parameters from the part of the body that the application read.
+     */
+    public static final String PARAMS_TEE = "tee";
+
+    /**
+     * Parameter mode: don't log parameters.
+     */
+    public static final String PARAMS_NONE = "none";
+
+    /**
+     * Output format: the traditional multi-line text.
+     */
+    public static final String FORMAT_TEXT = "text";
+
+    /**
+     * Output format: one JSON object per request, on a single line.
+     */
+    public static final String FORMAT_JSON = "json";
+
+    /**
+     * Output format: the compact binary dump format, written to the binary
+     * dump file.  Use {@link DumpDecoder} to convert it to text or JSON.
+     */
+    public static final String FORMAT_BINARY = "binary";
+
+    /**
+     * Dump file compression: none.
+     */
+    public static final String COMPRESSION_NONE = "none";
+
+    /**
+     * Dump file compression: gzip.
+     */
+    public static final String COMPRESSION_GZIP = "gzip";
+
+    /**
+     * Dump file compression: the LZ4 frame format; faster than gzip, but
+     * with a lower compression ratio.
+     */
+    public static final String COMPRESSION_LZ4 = "lz4";
+
+    /**
+     * Dump file mode: request threads copy records straight into 
+     * memory-mapped segments.
+     */
+    public static final String DUMP_FILE_MAPPED = "mapped";
+
+    /**
+     * Dump file mode: the async writer thread writes records to the
+     * segments in batches, with one gathering write per batch.
+     */
+    public static final String DUMP_FILE_BATCHED = "batched";
+
+    /**
+     * Batched dump file sync policy: leave it to the operating system.
+     */
+    public static final String SYNC_NEVER = "never";
+
+    /**
+     * Batched dump file sync policy: sync at most once per sync interval.
+     */
+    public static final String SYNC_INTERVAL = "interval";
+
+    /**
+     * Batched dump file sync policy: sync after every batch.
+     */
+    public static final String SYNC_BATCH = "batch";
+
+    private final boolean withThreadNames;
+    private volatile DumperConfig config = new DumperConfig();
+    private volatile AsyncDumpWriter writer;
+    private volatile LatencyAggregator aggregator;
+    private ObjectName oname;
+    private String configFile;
+    private ConfigWatcher configWatcher;
+    private boolean started;
+
+    /**
+     * The names of the settings that are only used when the dumper is
+     * started.
+     */
+    static final String[] START_SETTINGS = {
+        "binaryFile", "dumpFile", "segmentSize", "segmentInterval",
+        "compression", "compressionThreads", "dumpFileMode", "batchSize",
+        "batchWindow", "syncPolicy", "syncInterval"
+    };
+
+    /**
+     * The logger passed to {@link #start(Log, String)}, for reporting
+     * problems while stopping.
+     */
+    private Log serviceLog;
+    private String binaryFile;
+    private volatile BinaryDumpFile binarySink;
+    private String dumpFile;
+    private int segmentSize = MappedDumpFile.DEFAULT_SEGMENT_SIZE;
+    private long segmentInterval = DEFAULT_SEGMENT_INTERVAL;
+    private volatile MappedDumpFile dumpSink;
+    private String compression = COMPRESSION_NONE;
+    private int compressionThreads = 
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private volatile SegmentCompressor compressor;
+    private String dumpFileMode = DUMP_FILE_MAPPED;
+    private int batchSize = 256;
+    private long batchWindow = 2;
+    private String syncPolicy = SYNC_INTERVAL;
+    private long syncInterval = 1000;
+    private volatile BatchedDumpFile batchSink;
+
+    /**
+     * While {@link #configure} is running, setters modify this instead of
+     * publishing a new snapshot.
+     */
+    private DumperConfig.Builder batch;
+
+    final AtomicLong written = new AtomicLong();
+    final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param withThreadNames if true, each output line is prefixed with
+     *     the name of the request thread.
+     */
+    public RequestDumper(boolean withThreadNames) {
+        this.withThreadNames = withThreadNames;
+    }
+
+    /**
+     * Get the current settings.  A request should call this once, and use
+     * the result throughout.
+     */
+    public DumperConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Make a builder from the current settings.  The caller must hold the
+     * dumper's lock, and publish the modified settings by calling 
+     * {@link #swap}.
+     */
+    private DumperConfig.Builder edit() {
+        return batch != null ? batch : new DumperConfig.Builder(config);
+    }
+
+    private void swap(DumperConfig.Builder c) {
+        if (batch == null) {
+            config = c.build();
+        }
+    }
+
+    /**
+     * Replace the settings with a base configuration overridden by a set of
+     * properties, as a single change.  The property names are the valve and
+     * filter parameter names.  If any property is invalid, nothing changes.
+     * The settings that are only used when the dumper is started (see
+     * {@link #START_SETTINGS}) are changed too, but if the dumper is already
+     * running they don't take effect until it is restarted.
+     * 
+     * @return the names of the start-only settings that have been changed
+     *     while the dumper is running.
+     * @throws IllegalArgumentException if a property is invalid.
+     */
+    public synchronized List<String> configure(
+            DumperConfig base, Properties props) {
+        Properties saved = getStartSettings();
+        batch = new DumperConfig.Builder(base);
+        try {
+            String engine = props.getProperty("filterEngine");
+            if (engine != null) {
+                setFilterEngine(engine.trim());
+            }
+            for (String name : props.stringPropertyNames()) {
+                configure(name, props.getProperty(name).trim());
+            }
+            config = batch.build();
+        } catch (RuntimeException ex) {
+            // The saved values are all valid, so this can't fail.
+            for (String name : START_SETTINGS) {
+                configure(name, saved.getProperty(name));
+            }
+            throw ex;
+        } finally {
+            batch = null;
+        }
+        List<String> changed = new ArrayList<String>();
+        if (started) {
+            Properties now = getStartSettings();
+            for (String name : START_SETTINGS) {
+                if (!now.getProperty(name).equals(saved.getProperty(name))) {
+                    changed.add(name);
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Get the current values of the start-only settings, as strings that
+     * {@link #configure(DumperConfig, Properties)} accepts.  An unset
+     * pathname is an empty string.
+     */
+    synchronized Properties getStartSettings() {
+        Properties props = new Properties();
+        props.setProperty("binaryFile", binaryFile == null ? "" : binaryFile);
+        props.setProperty("dumpFile", dumpFile == null ? "" : dumpFile);
+        props.setProperty("segmentSize", Integer.toString(segmentSize));
+        props.setProperty("segmentInterval", Long.toString(segmentInterval));
+        props.setProperty("compression", compression);
+        props.setProperty("compressionThreads", 
+                Integer.toString(compressionThreads));
+        props.setProperty("dumpFileMode", dumpFileMode);
+        props.setProperty("batchSize", Integer.toString(batchSize));
+        props.setProperty("batchWindow", Long.toString(batchWindow));
+        props.setProperty("syncPolicy", syncPolicy);
+        props.setProperty("syncInterval", Long.toString(syncInterval));
+        return props;
+    }
+
+    private void configure(String name, String value) {
+        if (name.equals("enabled")) {
+            setEnabled(Boolean.parseBoolean(value));
+        } else if (name.equals("dump")) {
+            setDump(Boolean.parseBoolean(value));
+        } else if (name.equals("aggregate")) {
+            setAggregate(Boolean.parseBoolean(value));
+        } else if (name.equals("singleRecord")) {
+            setSingleRecord(Boolean.parseBoolean(value));
+        } else if (name.equals("format")) {
+            setFormat(value);
+        } else if (name.equals("async")) {
+            setAsync(Boolean.parseBoolean(value));
+        } else if (name.equals("queueSize")) {
+            setQueueSize(Integer.parseInt(value));
+        } else if (name.equals("blockWhenFull")) {
+            setBlockWhenFull(Boolean.parseBoolean(value));
+        } else if (name.equals("failuresOnly")) {
+            setFailuresOnly(Boolean.parseBoolean(value));
+        } else if (name.equals("failureStatus")) {
+            setFailureStatus(Integer.parseInt(value));
+        } else if (name.equals("slowThreshold")) {
+            setSlowThreshold(Long.parseLong(value));
+        } else if (name.equals("splitTimings")) {
+            setSplitTimings(Boolean.parseBoolean(value));
+        } else if (name.equals("sampleRate")) {
+            setSampleRate(Double.parseDouble(value));
+        } else if (name.equals("sampleLimit")) {
+            setSampleLimit(Integer.parseInt(value));
+        } else if (name.equals("sampleRules")) {
+            setSampleRules(value);
+        } else if (name.equals("paramMode")) {
+            setParamMode(value);
+        } else if (name.equals("captureBody")) {
+            setCaptureBody(Boolean.parseBoolean(value));
+        } else if (name.equals("bodyLimit")) {
+            setBodyLimit(Integer.parseInt(value));
+        } else if (name.equals("captureResponseBody")) {
+            setCaptureResponseBody(Boolean.parseBoolean(value));
+        } else if (name.equals("slowClientThreshold")) {
+            setSlowClientThreshold(Long.parseLong(value));
+        } else if (name.equals("slowUploadThreshold")) {
+            setSlowUploadThreshold(Long.parseLong(value));
+        } else if (name.equals("paramFilter")) {
+            setParamFilter(value);
+        } else if (name.equals("cookieFilter")) {
+            setCookieFilter(value);
+        } else if (name.equals("requestHeaderFilter")) {
+            setRequestHeaderFilter(value);
+        } else if (name.equals("responseHeaderFilter")) {
+            setResponseHeaderFilter(value);
+        } else if (name.equals("binaryFile")) {
+            setBinaryFile(value);
+        } else if (name.equals("dumpFile")) {
+            setDumpFile(value);
+        } else if (name.equals("segmentSize")) {
+            setSegmentSize(Integer.parseInt(value));
+        } else if (name.equals("segmentInterval")) {
+            setSegmentInterval(Long.parseLong(value));
+        } else if (name.equals("compression")) {
+            setCompression(value);
+        } else if (name.equals("compressionThreads")) {
+            setCompressionThreads(Integer.parseInt(value));
+        } else if (name.equals("dumpFileMode")) {
+            setDumpFileMode(value);
+        } else if (name.equals("batchSize")) {
+            setBatchSize(Integer.parseInt(value));
+        } else if (name.equals("batchWindow")) {
+            setBatchWindow(Long.parseLong(value));
+        } else if (name.equals("syncPolicy")) {
+            setSyncPolicy(value);
+        } else if (name.equals("syncInterval")) {
+            setSyncInterval(Long.parseLong(value));
+        } else if (!name.equals("filterEngine") && 
+                !name.equals("configFile")) {
+            throw new IllegalArgumentException(
+                    "Unknown setting '" + name + "'");
+        }
+    }
+
+    /**
+     * Get the pathname of the settings file, or null if there isn't one.
+     */
+    public String getConfigFile() {
+        return configFile;
+    }
+
+    /**
+     * Set the pathname of a properties file to load the settings from when
+     * the dumper is started, and to watch for changes while it is running.
+     * A relative pathname is resolved against <code>catalina.base</code>.
+     * 
+     * @param configFile the pathname, or null or an empty string for none.
+     */
+    public synchronized void setConfigFile(String configFile) {
+        this.configFile = 
+                configFile == null || configFile.isEmpty() ? null : configFile;
+    }
+
+    /**
+     * Get the pathname of the binary dump file, or null if there isn't one.
+     */
+    public String getBinaryFile() {
+        return binaryFile;
+    }
+
+    /**
+     * Set the pathname of the file that records are appended to when the
+     * format is "binary".  The file is opened when the dumper is started.
+     * A relative pathname is resolved against <code>catalina.base</code>.
+     * If the format is "binary" but there is no file, records are logged
+     * as text.
+     * 
+     * @param binaryFile the pathname, or null or an empty string for none.
+     */
+    public synchronized void setBinaryFile(String binaryFile) {
+        this.binaryFile = 
+                binaryFile == null || binaryFile.isEmpty() ? null : binaryFile;
+    }
+
+    /**
+     * Get the pathname that dump file segment names are based on, or null
+     * if there isn't a dump file.
+     */
+    public String getDumpFile() {
+        return dumpFile;
+    }
+
+    /**
+     * Set the pathname that dump file segment names are based on.  If this
+     * is set, records are written to memory-mapped segment files in the 
+     * current output format, rather than to the log.  The dump file is 
+     * opened when the dumper is started.  A relative pathname is resolved 
+     * against <code>catalina.base</code>.
+     * 
+     * @param dumpFile the pathname, or null or an empty string for none.
+     */
+    public synchronized void setDumpFile(String dumpFile) {
+        this.dumpFile = 
+                dumpFile == null || dumpFile.isEmpty() ? null : dumpFile;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Set the size of each dump file segment in bytes.  This takes effect
+     * when the dumper is next started.
+     */
+    public synchronized void setSegmentSize(int segmentSize) {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("segmentSize must be positive");
+        }
+        this.segmentSize = segmentSize;
+    }
+
+    public long getSegmentInterval() {
+        return segmentInterval;
+    }
+
+    /**
+     * Set the time after which a dump file segment is rolled over even if
+     * it isn't full, in milliseconds, or zero for no limit.  This takes 
+     * effect when the dumper is next started.
+     */
+    public synchronized void setSegmentInterval(long segmentInterval) {
+        if (segmentInterval < 0) {
+            throw new IllegalArgumentException(
+                    "segmentInterval must not be negative");
+        }
+        this.segmentInterval = segmentInterval;
+    }
+
+    public String getCompression() {
+        return compression;
+    }
+
+    /**
+     * Set how completed dump file segments are compressed.  This takes 
+     * effect when the dumper is next started.
+     * 
+     * @param compression "none", "gzip" or "lz4".
+     */
+    public synchronized void setCompression(String compression) {
+        if (!compression.equals(COMPRESSION_NONE) && 
+                !compression.equals(COMPRESSION_GZIP) &&
+                !compression.equals(COMPRESSION_LZ4)) {
+            throw new IllegalArgumentException(
+                    "Unknown compression '" + compression + "'");
+        }
+        this.compression = compression;
+    }
+
+    public int getCompressionThreads() {
+        return compressionThreads;
+    }
+
+    /**
+     * Set the number of threads that compress completed dump file segments.
+     * This takes effect when the dumper is next started.
+     */
+    public synchronized void setCompressionThreads(int compressionThreads) {
+        if (compressionThreads <= 0) {
+            throw new IllegalArgumentException(
+                    "compressionThreads must be positive");
+        }
+        this.compressionThreads = compressionThreads;
+    }
+
+    /**
+     * Get the number of dump file segments that have been compressed.
+     */
+    public long getCompressedSegments() {
+        SegmentCompressor sc = compressor;
+        return sc == null ? 0 : sc.getCompressed();
+    }
+
+    /**
+     * Get the number of dump file segments waiting to be compressed.
+     */
+    public int getPendingCompressions() {
+        SegmentCompressor sc = compressor;
+        return sc == null ? 0 : sc.getPending();
+    }
+
+    /**
+     * Get the overall compression ratio for the compressed dump file
+     * segments, as compressed size over original size, or zero if none
+     * have been compressed.
+     */
+    public double getCompressionRatio() {
+        SegmentCompressor sc = compressor;
+        return sc == null || sc.getBytesIn() == 0 ? 0 : 
+                (double) sc.getBytesOut() / sc.getBytesIn();
+    }
+
+    public String getDumpFileMode() {
+        return dumpFileMode;
+    }
+
+    /**
+     * Set how records are written to the dump file.  In "batched" mode,
+     * the async writer thread is started even if async mode is off.  This
+     * takes effect when the dumper is next started.
+     * 
+     * @param dumpFileMode "mapped" or "batched".
+     */
+    public synchronized void setDumpFileMode(String dumpFileMode) {
+        if (!dumpFileMode.equals(DUMP_FILE_MAPPED) && 
+                !dumpFileMode.equals(DUMP_FILE_BATCHED)) {
+            throw new IllegalArgumentException(
+                    "Unknown dump file mode '" + dumpFileMode + "'");
+        }
+        this.dumpFileMode = dumpFileMode;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Set the maximum number of records that the async writer thread
+     * takes at a time.  This takes effect when the dumper is next started.
+     */
+    public synchronized void setBatchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+        this.batchSize = batchSize;
+    }
+
+    public long getBatchWindow() {
+        return batchWindow;
+    }
+
+    /**
+     * Set how long the async writer thread waits for a batch to fill in
+     * "batched" mode, in milliseconds.  This takes effect when the dumper 
+     * is next started.
+     */
+    public synchronized void setBatchWindow(long batchWindow) {
+        if (batchWindow < 0) {
+            throw new IllegalArgumentException(
+                    "batchWindow must not be negative");
+        }
+        this.batchWindow = batchWindow;
+    }
+
+    public String getSyncPolicy() {
+        return syncPolicy;
+    }
+
+    /**
+     * Set when a batched dump file is forced to disk.  This takes effect
+     * when the dumper is next started.
+     * 
+     * @param syncPolicy "never", "interval" or "batch".
+     */
+    public synchronized void setSyncPolicy(String syncPolicy) {
+        if (!syncPolicy.equals(SYNC_NEVER) && 
+                !syncPolicy.equals(SYNC_INTERVAL) &&
+                !syncPolicy.equals(SYNC_BATCH)) {
+            throw new IllegalArgumentException(
+                    "Unknown sync policy '" + syncPolicy + "'");
+        }
+        this.syncPolicy = syncPolicy;
+    }
+
+    public long getSyncInterval() {
+        return syncInterval;
+    }
+
+    /**
+     * Set the sync interval for the "interval" sync policy, in 
+     * milliseconds.  This takes effect when the dumper is next started.
+     */
+    public synchronized void setSyncInterval(long syncInterval) {
+        if (syncInterval <= 0) {
+            throw new IllegalArgumentException(
+                    "syncInterval must be positive");
+        }
+        this.syncInterval = syncInterval;
+    }
+
+    /**
+     * Get the number of batches written to the batched dump file.
+     */
+    public long getBatchCount() {
+        BatchedDumpFile f = batchSink;
+        return f == null ? 0 : f.getBatches();
+    }
+
+    /**
+     * Get the average number of records per batch written to the batched
+     * dump file.
+     */
+    public double getAverageBatchSize() {
+        BatchedDumpFile f = batchSink;
+        return f == null || f.getBatches() == 0 ? 0 : 
+                (double) f.getRecords() / f.getBatches();
+    }
+
+    /**
+     * Get the largest number of records in a batch.
+     */
+    public int getMaxBatchSize() {
+        BatchedDumpFile f = batchSink;
+        return f == null ? 0 : f.getMaxBatchSize();
+    }
+
+    /**
+     * Get the average number of bytes per batch.
+     */
+    public double getAverageBatchBytes() {
+        BatchedDumpFile f = batchSink;
+        return f == null || f.getBatches() == 0 ? 0 : 
+                (double) f.getBytes() / f.getBatches();
+    }
+
+    /**
+     * Get the average time taken to encode, write and (if required) sync a
+     * batch, in milliseconds.
+     */
+    public double getAverageBatchLatency() {
+        BatchedDumpFile f = batchSink;
+        return f == null || f.getBatches() == 0 ? 0 : 
+                f.getTotalBatchNanos() / 1e6 / f.getBatches();
+    }
+
+    /**
+     * Get the longest time taken to encode, write and sync a batch, in
+     * milliseconds.
+     */
+    public double getMaxBatchLatency() {
+        BatchedDumpFile f = batchSink;
+        return f == null ? 0 : f.getMaxBatchNanos() / 1e6;
+    }
+
+    /**
+     * Get the number of times the batched dump file has been synced.
+     */
+    public long getSyncCount() {
+        BatchedDumpFile f = batchSink;
+        return f == null ? 0 : f.getSyncs();
+    }
+
+    public boolean isEnabled() {
+        return config.enabled;
+    }
+
+    public synchronized void setEnabled(boolean enabled) {
+        DumperConfig.Builder c = edit();
+        c.enabled = enabled;
+        swap(c);
+    }
+
+    public boolean isDump() {
+        return config.dump;
+    }
+
+    public synchronized void setDump(boolean dump) {
+        DumperConfig.Builder c = edit();
+        c.dump = dump;
+        swap(c);
+    }
+
+    public boolean isAggregate() {
+        return config.aggregate;
+    }
+
+    public synchronized void setAggregate(boolean aggregate) {
+        DumperConfig.Builder c = edit();
+        c.aggregate = aggregate;
+        swap(c);
+    }
+
+    public boolean isSingleRecord() {
+        return config.singleRecord;
+    }
+
+    public synchronized void setSingleRecord(boolean singleRecord) {
+        DumperConfig.Builder c = edit();
+        c.singleRecord = singleRecord;
+        swap(c);
+    }
+
+    public String getFormat() {
+        return config.format;
+    }
+
+    public synchronized void setFormat(String format) {
+        if (!format.equals(FORMAT_TEXT) && !format.equals(FORMAT_JSON) &&
+                !format.equals(FORMAT_BINARY)) {
+            throw new IllegalArgumentException(
+                    "Unknown output format '" + format + "'");
+        }
+        DumperConfig.Builder c = edit();
+        c.format = format;
+        swap(c);
+    }
+
+    public boolean isAsync() {
+        return config.async;
+    }
+
+    public synchronized void setAsync(boolean async) {
+        DumperConfig.Builder c = edit();
+        c.async = async;
+        swap(c);
+    }
+
+    public int getQueueSize() {
+        return config.queueSize;
+    }
+
+    public synchronized void setQueueSize(int queueSize) {
+        if (queueSize <= 0) {
+            throw new IllegalArgumentException("queueSize must be positive");
+        }
+        DumperConfig.Builder c = edit();
+        c.queueSize = queueSize;
+        swap(c);
+    }
+
+    public boolean isBlockWhenFull() {
+        return config.blockWhenFull;
+    }
+
+    public synchronized void setBlockWhenFull(boolean blockWhenFull) {
+        DumperConfig.Builder c = edit();
+        c.blockWhenFull = blockWhenFull;
+        swap(c);
+    }
+
+    public boolean isFailuresOnly() {
+        return config.failuresOnly;
+    }
+
+    public synchronized void setFailuresOnly(boolean failuresOnly) {
+        DumperConfig.Builder c = edit();
+        c.failuresOnly = failuresOnly;
+        swap(c);
+    }
+
+    public int getFailureStatus() {
+        return config.failureStatus;
+    }
+
+    public synchronized void setFailureStatus(int failureStatus) {
+        DumperConfig.Builder c = edit();
+        c.failureStatus = failureStatus;
+        swap(c);
+    }
+
+    /**
+     * Get the slow request threshold in milliseconds; zero means that 
+     * no request is considered to be slow.
+     */
+    public long getSlowThreshold() {
+        return config.slowThreshold;
+    }
+
+    public synchronized void setSlowThreshold(long slowThreshold) {
+        if (slowThreshold < 0) {
+            throw new IllegalArgumentException(
+                    "slowThreshold must not be negative");
+        }
+        DumperConfig.Builder c = edit();
+        c.slowThreshold = slowThreshold;
+        swap(c);
+    }
+
+    public boolean isSplitTimings() {
+        return config.splitTimings;
+    }
+
+    public synchronized void setSplitTimings(boolean splitTimings) {
+        DumperConfig.Builder c = edit();
+        c.splitTimings = splitTimings;
+        swap(c);
+    }
+
+    public String getParamMode() {
+        return config.paramMode;
+    }
+
+    public synchronized void setParamMode(String paramMode) {
+        if (!paramMode.equals(PARAMS_ALL) && !paramMode.equals(PARAMS_QUERY) &&
+                !paramMode.equals(PARAMS_TEE) && !paramMode.equals(PARAMS_NONE)) {
+            throw new IllegalArgumentException(
+                    "Unknown parameter mode '" + paramMode + "'");
+        }
+        DumperConfig.Builder c = edit();
+        c.paramMode = paramMode;
+        swap(c);
+    }
+
+    public boolean isCaptureBody() {
+        return config.captureBody;
+    }
+
+    public synchronized void setCaptureBody(boolean captureBody) {
+        DumperConfig.Builder c = edit();
+        c.captureBody = captureBody;
+        swap(c);
+    }
+
+    public boolean isCaptureResponseBody() {
+        return config.captureResponseBody;
+    }
+
+    public synchronized void setCaptureResponseBody(boolean captureResponseBody) {
+        DumperConfig.Builder c = edit();
+        c.captureResponseBody = captureResponseBody;
+        swap(c);
+    }
+
+    /**
+     * Get the maximum number of request or response body bytes that are 
+     * captured.
+     */
+    public int getBodyLimit() {
+        return config.bodyLimit;
+    }
+
+    public synchronized void setBodyLimit(int bodyLimit) {
+        if (bodyLimit < 0) {
+            throw new IllegalArgumentException(
+                    "bodyLimit must not be negative");
+        }
+        DumperConfig.Builder c = edit();
+        c.bodyLimit = bodyLimit;
+        swap(c);
+    }
+
+    /**
+     * Get the slow client threshold in milliseconds; zero means that no
+     * request is flagged as having a slow client.
+     */
+    public long getSlowClientThreshold() {
+        return config.slowClientThreshold;
+    }
+
+    public synchronized void setSlowClientThreshold(long slowClientThreshold) {
+        if (slowClientThreshold < 0) {
+            throw new IllegalArgumentException(
+                    "slowClientThreshold must not be negative");
+        }
+        DumperConfig.Builder c = edit();
+        c.slowClientThreshold = slowClientThreshold;
+        swap(c);
+    }
+
+    /**
+     * Get the slow upload threshold in milliseconds; zero means that no
+     * request is flagged as a slow upload.
+     */
+    public long getSlowUploadThreshold() {
+        return config.slowUploadThreshold;
+    }
+
+    public synchronized void setSlowUploadThreshold(long slowUploadThreshold) {
+        if (slowUploadThreshold < 0) {
+            throw new IllegalArgumentException(
+                    "slowUploadThreshold must not be negative");
+        }
+        DumperConfig.Builder c = edit();
+        c.slowUploadThreshold = slowUploadThreshold;
+        swap(c);
+    }
+
+    public double getSampleRate() {
+        return config.sampleRate;
+    }
+
+    public synchronized void setSampleRate(double sampleRate) {
+        DumperConfig.Builder c = edit();
+        c.sampler = makeSampler(sampleRate, c.sampleLimit, c.sampleRules);
+        c.sampleRate = sampleRate;
+        swap(c);
+    }
+
+    public int getSampleLimit() {
+        return config.sampleLimit;
+    }
+
+    public synchronized void setSampleLimit(int sampleLimit) {
+        DumperConfig.Builder c = edit();
+        c.sampler = makeSampler(c.sampleRate, sampleLimit, c.sampleRules);
+        c.sampleLimit = sampleLimit;
+        swap(c);
+    }
+
+    public String getSampleRules() {
+        return config.sampleRules;
+    }
+
+    public synchronized void setSampleRules(String sampleRules) {
+        DumperConfig.Builder c = edit();
+        c.sampler = makeSampler(c.sampleRate, c.sampleLimit, sampleRules);
+        c.sampleRules = sampleRules;
+        swap(c);
+    }
+
+    private static Sampler makeSampler(double rate, int limit, String rules) {
+        return Sampler.isTrivial(rate, limit, rules) ? null :
+            new Sampler(rate, limit, rules);
+    }
+
+    public String getParamFilter() {
+        return toString(config.paramMatcher);
+    }
+
+    public synchronized void setParamFilter(String paramFilter) {
+        DumperConfig.Builder c = edit();
+        c.paramMatcher = compile(paramFilter, c.filterEngine);
+        swap(c);
+    }
+
+    public String getCookieFilter() {
+        return toString(config.cookieMatcher);
+    }
+
+    public synchronized void setCookieFilter(String cookieFilter) {
+        DumperConfig.Builder c = edit();
+        c.cookieMatcher = compile(cookieFilter, c.filterEngine);
+        swap(c);
+    }
+
+    public String getRequestHeaderFilter() {
+        return toString(config.requestHeaderMatcher);
+    }
+
+    public synchronized void setRequestHeaderFilter(String requestHeaderFilter) {
+        DumperConfig.Builder c = edit();
+        c.requestHeaderMatcher = compile(requestHeaderFilter, c.filterEngine);
+        swap(c);
+    }
+
+    public String getResponseHeaderFilter() {
+        return toString(config.responseHeaderMatcher);
+    }
+
+    public synchronized void setResponseHeaderFilter(String responseHeaderFilter) {
+        DumperConfig.Builder c = edit();
+        c.responseHeaderMatcher = compile(responseHeaderFilter, c.filterEngine);
+        swap(c);
+    }
+
+    public String getFilterEngine() {
+        return config.filterEngine;
+    }
+
+    /**
+     * Change the engine used to match the filter regexes.  This recompiles
+     * the filter regexes, and the change is only published if they all 
+     * compile.
+     */
+    public synchronized void setFilterEngine(String filterEngine) {
+        String engine = NameMatcher.checkEngine(filterEngine);
+        DumperConfig.Builder c = edit();
+        c.filterEngine = engine;
+        c.paramMatcher = recompile(c.paramMatcher, engine);
+        c.cookieMatcher = recompile(c.cookieMatcher, engine);
+        c.requestHeaderMatcher = recompile(c.requestHeaderMatcher, engine);
+        c.responseHeaderMatcher = recompile(c.responseHeaderMatcher, engine);
+        swap(c);
+    }
+
+    private static NameMatcher compile(String regex, String engine) {
+        return regex.isEmpty() ? null : NameMatcher.compile(regex, engine);
+    }
+
+    private static NameMatcher recompile(NameMatcher matcher, String engine) {
+        return matcher == null ? null : 
+            NameMatcher.compile(matcher.toString(), engine);
+    }
+
+    private static String toString(NameMatcher matcher) {
+        return matcher == null ? "" : matcher.toString();
+    }
+
+    /**
+     * Get the number of records written by the async writer thread.
+     */
+    public long getWrittenRecords() {
+        return written.get();
+    }
+
+    /**
+     * Get the number of records dropped because the async writer's 
+     * queue was full.
+     */
+    public long getDroppedRecords() {
+        return dropped.get();
+    }
+
+    /**
+     * Start the async writer thread and the latency aggregator, if they
+     * are enabled, and the settings file watcher if there is one.  The
+     * settings file is loaded first, so the services are started with
+     * the settings in it.
+     * 
+     * @param log the logger that the writer thread will write to.
+     * @param name the name of the dumper, for naming the writer thread
+     *     and the MBeans.  This must be unique within the JVM, so it 
+     *     should identify the webapp or container that the dumper is 
+     *     used in.
+     */
+    public synchronized void start(Log log, String name) {
+        serviceLog = log;
+        if (configFile != null && configWatcher == null) {
+            File file = resolve(configFile);
+            try {
+                ConfigWatcher w = new ConfigWatcher(this, file.toPath(), log);
+                w.load();
+                configWatcher = w;
+            } catch (IOException ex) {
+                log.warn("Cannot watch request dumper settings file " + 
+                        file, ex);
+            }
+        }
+        DumperConfig c = config;
+        if (c.aggregate && aggregator == null) {
+            aggregator = new LatencyAggregator(name, log);
+        }
+        if (dumpFile != null && dumpSink == null && batchSink == null) {
+            if (!compression.equals(COMPRESSION_NONE)) {
+                compressor = new SegmentCompressor(
+                        compression, compressionThreads, log, name);
+            }
+            String pathname = resolve(dumpFile).getPath();
+            if (dumpFileMode.equals(DUMP_FILE_BATCHED)) {
+                batchSink = new BatchedDumpFile(this, pathname, segmentSize, 
+                        segmentInterval, syncPolicy, syncInterval, log, 
+                        compressor);
+            } else {
+                dumpSink = new MappedDumpFile(pathname, segmentSize, 
+                        segmentInterval, log, compressor);
+            }
+        }
+        if (binaryFile != null && binarySink == null) {
+            File file = resolve(binaryFile);
+            try {
+                binarySink = new BinaryDumpFile(file);
+            } catch (IOException ex) {
+                log.error("Cannot open binary dump file " + file, ex);
+            }
+        }
+        if ((c.async || batchSink != null) && writer == null) {
+            boolean batched = batchSink != null;
+            AsyncDumpWriter w = new AsyncDumpWriter(
+                    this, log, c.queueSize, c.blockWhenFull, batchSize, 
+                    batched ? batchWindow : 0,
+                    batched && syncPolicy.equals(SYNC_INTERVAL) ? 
+                            Math.min(syncInterval, 1000) : 1000);
+            w.start("RequestDumperWriter[" + name + "]");
+            writer = w;
+        }
+        if (oname == null) {
+            register(log, name);
+        }
+        started = true;
+        if (configWatcher != null && !configWatcher.isWatching()) {
+            configWatcher.start("RequestDumperConfig[" + name + "]");
+        }
+    }
+
+    /**
+     * Resolve a pathname against <code>catalina.base</code>, if it is 
+     * relative and that property is set.
+     */
+    private static File resolve(String pathname) {
+        File file = new File(pathname);
+        String base = System.getProperty("catalina.base");
+        return file.isAbsolute() || base == null ? file : new File(base, pathname);
+    }
+
+    /**
+     * Stop the async writer thread and the latency aggregator, if they are
+     * running.  Any queued records are written first.
+     */
+    public void stop() {
+        // The watcher thread must be stopped without holding our lock, 
+        // because it may be waiting for it in configure().
+        ConfigWatcher cw;
+        synchronized (this) {
+            cw = configWatcher;
+            configWatcher = null;
+        }
+        if (cw != null) {
+            cw.stop();
+        }
+        stopServices();
+    }
+
+    private synchronized void stopServices() {
+        started = false;
+        if (oname != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(oname);
+            } catch (Exception ex) {
+                // The MBean was unregistered behind our back.
+            }
+            oname = null;
+        }
+        LatencyAggregator a = aggregator;
+        if (a != null) {
+            aggregator = null;
+            a.close();
+        }
+        AsyncDumpWriter w = writer;
+        boolean writerStopped = true;
+        if (w != null) {
+            writer = null;
+            writerStopped = w.stop();
+        }
+        BatchedDumpFile f = batchSink;
+        if (f != null) {
+            batchSink = null;
+            if (writerStopped) {
+                f.close();
+            } else {
+                // The writer thread may still be inside f.write(), and 
+                // BatchedDumpFile isn't thread-safe; so leave it open.
+                serviceLog.warn("Request dump writer thread did not stop; " +
+                        "leaving dump file " + f.getPathname() + " open");
+            }
+        }
+        MappedDumpFile m = dumpSink;
+        if (m != null) {
+            dumpSink = null;
+            m.close();
+        }
+        SegmentCompressor sc = compressor;
+        if (sc != null) {
+            compressor = null;
+            sc.stop();
+        }
+        BinaryDumpFile b = binarySink;
+        if (b != null) {
+            binarySink = null;
+            try {
+                b.close();
+            } catch (IOException ex) {
+                // Nothing more we can do.
+            }
+        }
+    }
+
+    private void register(Log log, String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName on = new ObjectName(LatencyAggregator.DOMAIN +
+                    ":type=RequestDumper,name=" + ObjectName.quote(name));
+            server.registerMBean(this, on);
+            oname = on;
+        } catch (Exception ex) {
+            log.warn("Cannot register request dumper MBean", ex);
+        }
+    }
+
+    /**
+     * Test if request latencies are being aggregated.
+     */
+    public boolean isAggregating() {
+        return aggregator != null;
+    }
+
+    /**
+     * Record a request's latency, if latencies are being aggregated.
+     * 
+     * @param contextPath the context path, or null
+     * @param servletPath the servlet path, or null
+     * @param method the request method, or null
+     * @param status the response status, or zero if not known
+     * @param nanos the latency in nanoseconds
+     * @param ttfbNanos the time to first byte in nanoseconds, or -1 if 
+     *     not known
+     * @param bytes the response body size, or -1 if not known
+     * @param flags the request's flags; e.g. {@link #FLAG_SLOW_CLIENT}
+     */
+    public void aggregate(String contextPath, String servletPath,
+            String method, int status, long nanos, long ttfbNanos, 
+            long bytes, int flags) {
+        LatencyAggregator a = aggregator;
+        if (a != null) {
+            a.record(contextPath, servletPath, method, status, nanos, 
+                    ttfbNanos, bytes, flags);
+        }
+    }
+
+    /**
+     * Obtain an empty record for capturing the current request.  This is
+     * normally the current thread's reusable record.  If that is already in
+     * use (e.g. because the dumper is invoked again for a forwarded 
+     * request), the next record in its chain of nested records is used, and
+     * that is allocated the first time it is needed.  Every call must be 
+     * paired with a call to {@link #end(DumpRecord)}.
+     * 
+     * @param config the settings for the request, as returned by 
+     *     {@link #getConfig()}.
+     */
+    public DumpRecord begin(DumperConfig config) {
+        DumpRecord record = records.get();
+        while (record.busy) {
+            if (record.nested == null) {
+                record.nested = new DumpRecord();
+            }
+            record = record.nested;
+        }
+        record.busy = true;
+        record.setConfig(config);
+        record.setThreadName(Thread.currentThread().getName());
+        record.setStartTime(System.nanoTime());
+        return record;
+    }
+
+    /**
+     * Called when the pre-service entries have been captured.
+     */
+    public void preService(DumpRecord record, Log log) {
+        record.mark();
+        DumperConfig c = record.getConfig();
+        if (!c.singleRecord && !c.failuresOnly && c.isText() && 
+                writer == null && dumpSink == null) {
+            logEntries(record, 0, record.size(), log);
+        }
+    }
+
+    /**
+     * Decide whether a request that completed normally should be dumped.
+     * If this returns false, the caller should skip the post-service 
+     * capture and {@link #postService} call.
+     * 
+     * @param record the request's record
+     * @param status the response status, or zero if it is not known.
+     */
+    public boolean isWanted(DumpRecord record, int status) {
+        DumperConfig c = record.getConfig();
+        if (!c.failuresOnly || status >= c.failureStatus) {
+            return true;
+        }
+        return c.slowThreshold > 0 && 
+                System.nanoTime() - record.getStartTime() >= 
+                c.slowThreshold * 1000000L;
+    }
+
+    /**
+     * Add the timing entries to a record.  The "duration" is the time since
+     * the record was obtained from {@link #begin(DumperConfig)}.  If split
+     * timings are enabled, this is broken down into the time spent in the
+     * rest of the chain and the time spent capturing the dump.  The times
+     * to first byte and to commit are added if the caller recorded them.
+     */
+    public void addTimings(DumpRecord record) {
+        long total = System.nanoTime() - record.getStartTime();
+        record.addDuration("          duration", total);
+        if (record.getFirstByteTime() != 0) {
+            record.addDuration("   timeToFirstByte", 
+                    record.getFirstByteTime() - record.getStartTime());
+        }
+        if (record.getCommitTime() != 0) {
+            record.addDuration("      timeToCommit", 
+                    record.getCommitTime() - record.getStartTime());
+        }
+        if (record.getConfig().splitTimings) {
+            long chain = record.getChainTime();
+            record.addDuration("     chainDuration", chain);
+            record.addDuration("    dumperDuration", total - chain);
+        }
+    }
+
+    /**
+     * Called when the post-service entries have been captured, or when 
+     * the request has failed with an exception.
+     */
+    public void postService(DumpRecord record, Log log) {
+        AsyncDumpWriter w = writer;
+        if (w != null) {
+            w.offer(record);
+        } else if (record.getConfig().singleRecord || 
+                record.getConfig().failuresOnly || 
+                !record.getConfig().isText() || dumpSink != null) {
+            StringBuilder sb = buffers.get();
+            emit(record, sb, log);
+            releaseBuffer(sb);
+        } else {
+            logEntries(record, record.getMark(), record.size(), log);
+        }
+    }
+
+    /**
+     * Release a record obtained from {@link #begin(DumperConfig)}.
+     */
+    public void end(DumpRecord record) {
+        record.clear();
+        record.busy = false;
+    }
+
+    /**
+     * Convert a locale to a string for a dump, reusing the string from the
+     * previous call if the locale is the same.
+     */
+    public static String toString(Locale locale) {
+        Object[] last = lastLocale;
+        if (last[0] == locale || (locale != null && locale.equals(last[0]))) {
+            return (String) last[1];
+        }
+        String str = String.valueOf(locale);
+        lastLocale = new Object[] {locale, str};
+        return str;
+    }
+
+    /**
+     * Write an entire record as a single message: to the dump file if it
+     * is open, to the binary dump file if the format is "binary" and that
+     * file is open, and otherwise to the log.
+     * 
+     * @param sb a scratch buffer for formatting the record.
+     */
+    void emit(DumpRecord record, StringBuilder sb, Log log) {
+        MappedDumpFile m = dumpSink;
+        if (m != null && record.getConfig() != null) {
+            BinaryDumpEncoder e = encoders.get();
+            if (record.getConfig().isBinary()) {
+                e.setBase(m.getBaseMillis(), m.getBaseNanos());
+                e.encode(record);
+            } else {
+                sb.setLength(0);
+                format(record, sb);
+                sb.append(LINE_SEPARATOR);
+                e.encodeText(sb);
+            }
+            try {
+                m.write(e.buffer(), e.offset(), e.length(), 
+                        record.getConfig().getFormat());
+            } catch (IOException ex) {
+                log.error("Failed to write to dump file " + 
+                        m.getPathname(), ex);
+            }
+            if (e.buffer().length > MAX_RETAINED_BUFFER) {
+                encoders.remove();
+            }
+            return;
+        }
+        BinaryDumpFile b = binarySink;
+        if (b != null && record.getConfig() != null && 
+                record.getConfig().isBinary()) {
+            try {
+                b.write(record);
+            } catch (IOException ex) {
+                log.error("Failed to write to binary dump file " + 
+                        b.getFile(), ex);
+            }
+            return;
+        }
+        sb.setLength(0);
+        format(record, sb);
+        log.info(sb.toString());
+    }
+
+    /**
+     * Write a batch of records taken by the async writer thread: to the
+     * batched dump file if it is open, and otherwise one at a time.
+     * 
+     * @param sb a scratch buffer for formatting the records.
+     */
+    void emitBatch(DumpRecord[] batch, int count, StringBuilder sb, Log log) {
+        BatchedDumpFile f = batchSink;
+        if (f == null) {
+            for (int i = 0; i < count; i++) {
+                emit(batch[i], sb, log);
+            }
+            return;
+        }
+        try {
+            f.write(batch, count, sb);
+        } catch (IOException ex) {
+            log.error("Failed to write to dump file " + f.getPathname(), ex);
+        }
+    }
+
+    /**
+     * Called by the async writer thread when it has nothing to do.
+     */
+    void writerIdle(Log log) {
+        BatchedDumpFile f = batchSink;
+        if (f != null) {
+            try {
+                f.idle();
+            } catch (IOException ex) {
+                log.error("Failed to sync dump file " + f.getPathname(), ex);
+            }
+        }
+    }
+
+    /**
+     * Render an entire record as a single message; either multi-line text,
+     * or a JSON object.
+     */
+    void format(DumpRecord record, StringBuilder sb) {
+        if (record.getConfig() != null && record.getConfig().isJson()) {
+            record.formatJson(sb, withThreadNames);
+            return;
+        }
+        for (int i = 0; i < record.size(); i++) {
+            if (i > 0) {
+                sb.append(LINE_SEPARATOR);
+            }
+            record.formatEntry(i, sb, withThreadNames);
+        }
+    }
+
+    private void logEntries(DumpRecord record, int from, int to, Log log) {
+        StringBuilder sb = buffers.get();
+        for (int i = from; i < to; i++) {
+            sb.setLength(0);
+            record.formatEntry(i, sb, withThreadNames);
+            log.info(sb.toString());
+        }
+        releaseBuffer(sb);
+    }
+
+    private void releaseBuffer(StringBuilder sb) {
+        if (sb.capacity() > MAX_RETAINED_BUFFER) {
+            buffers.remove();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.edu.uq.cmm.tomcat.dumper;
+
+
+/**
+ * The JMX management interface for a {@link RequestDumper}.  The settings
+ * have the same meanings as the corresponding valve and filter parameters.
+ * Changes take effect for the next request, except for Aggregate, Async,
+ * QueueSize and BlockWhenFull, which take effect when the dumper is next
+ * started.
+ *
+ * @author Stephen Crawley
+ */
+public interface RequestDumperMBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    boolean isDump();
+
+    void setDump(boolean dump);
+
+    boolean isAggregate();
+
+    void setAggregate(boolean aggregate);
+
+    boolean isAggregating();
+
+    boolean isSingleRecord();
+
+    void setSingleRecord(boolean singleRecord);
+
+    String getFormat();
+
+    void setFormat(String format);
+
+    boolean isAsync();
+
+    void setAsync(boolean async);
+
+    int getQueueSize();
+
+    void setQueueSize(int queueSize);
+
+    boolean isBlockWhenFull();
+
+    void setBlockWhenFull(boolean blockWhenFull);
+
+    boolean isFailuresOnly();
+
+    void setFailuresOnly(boolean failuresOnly);
+
+    int getFailureStatus();
+
+    void setFailureStatus(int failureStatus);
+
+    long getSlowThreshold();
+
+    void setSlowThreshold(long slowThreshold);
+
+    boolean isSplitTimings();
+
+    void setSplitTimings(boolean splitTimings);
+
+    double getSampleRate();
+
+    void setSampleRate(double sampleRate);
+
+    int getSampleLimit();
+
+    void setSampleLimit(int sampleLimit);
+
+    String getSampleRules();
+
+    void setSampleRules(String sampleRules);
+
+    String getParamMode();
+
+    void setParamMode(String paramMode);
+
+    boolean isCaptureBody();
+
+    void setCaptureBody(boolean captureBody);
+
+    int getBodyLimit();
+
+    void setBodyLimit(int bodyLimit);
+
+    boolean isCaptureResponseBody();
+
+    void setCaptureResponseBody(boolean captureResponseBody);
+
+    long getSlowClientThreshold();
+
+    void setSlowClientThreshold(long slowClientThreshold);
+
+    long getSlowUploadThreshold();
+
+    void setSlowUploadThreshold(long slowUploadThreshold);
+
+    String getParamFilter();
+
+    void setParamFilter(String paramFilter);
+
+    String getCookieFilter();
+
+    void setCookieFilter(String cookieFilter);
+
+    String getRequestHeaderFilter();
+
+    void setRequestHeaderFilter(String requestHeaderFilter);
+
+    String getResponseHeaderFilter();
+
+    void setResponseHeaderFilter(String responseHeaderFilter);
+
+    String getFilterEngine();
+
+    void setFilterEngine(String filterEngine);
+
+    String getConfigFile();
+
+    String getBinaryFile();
+
+    String getDumpFile();
+
+    int getSegmentSize();
+
+    long getSegmentInterval();
+
+    String getCompression();
+
+    int getCompressionThreads();
+
+    long getCompressedSegments();
+
+    int getPendingCompressions();
+
+    double getCompressionRatio();
+
+    String getDumpFileMode();
+
+    int getBatchSize();
+
+    long getBatchWindow();
+
+    String getSyncPolicy();
+
+    long getSyncInterval();
+
+    long getBatchCount();
+
+    double getAverageBatchSize();
+
+    int getMaxBatchSize();
+
+    double getAverageBatchBytes();
+
+    double getAverageBatchLatency();
+
+    double getMaxBatchLatency();
+
+    long getSyncCount();
+
+    long getWrittenRecords();
+
+    long getDroppedRecords();
+}
@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.edu.uq.cmm.tomcat.dumper;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * <p>The aggregated statistics for one route / method / status class
+ * combination: a {@link LatencyHistogram} of total request latencies, a
+ * second one of times to first byte, the response body sizes, and counts
+ * of requests that were flagged as problematic.</p>
+ *
+ * @author Stephen Crawley
+ */
+public final class RouteStats implements RouteStatsMBean {
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram ttfb = new LatencyHistogram();
+    private final AtomicLong sizedCount = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong maxBytes = new AtomicLong();
+    private final AtomicLong slowClients = new AtomicLong();
+    private final AtomicLong slowUploads = new AtomicLong();
+
+    /**
+     * Record a request.
+     *
+     * @param nanos the latency in nanoseconds.
+     * @param ttfbNanos the time to first byte in nanoseconds, or -1 if
+     *     not known.
+     * @param size the response body size in bytes, or -1 if not known.
+     * @param flags the request's flags; see {@link RequestDumper}.
+     */
+    public void record(long nanos, long ttfbNanos, long size, int flags) {
+        latency.record(nanos);
+        if (ttfbNanos >= 0) {
+            ttfb.record(ttfbNanos);
+        }
+        if (size >= 0) {
+            sizedCount.incrementAndGet();
+            bytes.addAndGet(size);
+            long m = maxBytes.get();
+            while (size > m && !maxBytes.compareAndSet(m, size)) {
+                m = maxBytes.get();
+            }
+        }
+        if ((flags & RequestDumper.FLAG_SLOW_CLIENT) != 0) {
+            slowClients.incrementAndGet();
+        }
+        if ((flags & RequestDumper.FLAG_SLOW_UPLOAD) != 0) {
+            slowUploads.incrementAndGet();
+        }
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    public LatencyHistogram getTtfb() {
+        return ttfb;
+    }
+
+    public long getCount() {
+        return latency.getCount();
+    }
+
+    public double getMean() {
+        return latency.getMean();
+    }
+
+    public double getMax() {
+        return latency.getMax();
+    }
+
+    public double getP50() {
+        return latency.getP50();
+    }
+
+    public double getP90() {
+        return latency.getP90();
+    }
+
+    public double getP99() {
+        return latency.getP99();
+    }
+
+    public double getP999() {
+        return latency.getP999();
+    }
+
+    public long getTtfbCount() {
+        return ttfb.getCount();
+    }
+
+    public double getTtfbMean() {
+        return ttfb.getMean();
+    }
+
+    public double getTtfbP50() {
+        return ttfb.getP50();
+    }
+
+    public double getTtfbP90() {
+        return ttfb.getP90();
+    }
+
+    public double getTtfbP99() {
+        return ttfb.getP99();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public double getMeanBytes() {
+        long n = sizedCount.get();
+        return n == 0 ? 0.0 : bytes.get() / (double) n;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes.get();
+    }
+
+    public long getSlowClients() {
+        return slowClients.get();
+    }
+
+    public long getSlowUploads() {
+        return slowUploads.get();
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.edu.uq.cmm.tomcat.dumper;
+
+
+/**
+ * The JMX management interface for a {@link RouteStats}.  All latencies
+ * are in milliseconds, and response body sizes are in bytes.
+ *
+ * @author Stephen Crawley
+ */
+public interface RouteStatsMBean {
+
+    long getCount();
+
+    double getMean();
+
+    double getMax();
+
+    double getP50();
+
+    double getP90();
+
+    double getP99();
+
+    double getP999();
+
+    long getTtfbCount();
+
+    double getTtfbMean();
+
+    double getTtfbP50();
+
+    double getTtfbP90();
+
+    double getTtfbP99();
+
+    long getBytes();
+
+    double getMeanBytes();
+
+    long getMaxBytes();
+
+    long getSlowClients();
+
+    long getSlowUploads();
+}
@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.edu.uq.cmm.tomcat.dumper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+
+
+/**
+ * <p>Decides whether a request should be dumped.  A request is sampled
+ * with a fixed probability, which may be overridden for requests whose
+ * URI starts with a given prefix (the longest matching prefix wins).
+ * Requests that pass the probability test are then subject to an optional
+ * rate limit, implemented as a token bucket that holds up to one second's
+ * worth of tokens.</p>
+ *
+ * <p>The request URI is only examined if there are prefix rules, so that
+ * requests that aren't sampled cost next to nothing.</p>
+ *
+ * @author Stephen Crawley
+ */
+public final class Sampler {
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private final double rate;
+    private final String[] prefixes;
+    private final double[] prefixRates;
+    private final long interval;
+    private final AtomicLong nextTime;
+
+    /**
+     * @param rate the probability that a request will be sampled.
+     * @param limit the maximum number of requests per second to be
+     *     sampled, or zero for no limit.
+     * @param rules the URI prefix rules in the form
+     *     <code>prefix=rate,prefix=rate,...</code>, or an empty string.
+     */
+    public Sampler(double rate, int limit, String rules) {
+        this.rate = checkRate(rate);
+        if (limit < 0) {
+            throw new IllegalArgumentException(
+                    "Sample limit must not be negative");
+        }
+        this.interval = limit == 0 ? 0 : NANOS_PER_SECOND / limit;
+        this.nextTime = new AtomicLong(System.nanoTime() - NANOS_PER_SECOND);
+        List<String[]> parsed = parseRules(rules);
+        this.prefixes = new String[parsed.size()];
+        this.prefixRates = new double[parsed.size()];
+        for (int i = 0; i < prefixes.length; i++) {
+            prefixes[i] = parsed.get(i)[0];
+            prefixRates[i] = checkRate(Double.parseDouble(parsed.get(i)[1]));
+        }
+    }
+
+    /**
+     * Test if a sampler with these settings would sample everything.
+     */
+    public static boolean isTrivial(double rate, int limit, String rules) {
+        return rate >= 1.0 && limit == 0 && rules.trim().isEmpty();
+    }
+
+    /**
+     * Decide whether to sample a request.
+     *
+     * @param request the request, or null for a non-HTTP request.
+     * @return true if the request should be dumped.
+     */
+    public boolean sample(HttpServletRequest request) {
+        double r = rate;
+        if (prefixes.length > 0 && request != null) {
+            String uri = request.getRequestURI();
+            if (uri != null) {
+                for (int i = 0; i < prefixes.length; i++) {
+                    if (uri.startsWith(prefixes[i])) {
+                        r = prefixRates[i];
+                        break;
+                    }
+                }
+            }
+        }
+        if (r < 1.0 &&
+                (r <= 0.0 || ThreadLocalRandom.current().nextDouble() >= r)) {
+            return false;
+        }
+        return interval == 0 || takeToken();
+    }
+
+    /**
+     * Take a token from the bucket.  Rather than counting tokens, we track
+     * the time at which the bucket would next be empty, and allow a request
+     * if that is no more than a second in the future.
+     */
+    private boolean takeToken() {
+        long now = System.nanoTime();
+        while (true) {
+            long next = nextTime.get();
+            long start = (next - now < 0) ? now : next;
+            if (start - now >= NANOS_PER_SECOND) {
+                return false;
+            }
+            if (nextTime.compareAndSet(next, start + interval)) {
+                return true;
+            }
+        }
+    }
+
+    private static double checkRate(double rate) {
+        if (!(rate >= 0.0 && rate <= 1.0)) {
+            throw new IllegalArgumentException(
+                    "Sample rate must be between 0.0 and 1.0");
+        }
+        return rate;
+    }
+
+    private static List<String[]> parseRules(String rules) {
+        List<String[]> res = new ArrayList<String[]>();
+        for (String rule : rules.split(",")) {
+            rule = rule.trim();
+            if (rule.isEmpty()) {
+                continue;
+            }
+            int pos = rule.lastIndexOf('=');
+            if (pos <= 0) {
+                throw new IllegalArgumentException(
+                        "Malformed sample rule: '" + rule + "'");
+            }
+            res.add(new String[] {
+                    rule.substring(0, pos).trim(),
+                    rule.substring(pos + 1).trim()});
+        }
+        Collections.sort(res, new Comparator<String[]>() {
+            public int compare(String[] o1, String[] o2) {
+                return o2[0].length() - o1[0].length();
+            }
+        });
+        return res;
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.edu.uq.cmm.tomcat.dumper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.juli.logging.Log;
+
+
+/**
+ * <p>Compresses completed dump file segments on a pool of low priority
+ * daemon threads, so that several segments can be compressed at once.
+ * Submitting a segment never blocks: the queue is unbounded, and a segment
+ * that is submitted after the compressor has been stopped is simply left
+ * uncompressed.  Each segment is compressed to a temporary file that is
+ * renamed when it is complete, and the segment is then deleted.</p>
+ *
+ * @author Stephen Crawley
+ */
+final class SegmentCompressor {
+
+    private static final long STOP_TIMEOUT = 10000;
+
+    private final String codec;
+    private final Log log;
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong compressed = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+
+    /**
+     * @param codec {@link RequestDumper#COMPRESSION_GZIP} or
+     *     {@link RequestDumper#COMPRESSION_LZ4}.
+     * @param threads the number of compression threads.
+     * @param log the logger for reporting failures.
+     * @param name the name of the dumper, for naming the threads.
+     */
+    SegmentCompressor(String codec, int threads, Log log, final String name) {
+        this.codec = codec;
+        this.log = log;
+        ThreadFactory factory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "RequestDumperCompressor[" + name +
+                        "]-" + count.incrementAndGet());
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        };
+        this.executor = new ThreadPoolExecutor(threads, threads,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                factory);
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queue a completed segment for compression.
+     */
+    void submit(File file) {
+        submit(file, Long.MAX_VALUE);
+    }
+
+    /**
+     * Queue a completed segment for compression, ignoring anything after
+     * the first <code>length</code> bytes; e.g. the unwritten tail of a 
+     * segment that couldn't be trimmed.
+     */
+    void submit(final File file, final long length) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    compress(file, length);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            // We have been stopped.  Leave the segment uncompressed.
+        }
+    }
+
+    /**
+     * Get the number of segments waiting to be compressed.
+     */
+    int getPending() {
+        return executor.getQueue().size();
+    }
+
+    long getCompressed() {
+        return compressed.get();
+    }
+
+    long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    /**
+     * Stop the compression threads, giving them a while to finish the
+     * queued segments.  Any that are left are not compressed.
+     */
+    void stop() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(STOP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException ex) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void compress(File file, long length) {
+        boolean gzip = codec.equals(RequestDumper.COMPRESSION_GZIP);
+        File target = new File(file.getPath() + (gzip ? ".gz" : ".lz4"));
+        File temp = new File(target.getPath() + ".tmp");
+        long read = 0;
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                OutputStream fos = new FileOutputStream(temp);
+                OutputStream out;
+                try {
+                    out = gzip ? new GZIPOutputStream(fos, 65536) :
+                        new Lz4OutputStream(fos);
+                } catch (IOException ex) {
+                    fos.close();
+                    throw ex;
+                }
+                try {
+                    byte[] buf = new byte[65536];
+                    int n;
+                    while (read < length && (n = in.read(buf, 0, 
+                            (int) Math.min(buf.length, length - read))) > 0) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            throw new InterruptedIOException();
+                        }
+                        out.write(buf, 0, n);
+                        read += n;
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+            if (!temp.renameTo(target)) {
+                throw new IOException("Cannot rename " + temp);
+            }
+        } catch (InterruptedIOException ex) {
+            temp.delete();
+            return;
+        } catch (IOException ex) {
+            log.warn("Cannot compress request dump segment " + file, ex);
+            temp.delete();
+            return;
+        }
+        bytesIn.addAndGet(read);
+        bytesOut.addAndGet(target.length());
+        compressed.incrementAndGet();
+        if (!file.delete()) {
+            log.warn("Cannot delete compressed request dump segment " + file);
+        }
+    }
+}
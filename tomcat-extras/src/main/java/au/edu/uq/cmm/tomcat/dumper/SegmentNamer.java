@@ -0,0 +1,57 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.edu.uq.cmm.tomcat.dumper;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+
+/**
+ * Chooses the names of dump file segments.  Segment files are named
+ * <code><i>pathname</i>.<i>yyyyMMdd-HHmmss</i>.<i>n</i>.<i>ext</i></code>,
+ * where the extension is "log", "json" or "rdmp" depending on the format.
+ * A name is never reused, even if the earlier segment has since been
+ * compressed.
+ *
+ * @author Stephen Crawley
+ */
+final class SegmentNamer {
+
+    private final String pathname;
+    private int sequence;
+
+    SegmentNamer(String pathname) {
+        this.pathname = pathname;
+    }
+
+    String getPathname() {
+        return pathname;
+    }
+
+    synchronized File next(String format) {
+        String ext = format.equals(RequestDumper.FORMAT_BINARY) ? ".rdmp" :
+                format.equals(RequestDumper.FORMAT_JSON) ? ".json" : ".log";
+        String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        File file;
+        do {
+            file = new File(pathname + "." + stamp + "." + ++sequence + ext);
+        } while (file.exists() || new File(file.getPath() + ".gz").exists() ||
+                new File(file.getPath() + ".lz4").exists());
+        return file;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.edu.uq.cmm.tomcat.dumper;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+
+/**
+ * <p>Formats wall-clock times as ISO-8601 local times with millisecond
+ * precision and the zone offset; e.g. "2012-03-04T05:06:07.089+10:00".
+ * A single instance is shared by all threads.</p>
+ *
+ * <p>The date, hour and minute fields, and the zone offset, only change once
+ * a minute, so they are formatted once into an immutable {@link Minute} that
+ * is published through a volatile field.  Formatting a time in the current
+ * minute takes one volatile read, and then just the seconds and millisecond
+ * digits are appended.  When the minute rolls over, the first thread to
+ * notice formats the new minute and publishes it; if several threads race to
+ * do this, they produce equivalent results and the last one wins.  No locks
+ * are taken, and nothing is allocated except on the rollover.</p>
+ *
+ * <p>The zone offset is taken from the default time zone when the minute is
+ * formatted, so daylight saving changes are picked up.</p>
+ *
+ * @author Stephen Crawley
+ */
+public final class TimestampFormat {
+
+    private static final long MINUTE = 60 * 1000L;
+
+    private static final TimestampFormat INSTANCE = new TimestampFormat();
+
+    private volatile Minute current;
+
+    private TimestampFormat() {
+        current = format(System.currentTimeMillis());
+    }
+
+    /**
+     * Get the shared formatter.
+     */
+    public static TimestampFormat getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Append a time to a buffer.
+     *
+     * @param millis the time, as given by {@link System#currentTimeMillis()}.
+     * @param sb the destination buffer
+     */
+    public void append(long millis, StringBuilder sb) {
+        Minute minute = current;
+        long offset = millis - minute.start;
+        if (offset < 0 || offset >= MINUTE) {
+            minute = format(millis);
+            if (minute.start > current.start) {
+                current = minute;
+            }
+            offset = millis - minute.start;
+        }
+        int seconds = (int) (offset / 1000);
+        int ms = (int) (offset % 1000);
+        sb.append(minute.prefix);
+        sb.append((char) ('0' + seconds / 10));
+        sb.append((char) ('0' + seconds % 10));
+        sb.append('.');
+        sb.append((char) ('0' + ms / 100));
+        sb.append((char) ('0' + ms / 10 % 10));
+        sb.append((char) ('0' + ms % 10));
+        sb.append(minute.zone);
+    }
+
+    private static Minute format(long millis) {
+        TimeZone tz = TimeZone.getDefault();
+        Calendar cal = new GregorianCalendar(tz);
+        cal.setTimeInMillis(millis);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        StringBuilder sb = new StringBuilder(17);
+        appendDigits(sb, cal.get(Calendar.YEAR), 4);
+        sb.append('-');
+        appendDigits(sb, cal.get(Calendar.MONTH) + 1, 2);
+        sb.append('-');
+        appendDigits(sb, cal.get(Calendar.DAY_OF_MONTH), 2);
+        sb.append('T');
+        appendDigits(sb, cal.get(Calendar.HOUR_OF_DAY), 2);
+        sb.append(':');
+        appendDigits(sb, cal.get(Calendar.MINUTE), 2);
+        sb.append(':');
+        String prefix = sb.toString();
+
+        int zoneMinutes = (cal.get(Calendar.ZONE_OFFSET) +
+                cal.get(Calendar.DST_OFFSET)) / 60000;
+        sb.setLength(0);
+        if (zoneMinutes == 0) {
+            sb.append('Z');
+        } else {
+            sb.append(zoneMinutes < 0 ? '-' : '+');
+            zoneMinutes = Math.abs(zoneMinutes);
+            appendDigits(sb, zoneMinutes / 60, 2);
+            sb.append(':');
+            appendDigits(sb, zoneMinutes % 60, 2);
+        }
+        return new Minute(cal.getTimeInMillis(), prefix.toCharArray(),
+                sb.toString().toCharArray());
+    }
+
+    private static void appendDigits(StringBuilder sb, int value, int width) {
+        String digits = Integer.toString(value);
+        for (int i = digits.length(); i < width; i++) {
+            sb.append('0');
+        }
+        sb.append(digits);
+    }
+
+    /**
+     * The preformatted fields of one minute.
+     */
+    private static final class Minute {
+        private final long start;
+        private final char[] prefix;
+        private final char[] zone;
+
+        private Minute(long start, char[] prefix, char[] zone) {
+            this.start = start;
+            this.prefix = prefix;
+            this.zone = zone;
+        }
+    }
+}
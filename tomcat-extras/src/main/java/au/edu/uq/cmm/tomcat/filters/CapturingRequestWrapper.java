@@ -0,0 +1,320 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.edu.uq.cmm.tomcat.filters;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+import au.edu.uq.cmm.tomcat.dumper.Parameters;
+
+
+/**
+ * <p>A request wrapper that copies the first part of whatever the application
+ * reads from the request body into a bounded buffer, and counts the total
+ * number of bytes read.  The body is only read when and as the application
+ * reads it, so wrapping a request doesn't change how an upload is
+ * streamed.</p>
+ *
+ * <p>The time spent blocked in read and skip calls on the wrapped stream is
+ * accumulated, so that slow uploads can be detected.  Note that if the
+ * application reads a form POST's parameters, the container normally reads
+ * the body directly, and neither the bytes nor the time are seen here.</p>
+ *
+ * <p>The wrapper notes whether the application asked for the parameters
+ * before it used the body, in which case the container has read and parsed
+ * a form POST's body itself.  The body parameters can then be fetched from
+ * the container after the request has been processed (see
+ * {@link #getContainerFormParameters()}) without changing anything that
+ * the application sees.</p>
+ *
+ * <p>The capture buffer is taken from a per-thread pool when the first byte
+ * is captured, and must be returned by calling {@link #release()} once the
+ * dump has been captured.</p>
+ *
+ * @author Stephen Crawley
+ */
+class CapturingRequestWrapper extends HttpServletRequestWrapper {
+
+    private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>();
+
+    private final int limit;
+    private boolean containerParsed;
+    private ServletInputStream stream;
+    private BufferedReader reader;
+    private byte[] captured;
+    private int capturedLength;
+    private long bytesRead;
+    private long readNanos;
+
+    /**
+     * @param request the request to be wrapped
+     * @param limit the maximum number of bytes to capture; zero to only
+     *     count bytes.
+     */
+    CapturingRequestWrapper(HttpServletRequest request, int limit) {
+        super(request);
+        this.limit = limit;
+    }
+
+    @Override
+    public String getParameter(String name) {
+        parametersUsed();
+        return super.getParameter(name);
+    }
+
+    @Override
+    public Map<String, String[]> getParameterMap() {
+        parametersUsed();
+        return super.getParameterMap();
+    }
+
+    @Override
+    public Enumeration<String> getParameterNames() {
+        parametersUsed();
+        return super.getParameterNames();
+    }
+
+    @Override
+    public String[] getParameterValues(String name) {
+        parametersUsed();
+        return super.getParameterValues(name);
+    }
+
+    @Override
+    public ServletInputStream getInputStream() throws IOException {
+        if (reader != null) {
+            throw new IllegalStateException("getReader() has been called");
+        }
+        if (stream == null) {
+            stream = new TeeInputStream(super.getInputStream());
+        }
+        return stream;
+    }
+
+    @Override
+    public BufferedReader getReader() throws IOException {
+        if (reader == null) {
+            if (stream != null) {
+                throw new IllegalStateException(
+                        "getInputStream() has been called");
+            }
+            stream = new TeeInputStream(super.getInputStream());
+            reader = new BufferedReader(
+                    new InputStreamReader(stream, getEncoding()));
+        }
+        return reader;
+    }
+
+    /**
+     * Get the total number of body bytes that the application read (or
+     * skipped), including any beyond the capture limit.
+     */
+    long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Get the total time spent in read and skip calls, in nanoseconds.
+     */
+    long getReadNanos() {
+        return readNanos;
+    }
+
+    /**
+     * Test if the captured body is an url-encoded form.
+     */
+    boolean isForm() {
+        return Parameters.isForm(getContentType());
+    }
+
+    /**
+     * Parse the form parameters from the captured part of the body.  If the
+     * application didn't read the body, or if the body is not a form, there
+     * are none.
+     */
+    Map<String, List<String>> getFormParameters() {
+        if (capturedLength == 0 || !isForm()) {
+            return Collections.emptyMap();
+        }
+        return Parameters.parse(captured, 0, capturedLength,
+                getCharacterEncoding());
+    }
+
+    /**
+     * Get the parameters that the container parsed from a form POST's
+     * body, if the application asked for the parameters before it used the
+     * body itself.  Otherwise there are none.  This is called after the
+     * request has been processed, when the body has already been parsed,
+     * so it has no side effects.  The container puts the body parameters
+     * after the query string's, so they are the values that follow the
+     * query string's for each name.
+     */
+    Map<String, List<String>> getContainerFormParameters() {
+        if (!containerParsed || !isForm()) {
+            return Collections.emptyMap();
+        }
+        Map<String, List<String>> query = 
+                Parameters.parse(getQueryString(), null);
+        Map<String, List<String>> res = 
+                new LinkedHashMap<String, List<String>>();
+        for (Map.Entry<String, String[]> entry : 
+                super.getParameterMap().entrySet()) {
+            List<String> queryValues = query.get(entry.getKey());
+            int skip = queryValues == null ? 0 : queryValues.size();
+            String[] values = entry.getValue();
+            if (values.length > skip) {
+                res.put(entry.getKey(), 
+                        Arrays.asList(values).subList(skip, values.length));
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Get the captured part of the body as text, or null if nothing was
+     * captured.
+     */
+    String getCapturedText() {
+        if (capturedLength == 0) {
+            return null;
+        }
+        try {
+            return new String(captured, 0, capturedLength, getEncoding());
+        } catch (UnsupportedEncodingException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Return the capture buffer to the current thread's pool.  The wrapper
+     * must not be used after this has been called.
+     */
+    void release() {
+        if (captured != null) {
+            byte[] buf = captured;
+            captured = null;
+            capturedLength = 0;
+            buffers.set(buf);
+        }
+    }
+
+    /**
+     * Note that the application asked for the parameters.  If it hasn't
+     * used the body yet, the container reads and parses a form POST's body
+     * now.
+     */
+    private void parametersUsed() {
+        if (stream == null) {
+            containerParsed = true;
+        }
+    }
+
+    private String getEncoding() {
+        String encoding = getCharacterEncoding();
+        return encoding == null ? Parameters.DEFAULT_ENCODING : encoding;
+    }
+
+    private void allocate() {
+        if (captured == null) {
+            byte[] buf = buffers.get();
+            if (buf == null || buf.length < limit) {
+                buf = new byte[limit];
+            } else {
+                // The buffer is ours until it is released.
+                buffers.remove();
+            }
+            captured = buf;
+        }
+    }
+
+    private void capture(byte[] buf, int offset, int len) {
+        int n = Math.min(len, limit - capturedLength);
+        if (n > 0) {
+            allocate();
+            System.arraycopy(buf, offset, captured, capturedLength, n);
+            capturedLength += n;
+        }
+    }
+
+    private final class TeeInputStream extends ServletInputStream {
+        private final ServletInputStream in;
+
+        private TeeInputStream(ServletInputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            long t = System.nanoTime();
+            int b = in.read();
+            readNanos += System.nanoTime() - t;
+            if (b >= 0) {
+                bytesRead++;
+                if (capturedLength < limit) {
+                    allocate();
+                    captured[capturedLength++] = (byte) b;
+                }
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buf, int offset, int len) throws IOException {
+            long t = System.nanoTime();
+            int n = in.read(buf, offset, len);
+            readNanos += System.nanoTime() - t;
+            if (n > 0) {
+                bytesRead += n;
+                capture(buf, offset, n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long t = System.nanoTime();
+            long skipped = in.skip(n);
+            readNanos += System.nanoTime() - t;
+            if (skipped > 0) {
+                bytesRead += skipped;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return in.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,475 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.edu.uq.cmm.tomcat.filters;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import au.edu.uq.cmm.tomcat.dumper.Parameters;
+
+
+/**
+ * <p>A response wrapper that counts the number of body bytes that the
+ * application writes via {@link #getOutputStream()} or {@link #getWriter()},
+ * and optionally copies the first part of the body into a bounded buffer.
+ * Unlike the declared content length, the count is available for chunked
+ * responses.</p>
+ *
+ * <p>The writer is obtained from the wrapped response, so the container's
+ * character encoding rules still apply.  Characters written to it are
+ * counted in bytes by their UTF-8 length when the response encoding is UTF-8,
+ * or one byte per character for a single byte encoding.  For any other
+ * encoding the count is an estimate based on the encoding's average bytes
+ * per character.</p>
+ *
+ * <p>The wrapper also records (using {@link System#nanoTime()}) when the
+ * application first wrote to the body, and when it first found the response
+ * to be committed.  The latter is checked after each write or flush, so it
+ * is accurate to within one write.</p>
+ *
+ * <p>The time spent in write and flush calls on the wrapped response is
+ * accumulated.  When the output is blocked by a slow client, this is the
+ * time that the request thread spent waiting for it.</p>
+ *
+ * <p>The capture buffers are taken from per-thread pools when the first
+ * byte or character is captured, and must be returned by calling
+ * {@link #release()} once the dump has been captured.</p>
+ *
+ * @author Stephen Crawley
+ */
+class CapturingResponseWrapper extends HttpServletResponseWrapper {
+
+    private static final ThreadLocal<byte[]> byteBuffers =
+            new ThreadLocal<byte[]>();
+    private static final ThreadLocal<char[]> charBuffers =
+            new ThreadLocal<char[]>();
+
+    private static final int UTF8 = 0;
+    private static final int SINGLE_BYTE = 1;
+    private static final int OTHER = 2;
+
+    private final int limit;
+    private ServletOutputStream stream;
+    private PrintWriter writer;
+    private int writerEncoding;
+    private float bytesPerChar;
+    private long bytesWritten;
+    private double estimatedBytes;
+    private byte[] capturedBytes;
+    private char[] capturedChars;
+    private int capturedLength;
+    private long firstWriteTime;
+    private long commitTime;
+    private long writeNanos;
+
+    /**
+     * @param response the response to be wrapped
+     * @param limit the maximum number of bytes (or characters) to capture;
+     *     zero to only count bytes.
+     */
+    CapturingResponseWrapper(HttpServletResponse response, int limit) {
+        super(response);
+        this.limit = limit;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (stream == null) {
+            stream = new TeeOutputStream(super.getOutputStream());
+        }
+        return stream;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if (writer == null) {
+            PrintWriter delegate = super.getWriter();
+            classifyEncoding(getCharacterEncoding());
+            writer = new TeePrintWriter(delegate);
+        }
+        return writer;
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        long t = System.nanoTime();
+        super.flushBuffer();
+        writeNanos += System.nanoTime() - t;
+        checkCommitted();
+    }
+
+    @Override
+    public void sendError(int sc, String msg) throws IOException {
+        super.sendError(sc, msg);
+        checkCommitted();
+    }
+
+    @Override
+    public void sendError(int sc) throws IOException {
+        super.sendError(sc);
+        checkCommitted();
+    }
+
+    @Override
+    public void sendRedirect(String location) throws IOException {
+        super.sendRedirect(location);
+        checkCommitted();
+    }
+
+    /**
+     * Get the time at which the application first wrote to the body, or 
+     * zero if it hasn't.
+     */
+    long getFirstWriteTime() {
+        return firstWriteTime;
+    }
+
+    /**
+     * Get the time at which the response was seen to be committed, or zero
+     * if it hasn't been.  This also checks whether it has just been
+     * committed.
+     */
+    long getCommitTime() {
+        checkCommitted();
+        return commitTime;
+    }
+
+    /**
+     * Get the total time spent in write and flush calls, in nanoseconds.
+     */
+    long getWriteNanos() {
+        return writeNanos;
+    }
+
+    /**
+     * Get the number of body bytes written by the application.
+     */
+    long getBytesWritten() {
+        return bytesWritten + (long) estimatedBytes;
+    }
+
+    /**
+     * Get the captured part of the body as text, or null if nothing was
+     * captured.
+     */
+    String getCapturedText() {
+        if (capturedLength == 0) {
+            return null;
+        }
+        if (capturedChars != null) {
+            return new String(capturedChars, 0, capturedLength);
+        }
+        String encoding = getCharacterEncoding();
+        try {
+            return new String(capturedBytes, 0, capturedLength,
+                    encoding == null ? Parameters.DEFAULT_ENCODING : encoding);
+        } catch (UnsupportedEncodingException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Return the capture buffers to the current thread's pools.  The wrapper
+     * must not be used after this has been called.
+     */
+    void release() {
+        if (capturedBytes != null) {
+            byteBuffers.set(capturedBytes);
+            capturedBytes = null;
+        }
+        if (capturedChars != null) {
+            charBuffers.set(capturedChars);
+            capturedChars = null;
+        }
+        capturedLength = 0;
+    }
+
+    private void wrote() {
+        if (firstWriteTime == 0) {
+            firstWriteTime = System.nanoTime();
+        }
+        checkCommitted();
+    }
+
+    private void checkCommitted() {
+        if (commitTime == 0 && getResponse().isCommitted()) {
+            commitTime = System.nanoTime();
+        }
+    }
+
+    private void classifyEncoding(String encoding) {
+        writerEncoding = OTHER;
+        bytesPerChar = 1.0f;
+        if (encoding == null) {
+            writerEncoding = SINGLE_BYTE;
+            return;
+        }
+        try {
+            Charset charset = Charset.forName(encoding);
+            if (charset.name().equals("UTF-8")) {
+                writerEncoding = UTF8;
+            } else {
+                float max = charset.newEncoder().maxBytesPerChar();
+                if (max == 1.0f) {
+                    writerEncoding = SINGLE_BYTE;
+                } else {
+                    bytesPerChar = charset.newEncoder().averageBytesPerChar();
+                }
+            }
+        } catch (RuntimeException ex) {
+            // Unknown or unsupported encoding; count one byte per char.
+        }
+    }
+
+    private void countChar(char ch) {
+        switch (writerEncoding) {
+        case UTF8:
+            bytesWritten += utf8Length(ch);
+            break;
+        case SINGLE_BYTE:
+            bytesWritten++;
+            break;
+        default:
+            estimatedBytes += bytesPerChar;
+        }
+    }
+
+    private void countChars(char[] buf, int offset, int len) {
+        switch (writerEncoding) {
+        case UTF8:
+            for (int i = offset; i < offset + len; i++) {
+                bytesWritten += utf8Length(buf[i]);
+            }
+            break;
+        case SINGLE_BYTE:
+            bytesWritten += len;
+            break;
+        default:
+            estimatedBytes += len * bytesPerChar;
+        }
+    }
+
+    private void countChars(String str, int offset, int len) {
+        switch (writerEncoding) {
+        case UTF8:
+            for (int i = offset; i < offset + len; i++) {
+                bytesWritten += utf8Length(str.charAt(i));
+            }
+            break;
+        case SINGLE_BYTE:
+            bytesWritten += len;
+            break;
+        default:
+            estimatedBytes += len * bytesPerChar;
+        }
+    }
+
+    /**
+     * The UTF-8 length of a char.  A surrogate pair encodes as 4 bytes, 
+     * so each half counts as 2.
+     */
+    private static int utf8Length(char ch) {
+        if (ch < 0x80) {
+            return 1;
+        } else if (ch < 0x800 || Character.isSurrogate(ch)) {
+            return 2;
+        } else {
+            return 3;
+        }
+    }
+
+    private void captureBytes(byte[] buf, int offset, int len) {
+        int n = Math.min(len, limit - capturedLength);
+        if (n > 0) {
+            if (capturedBytes == null) {
+                capturedBytes = takeBytes();
+            }
+            System.arraycopy(buf, offset, capturedBytes, capturedLength, n);
+            capturedLength += n;
+        }
+    }
+
+    private void captureChar(char ch) {
+        if (capturedLength < limit) {
+            if (capturedChars == null) {
+                capturedChars = takeChars();
+            }
+            capturedChars[capturedLength++] = ch;
+        }
+    }
+
+    private void captureChars(char[] buf, int offset, int len) {
+        int n = Math.min(len, limit - capturedLength);
+        if (n > 0) {
+            if (capturedChars == null) {
+                capturedChars = takeChars();
+            }
+            System.arraycopy(buf, offset, capturedChars, capturedLength, n);
+            capturedLength += n;
+        }
+    }
+
+    private void captureChars(String str, int offset, int len) {
+        int n = Math.min(len, limit - capturedLength);
+        if (n > 0) {
+            if (capturedChars == null) {
+                capturedChars = takeChars();
+            }
+            str.getChars(offset, offset + n, capturedChars, capturedLength);
+            capturedLength += n;
+        }
+    }
+
+    private byte[] takeBytes() {
+        byte[] buf = byteBuffers.get();
+        if (buf == null || buf.length < limit) {
+            return new byte[limit];
+        }
+        byteBuffers.remove();
+        return buf;
+    }
+
+    private char[] takeChars() {
+        char[] buf = charBuffers.get();
+        if (buf == null || buf.length < limit) {
+            return new char[limit];
+        }
+        charBuffers.remove();
+        return buf;
+    }
+
+    private final class TeeOutputStream extends ServletOutputStream {
+        private final ServletOutputStream out;
+
+        private TeeOutputStream(ServletOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            long t = System.nanoTime();
+            out.write(b);
+            writeNanos += System.nanoTime() - t;
+            bytesWritten++;
+            wrote();
+            if (capturedLength < limit) {
+                if (capturedBytes == null) {
+                    capturedBytes = takeBytes();
+                }
+                capturedBytes[capturedLength++] = (byte) b;
+            }
+        }
+
+        @Override
+        public void write(byte[] buf, int offset, int len) throws IOException {
+            long t = System.nanoTime();
+            out.write(buf, offset, len);
+            writeNanos += System.nanoTime() - t;
+            bytesWritten += len;
+            if (len > 0) {
+                wrote();
+            }
+            captureBytes(buf, offset, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            long t = System.nanoTime();
+            out.flush();
+            writeNanos += System.nanoTime() - t;
+            checkCommitted();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * The counting is done in a Writer that sits between this PrintWriter
+     * and the container's writer, because PrintWriter writes line
+     * separators directly to its underlying Writer.
+     */
+    private final class TeePrintWriter extends PrintWriter {
+        private final PrintWriter delegate;
+
+        private TeePrintWriter(final PrintWriter delegate) {
+            super(new Writer() {
+                @Override
+                public void write(int c) {
+                    long t = System.nanoTime();
+                    delegate.write(c);
+                    writeNanos += System.nanoTime() - t;
+                    wrote();
+                    countChar((char) c);
+                    captureChar((char) c);
+                }
+
+                @Override
+                public void write(char[] buf, int offset, int len) {
+                    long t = System.nanoTime();
+                    delegate.write(buf, offset, len);
+                    writeNanos += System.nanoTime() - t;
+                    if (len > 0) {
+                        wrote();
+                    }
+                    countChars(buf, offset, len);
+                    captureChars(buf, offset, len);
+                }
+
+                @Override
+                public void write(String str, int offset, int len) {
+                    long t = System.nanoTime();
+                    delegate.write(str, offset, len);
+                    writeNanos += System.nanoTime() - t;
+                    if (len > 0) {
+                        wrote();
+                    }
+                    countChars(str, offset, len);
+                    captureChars(str, offset, len);
+                }
+
+                @Override
+                public void flush() {
+                    long t = System.nanoTime();
+                    delegate.flush();
+                    writeNanos += System.nanoTime() - t;
+                    checkCommitted();
+                }
+
+                @Override
+                public void close() {
+                    delegate.close();
+                }
+            });
+            this.delegate = delegate;
+        }
+
+        @Override
+        public boolean checkError() {
+            return super.checkError() || delegate.checkError();
+        }
+    }
+}
@@ -17,10 +17,9 @@
 package au.edu.uq.cmm.tomcat.filters;
 
 import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 import java.util.Enumeration;
-import java.util.regex.Pattern;
+import java.util.List;
+import java.util.Map;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -35,6 +34,12 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 
+import au.edu.uq.cmm.tomcat.dumper.DumpRecord;
+import au.edu.uq.cmm.tomcat.dumper.DumperConfig;
+import au.edu.uq.cmm.tomcat.dumper.NameMatcher;
+import au.edu.uq.cmm.tomcat.dumper.Parameters;
+import au.edu.uq.cmm.tomcat.dumper.RequestDumper;
+
 
 /**
  * <p>Implementation of a Filter that logs interesting contents from the
@@ -48,6 +53,12 @@ import org.apache.juli.logging.LogFactory;
  * By default, parameters with the name "password" are obscured, and cookie
  * and header values left intact.</p>
  * 
+ * <p>While the filter is started, its settings can also be viewed and changed
+ * at runtime via the <code>au.edu.uq.cmm.tomcat:type=RequestDumper</code>
+ * MBean; e.g. to turn dumping on for the duration of an incident.  The
+ * MBean's name is the webapp's context path and the filter name; e.g.
+ * <code>/app/RequestDumper</code>.</p>
+ * 
  * <p>When using this Filter, it is strongly recommended that the
  * <code>org.apache.catalina.filter.RequestDumperFilter</code> logger is
  * directed to a dedicated file and that the
@@ -71,24 +82,81 @@ public class RequestDumperFilter implements Filter {
             "requestHeaderFilter";
     protected static final String RESPONSE_HEADER_FILTER_PARAMETER = 
             "responseHeaderFilter";
-
-    private static final ThreadLocal<Timestamp> timestamp =
-            new ThreadLocal<Timestamp>() {
-        @Override
-        protected Timestamp initialValue() {
-            return new Timestamp();
-        }
-    };
+    protected static final String FILTER_ENGINE_PARAMETER = 
+            "filterEngine";
+    protected static final String CONFIG_FILE_PARAMETER = 
+            "configFile";
+    protected static final String BINARY_FILE_PARAMETER = 
+            "binaryFile";
+    protected static final String DUMP_FILE_PARAMETER = 
+            "dumpFile";
+    protected static final String SEGMENT_SIZE_PARAMETER = 
+            "segmentSize";
+    protected static final String SEGMENT_INTERVAL_PARAMETER = 
+            "segmentInterval";
+    protected static final String COMPRESSION_PARAMETER = 
+            "compression";
+    protected static final String COMPRESSION_THREADS_PARAMETER = 
+            "compressionThreads";
+    protected static final String DUMP_FILE_MODE_PARAMETER = 
+            "dumpFileMode";
+    protected static final String BATCH_SIZE_PARAMETER = 
+            "batchSize";
+    protected static final String BATCH_WINDOW_PARAMETER = 
+            "batchWindow";
+    protected static final String SYNC_POLICY_PARAMETER = 
+            "syncPolicy";
+    protected static final String SYNC_INTERVAL_PARAMETER = 
+            "syncInterval";
+    protected static final String ENABLED_PARAMETER = 
+            "enabled";
+    protected static final String DUMP_PARAMETER = 
+            "dump";
+    protected static final String AGGREGATE_PARAMETER = 
+            "aggregate";
+    protected static final String SINGLE_RECORD_PARAMETER = 
+            "singleRecord";
+    protected static final String FORMAT_PARAMETER = 
+            "format";
+    protected static final String ASYNC_PARAMETER = 
+            "async";
+    protected static final String QUEUE_SIZE_PARAMETER = 
+            "queueSize";
+    protected static final String BLOCK_WHEN_FULL_PARAMETER = 
+            "blockWhenFull";
+    protected static final String FAILURES_ONLY_PARAMETER = 
+            "failuresOnly";
+    protected static final String FAILURE_STATUS_PARAMETER = 
+            "failureStatus";
+    protected static final String SLOW_THRESHOLD_PARAMETER = 
+            "slowThreshold";
+    protected static final String SPLIT_TIMINGS_PARAMETER = 
+            "splitTimings";
+    protected static final String SAMPLE_RATE_PARAMETER = 
+            "sampleRate";
+    protected static final String SAMPLE_LIMIT_PARAMETER = 
+            "sampleLimit";
+    protected static final String SAMPLE_RULES_PARAMETER = 
+            "sampleRules";
+    protected static final String PARAM_MODE_PARAMETER = 
+            "paramMode";
+    protected static final String CAPTURE_BODY_PARAMETER = 
+            "captureBody";
+    protected static final String BODY_LIMIT_PARAMETER = 
+            "bodyLimit";
+    protected static final String CAPTURE_RESPONSE_BODY_PARAMETER = 
+            "captureResponseBody";
+    protected static final String SLOW_CLIENT_THRESHOLD_PARAMETER = 
+            "slowClientThreshold";
+    protected static final String SLOW_UPLOAD_THRESHOLD_PARAMETER = 
+            "slowUploadThreshold";
 
     /**
      * The logger for this class.
      */
     private static final Log log = LogFactory.getLog(RequestDumperFilter.class);
 
-    private Pattern paramFilter = Pattern.compile("password");
-    private Pattern cookieFilter = null;
-    private Pattern requestHeaderFilter = null;
-    private Pattern responseHeaderFilter = null;
+    private final RequestDumper dumper = new RequestDumper(true);
     
     
     /**
@@ -99,12 +167,11 @@ public class RequestDumperFilter implements Filter {
      *     disable parameter obscuring.
      */
     public void setParamFilter(String paramFilter) {
-        this.paramFilter = paramFilter.isEmpty() ? null :
-            Pattern.compile(paramFilter);
+        dumper.setParamFilter(paramFilter);
     }
 
     public String getParamFilter() {
-        return paramFilter.toString();
+        return dumper.getParamFilter();
     }
 
     /**
@@ -115,12 +182,11 @@ public class RequestDumperFilter implements Filter {
      *     disable cookie obscuring.
      */
     public void setCookieFilter(String cookieFilter) {
-        this.cookieFilter = cookieFilter.isEmpty() ? null :
-            Pattern.compile(cookieFilter);
+        dumper.setCookieFilter(cookieFilter);
     }
 
     public String getCookieFilter() {
-        return cookieFilter.toString();
+        return dumper.getCookieFilter();
     }
 
     /**
@@ -131,12 +197,11 @@ public class RequestDumperFilter implements Filter {
      *     disable request header obscuring.
      */
     public void setRequestHeaderFilter(String requestHeaderFilter) {
-        this.requestHeaderFilter = requestHeaderFilter.isEmpty() ? null : 
-            Pattern.compile(requestHeaderFilter);
+        dumper.setRequestHeaderFilter(requestHeaderFilter);
     }
 
     public String getRequestHeaderFilter() {
-        return requestHeaderFilter.toString();
+        return dumper.getRequestHeaderFilter();
     }
 
     /**
@@ -147,12 +212,573 @@ public class RequestDumperFilter implements Filter {
      *     disable response header obscuring.
      */
     public void setResponseHeaderFilter(String responseHeaderFilter) {
-        this.responseHeaderFilter = responseHeaderFilter.isEmpty() ? null : 
-            Pattern.compile(responseHeaderFilter);
+        dumper.setResponseHeaderFilter(responseHeaderFilter);
     }
 
     public String getResponseHeaderFilter() {
-        return responseHeaderFilter.toString();
+        return dumper.getResponseHeaderFilter();
+    }
+
+    /**
+     * This parameter selects the engine used to match the filter regexes;
+     * "regex" (the default) for <code>java.util.regex</code>, or "dfa" for
+     * an automaton-based engine that guarantees linear time matching but
+     * does not support backtracking features such as backreferences and
+     * lookaround.  Changing the engine recompiles the filter regexes.
+     * 
+     * @param filterEngine the engine name.
+     */
+    public void setFilterEngine(String filterEngine) {
+        dumper.setFilterEngine(filterEngine);
+    }
+
+    public String getFilterEngine() {
+        return dumper.getFilterEngine();
+    }
+
+    /**
+     * This parameter gives the pathname of a properties file that the
+     * settings are loaded from when the filter is started.  The file is 
+     * watched, and reloaded whenever it changes.  The property names are 
+     * the same as the parameter names, and the properties override the
+     * parameters.  A relative pathname is resolved against 
+     * <code>catalina.base</code>.  The default is no file.
+     * 
+     * @param configFile the pathname, or an empty string.
+     */
+    public void setConfigFile(String configFile) {
+        dumper.setConfigFile(configFile);
+    }
+
+    public String getConfigFile() {
+        String configFile = dumper.getConfigFile();
+        return configFile == null ? "" : configFile;
+    }
+
+    /**
+     * This parameter gives the pathname of the file that records are 
+     * appended to when the format is "binary".  A relative pathname is 
+     * resolved against <code>catalina.base</code>.  The default is no 
+     * file, in which case "binary" records are logged as text.
+     * 
+     * @param binaryFile the pathname, or an empty string.
+     */
+    public void setBinaryFile(String binaryFile) {
+        dumper.setBinaryFile(binaryFile);
+    }
+
+    public String getBinaryFile() {
+        String binaryFile = dumper.getBinaryFile();
+        return binaryFile == null ? "" : binaryFile;
+    }
+
+    /**
+     * This parameter gives the pathname that dump file segment names are 
+     * based on.  If it is set, dumps are written straight to memory-mapped
+     * segment files in the selected format, rather than to the log.  The
+     * segments are named <i>pathname</i>.<i>yyyyMMdd-HHmmss</i>.<i>n</i>
+     * with a ".log", ".json" or ".rdmp" extension.  A relative pathname is
+     * resolved against <code>catalina.base</code>.  The default is no 
+     * dump file.
+     * 
+     * @param dumpFile the pathname, or an empty string.
+     */
+    public void setDumpFile(String dumpFile) {
+        dumper.setDumpFile(dumpFile);
+    }
+
+    public String getDumpFile() {
+        String dumpFile = dumper.getDumpFile();
+        return dumpFile == null ? "" : dumpFile;
+    }
+
+    /**
+     * This parameter gives the size of each dump file segment in bytes.
+     * The default is 64 MiB.
+     * 
+     * @param segmentSize the segment size.
+     */
+    public void setSegmentSize(int segmentSize) {
+        dumper.setSegmentSize(segmentSize);
+    }
+
+    public int getSegmentSize() {
+        return dumper.getSegmentSize();
+    }
+
+    /**
+     * This parameter gives the time in milliseconds after which a dump
+     * file segment is rolled over, even if it is not full.  The default
+     * is one hour; zero means that segments are only rolled over when 
+     * they are full.
+     * 
+     * @param segmentInterval the interval in milliseconds, or zero.
+     */
+    public void setSegmentInterval(long segmentInterval) {
+        dumper.setSegmentInterval(segmentInterval);
+    }
+
+    public long getSegmentInterval() {
+        return dumper.getSegmentInterval();
+    }
+
+    /**
+     * This parameter selects how completed dump file segments are
+     * compressed: "none" (the default), "gzip", or "lz4" which is faster 
+     * than gzip but compresses less.  Compression runs on low priority 
+     * background threads, and never holds up requests.
+     * 
+     * @param compression the compression codec.
+     */
+    public void setCompression(String compression) {
+        dumper.setCompression(compression);
+    }
+
+    public String getCompression() {
+        return dumper.getCompression();
+    }
+
+    /**
+     * This parameter gives the number of threads that compress dump file
+     * segments.  The default is half the number of processors.
+     * 
+     * @param compressionThreads the number of threads.
+     */
+    public void setCompressionThreads(int compressionThreads) {
+        dumper.setCompressionThreads(compressionThreads);
+    }
+
+    public int getCompressionThreads() {
+        return dumper.getCompressionThreads();
+    }
+
+    /**
+     * This parameter selects how dumps are written to the dump file.  In
+     * "mapped" mode (the default), request threads copy their dumps
+     * straight into memory-mapped segments.  In "batched" mode, the async
+     * writer thread (which is started even if async mode is off) writes 
+     * the dumps that have queued up with one gathering write per batch.
+     * 
+     * @param dumpFileMode "mapped" or "batched".
+     */
+    public void setDumpFileMode(String dumpFileMode) {
+        dumper.setDumpFileMode(dumpFileMode);
+    }
+
+    public String getDumpFileMode() {
+        return dumper.getDumpFileMode();
+    }
+
+    /**
+     * This parameter gives the maximum number of dumps that the async
+     * writer thread takes at a time.  The default is 256.
+     * 
+     * @param batchSize the maximum batch size.
+     */
+    public void setBatchSize(int batchSize) {
+        dumper.setBatchSize(batchSize);
+    }
+
+    public int getBatchSize() {
+        return dumper.getBatchSize();
+    }
+
+    /**
+     * This parameter gives the time in milliseconds that the writer thread
+     * waits for a batch to fill in "batched" mode.  The default is 2ms.
+     * 
+     * @param batchWindow the window in milliseconds, or zero.
+     */
+    public void setBatchWindow(long batchWindow) {
+        dumper.setBatchWindow(batchWindow);
+    }
+
+    public long getBatchWindow() {
+        return dumper.getBatchWindow();
+    }
+
+    /**
+     * This parameter says when a batched dump file is forced to disk:
+     * "never" (though segments are synced when they are closed), 
+     * "interval" (the default) for at most once per sync interval, or
+     * "batch" for after every batch.
+     * 
+     * @param syncPolicy the sync policy.
+     */
+    public void setSyncPolicy(String syncPolicy) {
+        dumper.setSyncPolicy(syncPolicy);
+    }
+
+    public String getSyncPolicy() {
+        return dumper.getSyncPolicy();
+    }
+
+    /**
+     * This parameter gives the sync interval in milliseconds for the 
+     * "interval" sync policy.  The default is 1000ms.
+     * 
+     * @param syncInterval the interval in milliseconds.
+     */
+    public void setSyncInterval(long syncInterval) {
+        dumper.setSyncInterval(syncInterval);
+    }
+
+    public long getSyncInterval() {
+        return dumper.getSyncInterval();
+    }
+
+    /**
+     * This parameter is the master switch.  If it is false, requests are 
+     * passed straight through, without being dumped or aggregated, at the
+     * cost of reading one volatile field.  It is true by default, and 
+     * would normally be changed at runtime via JMX.
+     * 
+     * @param enabled false to disable the filter.
+     */
+    public void setEnabled(boolean enabled) {
+        dumper.setEnabled(enabled);
+    }
+
+    public boolean getEnabled() {
+        return dumper.isEnabled();
+    }
+
+    /**
+     * This parameter determines whether requests are dumped.  It is true
+     * by default, and is normally only set to false when aggregate mode
+     * is enabled.
+     * 
+     * @param dump false to disable dumping.
+     */
+    public void setDump(boolean dump) {
+        dumper.setDump(dump);
+    }
+
+    public boolean getDump() {
+        return dumper.isDump();
+    }
+
+    /**
+     * This parameter selects "aggregate" mode, in which the latencies of
+     * all requests are recorded in histograms keyed by context path, servlet
+     * path, method and status class, and published as MBeans.  This is
+     * disabled by default.
+     * 
+     * @param aggregate true to enable aggregate mode.
+     */
+    public void setAggregate(boolean aggregate) {
+        dumper.setAggregate(aggregate);
+    }
+
+    public boolean getAggregate() {
+        return dumper.isAggregate();
+    }
+
+    /**
+     * This parameter selects "single record" mode, in which the entire
+     * dump for a request is logged as one message after the request has
+     * been processed, rather than as one message per line.  This is 
+     * disabled by default.
+     * 
+     * @param singleRecord true to enable single record mode.
+     */
+    public void setSingleRecord(boolean singleRecord) {
+        dumper.setSingleRecord(singleRecord);
+    }
+
+    public boolean getSingleRecord() {
+        return dumper.isSingleRecord();
+    }
+
+    /**
+     * This parameter selects the output format.  In "text" format (the
+     * default), the dump is the traditional multi-line layout.  In "json"
+     * format, each request is logged as a single JSON object on one line,
+     * with repeated headers, cookies and parameters grouped into arrays.
+     * In "binary" format, records are written to the dump file (or else the
+     * binary dump file) in a compact encoding that can be converted back to
+     * text or JSON with {@link au.edu.uq.cmm.tomcat.dumper.DumpDecoder}.
+     * 
+     * @param format the output format.
+     */
+    public void setFormat(String format) {
+        dumper.setFormat(format);
+    }
+
+    public String getFormat() {
+        return dumper.getFormat();
+    }
+
+    /**
+     * This parameter selects "async" mode, in which each request's dump
+     * is queued for formatting and logging by a background thread.  This
+     * is disabled by default.
+     * 
+     * @param async true to enable async mode.
+     */
+    public void setAsync(boolean async) {
+        dumper.setAsync(async);
+    }
+
+    public boolean getAsync() {
+        return dumper.isAsync();
+    }
+
+    /**
+     * This parameter gives the capacity of the async mode queue.  The
+     * default is 1024 requests.
+     * 
+     * @param queueSize the queue capacity.
+     */
+    public void setQueueSize(int queueSize) {
+        dumper.setQueueSize(queueSize);
+    }
+
+    public int getQueueSize() {
+        return dumper.getQueueSize();
+    }
+
+    /**
+     * This parameter determines what happens when the async mode queue is
+     * full.  If true, the request thread waits for space in the queue.  If
+     * false (the default), the request's dump is dropped and counted.
+     * 
+     * @param blockWhenFull true to block rather than drop.
+     */
+    public void setBlockWhenFull(boolean blockWhenFull) {
+        dumper.setBlockWhenFull(blockWhenFull);
+    }
+
+    public boolean getBlockWhenFull() {
+        return dumper.isBlockWhenFull();
+    }
+
+    /**
+     * This parameter selects "failures only" mode, in which a request is
+     * only dumped if it threw an exception, if its response status is at
+     * least the failure status, or if it took longer than the slow 
+     * threshold.  This is disabled by default.
+     * 
+     * @param failuresOnly true to enable failures only mode.
+     */
+    public void setFailuresOnly(boolean failuresOnly) {
+        dumper.setFailuresOnly(failuresOnly);
+    }
+
+    public boolean getFailuresOnly() {
+        return dumper.isFailuresOnly();
+    }
+
+    /**
+     * This parameter gives the lowest response status that counts as a
+     * failure in "failures only" mode.  The default is 500.
+     * 
+     * @param failureStatus the failure status.
+     */
+    public void setFailureStatus(int failureStatus) {
+        dumper.setFailureStatus(failureStatus);
+    }
+
+    public int getFailureStatus() {
+        return dumper.getFailureStatus();
+    }
+
+    /**
+     * This parameter gives the time in milliseconds after which a request
+     * counts as a failure in "failures only" mode.  The default is zero,
+     * which means that slow requests are not dumped.
+     * 
+     * @param slowThreshold the threshold in milliseconds, or zero.
+     */
+    public void setSlowThreshold(long slowThreshold) {
+        dumper.setSlowThreshold(slowThreshold);
+    }
+
+    public long getSlowThreshold() {
+        return dumper.getSlowThreshold();
+    }
+
+    /**
+     * This parameter enables split timings, in which the request duration
+     * in the dump is broken down into the time spent in the rest of the
+     * chain and the time spent by the dumper itself.  This is disabled by
+     * default.
+     * 
+     * @param splitTimings true to enable split timings.
+     */
+    public void setSplitTimings(boolean splitTimings) {
+        dumper.setSplitTimings(splitTimings);
+    }
+
+    public boolean getSplitTimings() {
+        return dumper.isSplitTimings();
+    }
+
+    /**
+     * This parameter gives the probability that a request will be dumped,
+     * as a number between 0.0 and 1.0.  The default is 1.0; i.e. all 
+     * requests are dumped.
+     * 
+     * @param sampleRate the sample rate.
+     */
+    public void setSampleRate(String sampleRate) {
+        dumper.setSampleRate(Double.parseDouble(sampleRate));
+    }
+
+    public String getSampleRate() {
+        return Double.toString(dumper.getSampleRate());
+    }
+
+    /**
+     * This parameter gives the maximum number of requests per second
+     * that will be dumped.  The default is zero; i.e. no limit.
+     * 
+     * @param sampleLimit the rate limit, or zero.
+     */
+    public void setSampleLimit(int sampleLimit) {
+        dumper.setSampleLimit(sampleLimit);
+    }
+
+    public int getSampleLimit() {
+        return dumper.getSampleLimit();
+    }
+
+    /**
+     * This parameter gives sample rates for requests whose URIs start
+     * with particular prefixes, overriding the overall sample rate.  The
+     * rules are given as <code>prefix=rate,prefix=rate,...</code>, and the
+     * longest matching prefix wins.  The default is an empty string; i.e.
+     * no rules.
+     * 
+     * @param sampleRules the rules.
+     */
+    public void setSampleRules(String sampleRules) {
+        dumper.setSampleRules(sampleRules);
+    }
+
+    public String getSampleRules() {
+        return dumper.getSampleRules();
+    }
+
+    /**
+     * This parameter determines how request parameters are captured.  In 
+     * "all" mode (the default), all parameters are logged; this makes the
+     * container read and parse the body of a form POST before the 
+     * application sees it.  In "query" mode, only the parameters in the
+     * query string are logged, and the body is left alone.  In "tee" mode,
+     * the query string parameters are logged before the request is
+     * processed, and the form parameters from the first part of the body
+     * that the application read are logged afterwards.  (If the application
+     * gets a form POST's parameters rather than reading the body itself,
+     * the container parses the body, and the body parameters are fetched
+     * from the container afterwards.)  In "none" mode, parameters are not
+     * logged.
+     * 
+     * @param paramMode the parameter mode.
+     */
+    public void setParamMode(String paramMode) {
+        dumper.setParamMode(paramMode);
+    }
+
+    public String getParamMode() {
+        return dumper.getParamMode();
+    }
+
+    /**
+     * This parameter enables request body capture.  The first part of
+     * whatever the application reads from the request body is copied 
+     * aside, and logged after the request has been processed, along with
+     * the total number of bytes read.  The body of an url-encoded form is 
+     * logged as parameters, so that the parameter filter applies to it.
+     * This is disabled by default.
+     * 
+     * @param captureBody true to enable body capture.
+     */
+    public void setCaptureBody(boolean captureBody) {
+        dumper.setCaptureBody(captureBody);
+    }
+
+    public boolean getCaptureBody() {
+        return dumper.isCaptureBody();
+    }
+
+    /**
+     * This parameter enables response body capture.  The first part of
+     * whatever the application writes to the response body is copied 
+     * aside, and logged after the request has been processed.  The number
+     * of body bytes written is always logged.  This is disabled by default.
+     * 
+     * @param captureResponseBody true to enable response body capture.
+     */
+    public void setCaptureResponseBody(boolean captureResponseBody) {
+        dumper.setCaptureResponseBody(captureResponseBody);
+    }
+
+    public boolean getCaptureResponseBody() {
+        return dumper.isCaptureResponseBody();
+    }
+
+    /**
+     * This parameter gives the time in milliseconds that a request must
+     * spend blocked writing its response before it is flagged as having a
+     * slow client.  A request is only flagged if this is also more than half
+     * of its latency.  The default is 1000; zero disables the flag.
+     * 
+     * @param slowClientThreshold the threshold in milliseconds, or zero.
+     */
+    public void setSlowClientThreshold(long slowClientThreshold) {
+        dumper.setSlowClientThreshold(slowClientThreshold);
+    }
+
+    public long getSlowClientThreshold() {
+        return dumper.getSlowClientThreshold();
+    }
+
+    /**
+     * This parameter gives the time in milliseconds that a request must
+     * spend blocked reading its body before it is flagged as a slow upload.
+     * A request is only flagged if this is also more than half of its 
+     * latency.  The default is 1000; zero disables the flag.
+     * 
+     * @param slowUploadThreshold the threshold in milliseconds, or zero.
+     */
+    public void setSlowUploadThreshold(long slowUploadThreshold) {
+        dumper.setSlowUploadThreshold(slowUploadThreshold);
+    }
+
+    public long getSlowUploadThreshold() {
+        return dumper.getSlowUploadThreshold();
+    }
+
+    /**
+     * This parameter gives the maximum number of request or response body
+     * bytes that are captured in "tee" parameter mode or when body capture
+     * is enabled.  The default is 8192.
+     * 
+     * @param bodyLimit the limit in bytes.
+     */
+    public void setBodyLimit(int bodyLimit) {
+        dumper.setBodyLimit(bodyLimit);
+    }
+
+    public int getBodyLimit() {
+        return dumper.getBodyLimit();
+    }
+
+    /**
+     * Return the number of dumps that have been written by the async 
+     * writer thread.
+     */
+    public long getWrittenRecords() {
+        return dumper.getWrittenRecords();
+    }
+
+    /**
+     * Return the number of dumps that have been dropped because the 
+     * async mode queue was full.
+     */
+    public long getDroppedRecords() {
+        return dumper.getDroppedRecords();
     }
 
     /**
@@ -170,6 +796,24 @@ public class RequestDumperFilter implements Filter {
             FilterChain chain)
         throws IOException, ServletException {
 
+        DumperConfig config = dumper.getConfig();
+        if (!config.isEnabled()) {
+            chain.doFilter(request, response);
+        } else {
+            doFilterEnabled(config, request, response, chain);
+        }
+    }
+
+    /**
+     * The body of {@link #doFilter} for when the filter is enabled.  This
+     * is kept separate so that <code>doFilter</code> stays small enough
+     * for the JIT compiler to inline, which makes the disabled case as
+     * cheap as a filter that just passes the request on.
+     */
+    private void doFilterEnabled(DumperConfig config, ServletRequest request,
+            ServletResponse response, FilterChain chain)
+        throws IOException, ServletException {
+
         HttpServletRequest hRequest = null;
         HttpServletResponse hResponse = null;
         
@@ -180,188 +824,411 @@ public class RequestDumperFilter implements Filter {
             hResponse = (HttpServletResponse) response;
         }
 
-        // Log pre-service information
-        doLog("START TIME        ", getTimestamp());
-        
-        if (hRequest == null) {
-            doLog("        requestURI", NON_HTTP_REQ_MSG);
-            doLog("          authType", NON_HTTP_REQ_MSG);
-        } else {
-            doLog("        requestURI", hRequest.getRequestURI());
-            doLog("          authType", hRequest.getAuthType());
+        if (!config.isDump() || !config.isSampled(hRequest)) {
+            if (dumper.isAggregating()) {
+                CapturingRequestWrapper requestWrapper = hRequest == null ?
+                        null : new CapturingRequestWrapper(hRequest, 0);
+                CapturingResponseWrapper responseWrapper = hResponse == null ? 
+                        null : new CapturingResponseWrapper(hResponse, 0);
+                long start = System.nanoTime();
+                int status = 500;
+                try {
+                    chain.doFilter(
+                            requestWrapper == null ? request : requestWrapper, 
+                            responseWrapper == null ? response : responseWrapper);
+                    status = hResponse == null ? 0 : hResponse.getStatus();
+                } finally {
+                    aggregate(config, hRequest, requestWrapper, 
+                            responseWrapper, status, start, System.nanoTime() - start);
+                    releaseWrappers(hRequest, requestWrapper, responseWrapper);
+                }
+            } else {
+                chain.doFilter(request, response);
+            }
+            return;
         }
-        
-        doLog(" characterEncoding", request.getCharacterEncoding());
-        doLog("     contentLength",
-                Integer.valueOf(request.getContentLength()).toString());
-        doLog("       contentType", request.getContentType());
-        
-        if (hRequest == null) {
-            doLog("       contextPath", NON_HTTP_REQ_MSG);
-            doLog("            cookie", NON_HTTP_REQ_MSG);
-            doLog("            header", NON_HTTP_REQ_MSG);
-        } else {
-            doLog("       contextPath", hRequest.getContextPath());
-            Cookie cookies[] = hRequest.getCookies();
-            if (cookies != null) {
-                for (int i = 0; i < cookies.length; i++) {
-                    doLog("            cookie", cookies[i].getName() + "=" + 
-                            filter(cookies[i].getName(), 
-                                    cookies[i].getValue(), cookieFilter));
+
+        CapturingRequestWrapper requestWrapper = null;
+        CapturingResponseWrapper responseWrapper = null;
+        DumpRecord record = dumper.begin(config);
+        try {
+            // Capture pre-service information
+            record.addTimestamp("START TIME        ", 
+                    System.currentTimeMillis());
+            
+            if (hRequest == null) {
+                record.add("        requestURI", NON_HTTP_REQ_MSG);
+                record.add("          authType", NON_HTTP_REQ_MSG);
+            } else {
+                record.add("        requestURI", hRequest.getRequestURI());
+                record.add("          authType", hRequest.getAuthType());
+            }
+            
+            record.add(" characterEncoding", request.getCharacterEncoding());
+            record.add("     contentLength", request.getContentLength());
+            record.add("       contentType", request.getContentType());
+            
+            if (hRequest == null) {
+                record.add("       contextPath", NON_HTTP_REQ_MSG);
+                record.add("            cookie", NON_HTTP_REQ_MSG);
+                record.add("            header", NON_HTTP_REQ_MSG);
+            } else {
+                record.add("       contextPath", hRequest.getContextPath());
+                Cookie cookies[] = hRequest.getCookies();
+                if (cookies != null) {
+                    for (int i = 0; i < cookies.length; i++) {
+                        record.add("            cookie", cookies[i].getName(),
+                                filter(cookies[i].getName(), 
+                                        cookies[i].getValue(), 
+                                        config.getCookieMatcher()));
+                    }
                 }
+                Enumeration<String> hnames = hRequest.getHeaderNames();
+                while (hnames.hasMoreElements()) {
+                    String hname = hnames.nextElement();
+                    Enumeration<String> hvalues = hRequest.getHeaders(hname);
+                    while (hvalues.hasMoreElements()) {
+                        String hvalue = filter(hname, 
+                                hvalues.nextElement(), 
+                                config.getRequestHeaderMatcher());
+                        record.add("            header", hname, hvalue);
+                    }
+                }
+            }
+            
+            record.add("            locale", 
+                    RequestDumper.toString(request.getLocale()));
+            
+            if (hRequest == null) {
+                record.add("            method", NON_HTTP_REQ_MSG);
+            } else {
+                record.add("            method", hRequest.getMethod());
             }
-            Enumeration<String> hnames = hRequest.getHeaderNames();
-            while (hnames.hasMoreElements()) {
-                String hname = hnames.nextElement();
-                Enumeration<String> hvalues = hRequest.getHeaders(hname);
-                while (hvalues.hasMoreElements()) {
-                    String hvalue = filter(hname, 
-                            hvalues.nextElement(), requestHeaderFilter);
-                    doLog("            header", hname + "=" + hvalue);
+            
+            String paramMode = config.getParamMode();
+            if (paramMode.equals(RequestDumper.PARAMS_ALL)) {
+                Enumeration<String> pnames = request.getParameterNames();
+                while (pnames.hasMoreElements()) {
+                    String pname = pnames.nextElement();
+                    String pvalues[] = request.getParameterValues(pname);
+                    int nameStart = record.textLength();
+                    record.appendText(pname);
+                    int valueStart = record.textLength();
+                    for (int i = 0; i < pvalues.length; i++) {
+                        if (i > 0) {
+                            record.appendText(", ");
+                        }
+                        record.appendText(filter(pname, pvalues[i], 
+                                config.getParamMatcher()));
+                    }
+                    record.addText("         parameter", nameStart, valueStart);
                 }
+            } else if (hRequest != null &&
+                    !paramMode.equals(RequestDumper.PARAMS_NONE)) {
+                addParameters(record, Parameters.parse(
+                        hRequest.getQueryString(), null));
             }
-        }
-        
-        doLog("            locale", request.getLocale().toString());
-        
-        if (hRequest == null) {
-            doLog("            method", NON_HTTP_REQ_MSG);
-        } else {
-            doLog("            method", hRequest.getMethod());
-        }
-        
-        Enumeration<String> pnames = request.getParameterNames();
-        while (pnames.hasMoreElements()) {
-            String pname = pnames.nextElement();
-            String pvalues[] = request.getParameterValues(pname);
-            StringBuilder result = new StringBuilder(pname);
-            result.append('=');
-            for (int i = 0; i < pvalues.length; i++) {
-                if (i > 0) {
-                    result.append(", ");
+            
+            if (hRequest == null) {
+                record.add("          pathInfo", NON_HTTP_REQ_MSG);
+            } else {
+                record.add("          pathInfo", hRequest.getPathInfo());
+            }
+            
+            record.add("          protocol", request.getProtocol());
+            
+            if (hRequest == null) {
+                record.add("       queryString", NON_HTTP_REQ_MSG);
+            } else {
+                record.add("       queryString", hRequest.getQueryString());
+            }
+            
+            record.add("        remoteAddr", request.getRemoteAddr());
+            record.add("        remoteHost", request.getRemoteHost());
+            
+            if (hRequest == null) {
+                record.add("        remoteUser", NON_HTTP_REQ_MSG);
+                record.add("requestedSessionId", NON_HTTP_REQ_MSG);
+            } else {
+                record.add("        remoteUser", hRequest.getRemoteUser());
+                record.add("requestedSessionId", hRequest.getRequestedSessionId());
+            }
+            
+            record.add("            scheme", request.getScheme());
+            record.add("        serverName", request.getServerName());
+            record.add("        serverPort", request.getServerPort());
+            
+            if (hRequest == null) {
+                record.add("       servletPath", NON_HTTP_REQ_MSG);
+            } else {
+                record.add("       servletPath", hRequest.getServletPath());
+            }
+            
+            record.add("          isSecure", request.isSecure());
+            record.raw("------------------=--------------------------------------------");
+
+            dumper.preService(record, log);
+
+            if (hRequest != null) {
+                requestWrapper = new CapturingRequestWrapper(hRequest, 
+                        config.isCaptureBody() || 
+                        paramMode.equals(RequestDumper.PARAMS_TEE) ?
+                                config.getBodyLimit() : 0);
+            }
+            if (hResponse != null) {
+                responseWrapper = new CapturingResponseWrapper(hResponse, 
+                        config.isCaptureResponseBody() ? 
+                                config.getBodyLimit() : 0);
+            }
+
+            // Perform the request
+            record.chainStarted();
+            try {
+                chain.doFilter(requestWrapper == null ? request : requestWrapper, 
+                        responseWrapper == null ? response : responseWrapper);
+            } catch (Throwable t) {
+                record.chainEnded();
+                addResponseTimes(record, responseWrapper);
+                aggregate(config, hRequest, requestWrapper, responseWrapper, 500, 
+                        record.getStartTime(), record.getChainTime());
+                record.raw("------------------=--------------------------------------------");
+                record.add("         exception", t.toString());
+                addRequestBody(record, requestWrapper);
+                addResponseBody(record, responseWrapper);
+                dumper.addTimings(record);
+                record.addTimestamp("END TIME          ", 
+                        System.currentTimeMillis());
+                record.raw("===============================================================");
+                dumper.postService(record, log);
+                throw t;
+            }
+            record.chainEnded();
+            int status = hResponse == null ? 0 : hResponse.getStatus();
+            addResponseTimes(record, responseWrapper);
+            aggregate(config, hRequest, requestWrapper, responseWrapper, status, 
+                    record.getStartTime(), record.getChainTime());
+            if (!dumper.isWanted(record, status)) {
+                return;
+            }
+
+            // Capture post-service information
+            record.raw("------------------=--------------------------------------------");
+            if (hRequest == null) {
+                record.add("          authType", NON_HTTP_REQ_MSG);
+            } else {
+                record.add("          authType", hRequest.getAuthType());
+            }
+            
+            record.add("       contentType", response.getContentType());
+            
+            addRequestBody(record, requestWrapper);
+            addResponseBody(record, responseWrapper);
+
+            if (hResponse == null) {
+                record.add("            header", NON_HTTP_RES_MSG);
+            } else {
+                Iterable<String> rhnames = hResponse.getHeaderNames();
+                for (String rhname : rhnames) {
+                    Iterable<String> rhvalues = hResponse.getHeaders(rhname);
+                    for (String rhvalue : rhvalues) {
+                        record.add("            header", rhname,
+                                filter(rhname, rhvalue, 
+                                        config.getResponseHeaderMatcher()));
+                    }
                 }
-                result.append(filter(pname, pvalues[i], paramFilter));
             }
-            doLog("         parameter", result.toString());
-        }
-        
-        if (hRequest == null) {
-            doLog("          pathInfo", NON_HTTP_REQ_MSG);
-        } else {
-            doLog("          pathInfo", hRequest.getPathInfo());
-        }
-        
-        doLog("          protocol", request.getProtocol());
-        
-        if (hRequest == null) {
-            doLog("       queryString", NON_HTTP_REQ_MSG);
-        } else {
-            doLog("       queryString", hRequest.getQueryString());
+
+            if (hRequest == null) {
+                record.add("        remoteUser", NON_HTTP_REQ_MSG);
+            } else {
+                record.add("        remoteUser", hRequest.getRemoteUser());
+            }
+            
+            if (hResponse == null) {
+                record.add("        remoteUser", NON_HTTP_RES_MSG);
+            } else {
+                record.add("            status", hResponse.getStatus());
+            }
+
+            dumper.addTimings(record);
+            record.addTimestamp("END TIME          ", 
+                    System.currentTimeMillis());
+            record.raw("===============================================================");
+            dumper.postService(record, log);
+        } finally {
+            releaseWrappers(hRequest, requestWrapper, responseWrapper);
+            dumper.end(record);
         }
-        
-        doLog("        remoteAddr", request.getRemoteAddr());
-        doLog("        remoteHost", request.getRemoteHost());
-        
-        if (hRequest == null) {
-            doLog("        remoteUser", NON_HTTP_REQ_MSG);
-            doLog("requestedSessionId", NON_HTTP_REQ_MSG);
-        } else {
-            doLog("        remoteUser", hRequest.getRemoteUser());
-            doLog("requestedSessionId", hRequest.getRequestedSessionId());
+    }
+
+    /**
+     * Return the wrappers' capture buffers to the current thread's pools,
+     * unless the application may still be using the wrappers; i.e. the
+     * request has gone async.
+     */
+    private void releaseWrappers(HttpServletRequest hRequest, 
+            CapturingRequestWrapper requestWrapper,
+            CapturingResponseWrapper responseWrapper) {
+        if (hRequest != null && !hRequest.isAsyncStarted()) {
+            if (requestWrapper != null) {
+                requestWrapper.release();
+            }
+            if (responseWrapper != null) {
+                responseWrapper.release();
+            }
         }
-        
-        doLog("            scheme", request.getScheme());
-        doLog("        serverName", request.getServerName());
-        doLog("        serverPort",
-                Integer.valueOf(request.getServerPort()).toString());
-        
-        if (hRequest == null) {
-            doLog("       servletPath", NON_HTTP_REQ_MSG);
-        } else {
-            doLog("       servletPath", hRequest.getServletPath());
+    }
+
+    /**
+     * Add the captured part of the request body, if any.
+     */
+    private void addRequestBody(DumpRecord record, 
+            CapturingRequestWrapper wrapper) {
+        if (wrapper == null) {
+            return;
         }
-        
-        doLog("          isSecure",
-                Boolean.valueOf(request.isSecure()).toString());
-        doLog("------------------",
-                "--------------------------------------------");
-
-        // Perform the request
-        chain.doFilter(request, response);
-
-        // Log post-service information
-        doLog("------------------",
-                "--------------------------------------------");
-        if (hRequest == null) {
-            doLog("          authType", NON_HTTP_REQ_MSG);
-        } else {
-            doLog("          authType", hRequest.getAuthType());
+        DumperConfig config = record.getConfig();
+        if (wrapper.isForm()) {
+            if (config.getParamMode().equals(RequestDumper.PARAMS_TEE)) {
+                addParameters(record, wrapper.getContainerFormParameters());
+                addParameters(record, wrapper.getFormParameters());
+            } else if (config.isCaptureBody()) {
+                addParameters(record, wrapper.getFormParameters());
+            }
+        } else if (config.isCaptureBody()) {
+            record.add("       requestBody", wrapper.getCapturedText());
         }
-        
-        doLog("       contentType", response.getContentType());
-        
-        if (hResponse == null) {
-            doLog("            header", NON_HTTP_RES_MSG);
-        } else {
-            Iterable<String> rhnames = hResponse.getHeaderNames();
-            for (String rhname : rhnames) {
-                Iterable<String> rhvalues = hResponse.getHeaders(rhname);
-                for (String rhvalue : rhvalues) {
-                    doLog("            header", rhname + "=" + 
-                            filter(rhname, rhvalue, responseHeaderFilter));
-                }
+        record.add("  requestBodyBytes", wrapper.getBytesRead());
+        long readNanos = wrapper.getReadNanos();
+        if (readNanos > 0) {
+            record.addDuration("     readBlockTime", readNanos);
+            record.add(" uploadBytesPerSec", 
+                    (long) (wrapper.getBytesRead() * 1e9 / readNanos));
+            if (config.isSlowUpload(readNanos, 
+                    System.nanoTime() - record.getStartTime())) {
+                record.add("        slowUpload", true);
             }
         }
+    }
 
-        if (hRequest == null) {
-            doLog("        remoteUser", NON_HTTP_REQ_MSG);
-        } else {
-            doLog("        remoteUser", hRequest.getRemoteUser());
+    /**
+     * Add the response body size, and the captured part of the response 
+     * body if any.
+     */
+    private void addResponseBody(DumpRecord record, 
+            CapturingResponseWrapper wrapper) {
+        if (wrapper == null) {
+            return;
         }
-        
-        if (hResponse == null) {
-            doLog("        remoteUser", NON_HTTP_RES_MSG);
-        } else {
-            doLog("            status",
-                    Integer.valueOf(hResponse.getStatus()).toString());
+        DumperConfig config = record.getConfig();
+        if (config.isCaptureResponseBody()) {
+            record.add("      responseBody", wrapper.getCapturedText());
         }
+        record.add(" responseBodyBytes", wrapper.getBytesWritten());
+        long writeNanos = wrapper.getWriteNanos();
+        if (writeNanos > 0) {
+            record.addDuration("    writeBlockTime", writeNanos);
+            record.add(" clientBytesPerSec", 
+                    (long) (wrapper.getBytesWritten() * 1e9 / writeNanos));
+            if (config.isSlowClient(writeNanos, 
+                    System.nanoTime() - record.getStartTime())) {
+                record.add("        slowClient", true);
+            }
+        }
+    }
 
-        doLog("END TIME          ", getTimestamp());
-        doLog("==================",
-                "============================================");
+    /**
+     * Copy the first write and commit times from the response wrapper to
+     * the record.  A response that is still buffered when the chain returns
+     * is committed by the container after the filter returns, so it is 
+     * taken to be committed (and, if nothing was written, to have produced
+     * its first byte) when the chain returned.
+     */
+    private void addResponseTimes(DumpRecord record, 
+            CapturingResponseWrapper wrapper) {
+        if (wrapper != null) {
+            long commitTime = wrapper.getCommitTime();
+            if (commitTime == 0) {
+                commitTime = record.getChainEndTime();
+            }
+            long firstWriteTime = wrapper.getFirstWriteTime();
+            record.setFirstByteTime(
+                    firstWriteTime == 0 ? commitTime : firstWriteTime);
+            record.setCommitTime(commitTime);
+        }
     }
 
-    private void doLog(String attribute, String value) {
-        StringBuilder sb = new StringBuilder(80);
-        sb.append(Thread.currentThread().getName());
-        sb.append(' ');
-        sb.append(attribute);
-        sb.append('=');
-        sb.append(value);
-        log.info(sb.toString());
+    private void aggregate(DumperConfig config, HttpServletRequest hRequest, 
+            CapturingRequestWrapper requestWrapper,
+            CapturingResponseWrapper responseWrapper, int status, 
+            long start, long nanos) {
+        if (dumper.isAggregating()) {
+            long bytes = -1;
+            long ttfb = -1;
+            int flags = 0;
+            if (responseWrapper != null) {
+                bytes = responseWrapper.getBytesWritten();
+                // As in addResponseTimes, a response with nothing written
+                // is sent when the chain returns.
+                long firstWriteTime = responseWrapper.getFirstWriteTime();
+                ttfb = firstWriteTime == 0 ? nanos : firstWriteTime - start;
+                if (config.isSlowClient(responseWrapper.getWriteNanos(), nanos)) {
+                    flags |= RequestDumper.FLAG_SLOW_CLIENT;
+                }
+            }
+            if (requestWrapper != null &&
+                    config.isSlowUpload(requestWrapper.getReadNanos(), nanos)) {
+                flags |= RequestDumper.FLAG_SLOW_UPLOAD;
+            }
+            if (hRequest == null) {
+                dumper.aggregate(null, null, null, status, nanos, ttfb, 
+                        bytes, flags);
+            } else {
+                dumper.aggregate(hRequest.getContextPath(), 
+                        hRequest.getServletPath(), hRequest.getMethod(), 
+                        status, nanos, ttfb, bytes, flags);
+            }
+        }
+    }
+    
+    private void addParameters(DumpRecord record, 
+            Map<String, List<String>> params) {
+        for (Map.Entry<String, List<String>> entry : params.entrySet()) {
+            String pname = entry.getKey();
+            List<String> pvalues = entry.getValue();
+            int nameStart = record.textLength();
+            record.appendText(pname);
+            int valueStart = record.textLength();
+            for (int i = 0; i < pvalues.size(); i++) {
+                if (i > 0) {
+                    record.appendText(", ");
+                }
+                record.appendText(filter(pname, pvalues.get(i), 
+                        record.getConfig().getParamMatcher()));
+            }
+            record.addText("         parameter", nameStart, valueStart);
+        }
     }
     
-    private String filter(String subAttribute, String value, Pattern filter) {
+    private String filter(String subAttribute, String value, NameMatcher filter) {
         if (filter == null || value == null || value.isEmpty() ||
-                !filter.matcher(subAttribute).matches()) {
+                !filter.matches(subAttribute)) {
             return value;
         } else {
             return "XXXXXX";
         }
     }
 
-    private String getTimestamp() {
-        Timestamp ts = timestamp.get();
-        long currentTime = System.currentTimeMillis();
-        
-        if ((ts.date.getTime() + 999) < currentTime) {
-            ts.date.setTime(currentTime - (currentTime % 1000));
-            ts.update();
-        }
-        return ts.dateString;
-    }
-
     public void init(FilterConfig filterConfig) throws ServletException {
+        if (filterConfig.getInitParameter(FILTER_ENGINE_PARAMETER) != null) {
+            try {
+                setFilterEngine(filterConfig.getInitParameter(
+                        FILTER_ENGINE_PARAMETER));
+            } catch (IllegalArgumentException ex) {
+                throw new ServletException("Invalid " + 
+                        FILTER_ENGINE_PARAMETER + " parameter", ex);
+            }
+        }
         if (filterConfig.getInitParameter(PARAM_FILTER_PARAMETER) != null) {
             setParamFilter(filterConfig.getInitParameter(PARAM_FILTER_PARAMETER));
         }
@@ -376,19 +1243,196 @@ public class RequestDumperFilter implements Filter {
             setResponseHeaderFilter(filterConfig.getInitParameter(
                     RESPONSE_HEADER_FILTER_PARAMETER));
         }
+        if (filterConfig.getInitParameter(CONFIG_FILE_PARAMETER) != null) {
+            setConfigFile(filterConfig.getInitParameter(CONFIG_FILE_PARAMETER));
+        }
+        if (filterConfig.getInitParameter(BINARY_FILE_PARAMETER) != null) {
+            setBinaryFile(filterConfig.getInitParameter(BINARY_FILE_PARAMETER));
+        }
+        if (filterConfig.getInitParameter(DUMP_FILE_PARAMETER) != null) {
+            setDumpFile(filterConfig.getInitParameter(DUMP_FILE_PARAMETER));
+        }
+        try {
+            if (filterConfig.getInitParameter(SEGMENT_SIZE_PARAMETER) != null) {
+                setSegmentSize(Integer.parseInt(filterConfig.getInitParameter(
+                        SEGMENT_SIZE_PARAMETER)));
+            }
+            if (filterConfig.getInitParameter(SEGMENT_INTERVAL_PARAMETER) != null) {
+                setSegmentInterval(Long.parseLong(filterConfig.getInitParameter(
+                        SEGMENT_INTERVAL_PARAMETER)));
+            }
+        } catch (IllegalArgumentException ex) {
+            throw new ServletException("Invalid segment parameter", ex);
+        }
+        try {
+            if (filterConfig.getInitParameter(COMPRESSION_PARAMETER) != null) {
+                setCompression(filterConfig.getInitParameter(
+                        COMPRESSION_PARAMETER));
+            }
+            if (filterConfig.getInitParameter(
+                    COMPRESSION_THREADS_PARAMETER) != null) {
+                setCompressionThreads(Integer.parseInt(
+                        filterConfig.getInitParameter(
+                                COMPRESSION_THREADS_PARAMETER)));
+            }
+        } catch (IllegalArgumentException ex) {
+            throw new ServletException("Invalid compression parameter", ex);
+        }
+        try {
+            if (filterConfig.getInitParameter(DUMP_FILE_MODE_PARAMETER) != null) {
+                setDumpFileMode(filterConfig.getInitParameter(
+                        DUMP_FILE_MODE_PARAMETER));
+            }
+            if (filterConfig.getInitParameter(BATCH_SIZE_PARAMETER) != null) {
+                setBatchSize(Integer.parseInt(filterConfig.getInitParameter(
+                        BATCH_SIZE_PARAMETER)));
+            }
+            if (filterConfig.getInitParameter(BATCH_WINDOW_PARAMETER) != null) {
+                setBatchWindow(Long.parseLong(filterConfig.getInitParameter(
+                        BATCH_WINDOW_PARAMETER)));
+            }
+            if (filterConfig.getInitParameter(SYNC_POLICY_PARAMETER) != null) {
+                setSyncPolicy(filterConfig.getInitParameter(
+                        SYNC_POLICY_PARAMETER));
+            }
+            if (filterConfig.getInitParameter(SYNC_INTERVAL_PARAMETER) != null) {
+                setSyncInterval(Long.parseLong(filterConfig.getInitParameter(
+                        SYNC_INTERVAL_PARAMETER)));
+            }
+        } catch (IllegalArgumentException ex) {
+            throw new ServletException("Invalid batching parameter", ex);
+        }
+        if (filterConfig.getInitParameter(ENABLED_PARAMETER) != null) {
+            setEnabled(Boolean.parseBoolean(filterConfig.getInitParameter(
+                    ENABLED_PARAMETER)));
+        }
+        if (filterConfig.getInitParameter(DUMP_PARAMETER) != null) {
+            setDump(Boolean.parseBoolean(filterConfig.getInitParameter(
+                    DUMP_PARAMETER)));
+        }
+        if (filterConfig.getInitParameter(AGGREGATE_PARAMETER) != null) {
+            setAggregate(Boolean.parseBoolean(filterConfig.getInitParameter(
+                    AGGREGATE_PARAMETER)));
+        }
+        if (filterConfig.getInitParameter(SINGLE_RECORD_PARAMETER) != null) {
+            setSingleRecord(Boolean.parseBoolean(filterConfig.getInitParameter(
+                    SINGLE_RECORD_PARAMETER)));
+        }
+        if (filterConfig.getInitParameter(FORMAT_PARAMETER) != null) {
+            try {
+                setFormat(filterConfig.getInitParameter(FORMAT_PARAMETER));
+            } catch (IllegalArgumentException ex) {
+                throw new ServletException("Invalid " + 
+                        FORMAT_PARAMETER + " parameter", ex);
+            }
+        }
+        if (filterConfig.getInitParameter(ASYNC_PARAMETER) != null) {
+            setAsync(Boolean.parseBoolean(filterConfig.getInitParameter(
+                    ASYNC_PARAMETER)));
+        }
+        if (filterConfig.getInitParameter(QUEUE_SIZE_PARAMETER) != null) {
+            try {
+                setQueueSize(Integer.parseInt(filterConfig.getInitParameter(
+                        QUEUE_SIZE_PARAMETER)));
+            } catch (IllegalArgumentException ex) {
+                throw new ServletException("Invalid " + QUEUE_SIZE_PARAMETER +
+                        " parameter", ex);
+            }
+        }
+        if (filterConfig.getInitParameter(BLOCK_WHEN_FULL_PARAMETER) != null) {
+            setBlockWhenFull(Boolean.parseBoolean(filterConfig.getInitParameter(
+                    BLOCK_WHEN_FULL_PARAMETER)));
+        }
+        if (filterConfig.getInitParameter(FAILURES_ONLY_PARAMETER) != null) {
+            setFailuresOnly(Boolean.parseBoolean(filterConfig.getInitParameter(
+                    FAILURES_ONLY_PARAMETER)));
+        }
+        try {
+            if (filterConfig.getInitParameter(FAILURE_STATUS_PARAMETER) != null) {
+                setFailureStatus(Integer.parseInt(filterConfig.getInitParameter(
+                        FAILURE_STATUS_PARAMETER)));
+            }
+            if (filterConfig.getInitParameter(SLOW_THRESHOLD_PARAMETER) != null) {
+                setSlowThreshold(Long.parseLong(filterConfig.getInitParameter(
+                        SLOW_THRESHOLD_PARAMETER)));
+            }
+        } catch (IllegalArgumentException ex) {
+            throw new ServletException("Invalid failure parameter", ex);
+        }
+        if (filterConfig.getInitParameter(SPLIT_TIMINGS_PARAMETER) != null) {
+            setSplitTimings(Boolean.parseBoolean(filterConfig.getInitParameter(
+                    SPLIT_TIMINGS_PARAMETER)));
+        }
+        try {
+            if (filterConfig.getInitParameter(SAMPLE_RATE_PARAMETER) != null) {
+                setSampleRate(filterConfig.getInitParameter(
+                        SAMPLE_RATE_PARAMETER));
+            }
+            if (filterConfig.getInitParameter(SAMPLE_LIMIT_PARAMETER) != null) {
+                setSampleLimit(Integer.parseInt(filterConfig.getInitParameter(
+                        SAMPLE_LIMIT_PARAMETER)));
+            }
+            if (filterConfig.getInitParameter(SAMPLE_RULES_PARAMETER) != null) {
+                setSampleRules(filterConfig.getInitParameter(
+                        SAMPLE_RULES_PARAMETER));
+            }
+        } catch (IllegalArgumentException ex) {
+            throw new ServletException("Invalid sampling parameter", ex);
+        }
+        if (filterConfig.getInitParameter(CAPTURE_BODY_PARAMETER) != null) {
+            setCaptureBody(Boolean.parseBoolean(filterConfig.getInitParameter(
+                    CAPTURE_BODY_PARAMETER)));
+        }
+        if (filterConfig.getInitParameter(CAPTURE_RESPONSE_BODY_PARAMETER) != null) {
+            setCaptureResponseBody(Boolean.parseBoolean(
+                    filterConfig.getInitParameter(
+                            CAPTURE_RESPONSE_BODY_PARAMETER)));
+        }
+        if (filterConfig.getInitParameter(SLOW_CLIENT_THRESHOLD_PARAMETER) != null) {
+            try {
+                setSlowClientThreshold(Long.parseLong(
+                        filterConfig.getInitParameter(
+                                SLOW_CLIENT_THRESHOLD_PARAMETER)));
+            } catch (IllegalArgumentException ex) {
+                throw new ServletException("Invalid " + 
+                        SLOW_CLIENT_THRESHOLD_PARAMETER + " parameter", ex);
+            }
+        }
+        if (filterConfig.getInitParameter(SLOW_UPLOAD_THRESHOLD_PARAMETER) != null) {
+            try {
+                setSlowUploadThreshold(Long.parseLong(
+                        filterConfig.getInitParameter(
+                                SLOW_UPLOAD_THRESHOLD_PARAMETER)));
+            } catch (IllegalArgumentException ex) {
+                throw new ServletException("Invalid " + 
+                        SLOW_UPLOAD_THRESHOLD_PARAMETER + " parameter", ex);
+            }
+        }
+        if (filterConfig.getInitParameter(BODY_LIMIT_PARAMETER) != null) {
+            try {
+                setBodyLimit(Integer.parseInt(filterConfig.getInitParameter(
+                        BODY_LIMIT_PARAMETER)));
+            } catch (IllegalArgumentException ex) {
+                throw new ServletException("Invalid " + BODY_LIMIT_PARAMETER +
+                        " parameter", ex);
+            }
+        }
+        if (filterConfig.getInitParameter(PARAM_MODE_PARAMETER) != null) {
+            try {
+                setParamMode(filterConfig.getInitParameter(
+                        PARAM_MODE_PARAMETER));
+            } catch (IllegalArgumentException ex) {
+                throw new ServletException("Invalid " + 
+                        PARAM_MODE_PARAMETER + " parameter", ex);
+            }
+        }
+        // Filter names are only unique within a webapp.
+        dumper.start(log, 
+                filterConfig.getServletContext().getContextPath() + "/" +
+                filterConfig.getFilterName());
     }
 
     public void destroy() {
-        // NOOP
-    }
-
-    private static final class Timestamp {
-        private final Date date = new Date(0);
-        private final SimpleDateFormat format =
-            new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss");
-        private String dateString = format.format(date);
-        private void update() {
-            dateString = format.format(date);
-        }
+        dumper.stop();
     }
 }
@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.edu.uq.cmm.tomcat.valves;
+
+import org.apache.catalina.connector.Response;
+import org.apache.coyote.ActionCode;
+import org.apache.coyote.ActionHook;
+
+
+/**
+ * <p>Records the time at which a response is committed; i.e. when its status
+ * line and headers are handed to the connector.  This is done by temporarily
+ * interposing on the coyote response's action hook, which the response calls
+ * with {@link ActionCode#ACTION_COMMIT} when it is committed.  Since the
+ * headers are the first bytes sent to the client, this is also the time to
+ * first byte.</p>
+ *
+ * <p>The coyote response is used by one request at a time, and the original
+ * hook must be reinstated by calling {@link #uninstall(long)} before the
+ * valve returns.  A response that is still buffered at that point is only
+ * committed when the connector finishes it, after the whole pipeline has
+ * returned, which the timer doesn't see.  In that case (which is the usual
+ * one for small responses) the time at which the rest of the pipeline
+ * returned is used as the commit time instead; the difference is the time
+ * taken by the valves that run after it returns.</p>
+ *
+ * <p>Timers are reused: each thread keeps one, which is handed out by
+ * {@link #install} and put back by {@link #uninstall(long)}.  (A nested
+ * install, by a second valve in the same pipeline, gets a new timer.)</p>
+ *
+ * @author Stephen Crawley
+ */
+final class CommitTimer implements ActionHook {
+
+    private static final ThreadLocal<CommitTimer> timers =
+            new ThreadLocal<CommitTimer>();
+
+    private org.apache.coyote.Response coyoteResponse;
+    private ActionHook hook;
+    private long commitTime;
+
+    /**
+     * Install a commit timer on a response.
+     *
+     * @return the timer, or null if the response is already committed or
+     *     has no coyote response.
+     */
+    static CommitTimer install(Response response) {
+        org.apache.coyote.Response coyoteResponse =
+                response.getCoyoteResponse();
+        if (coyoteResponse == null || coyoteResponse.isCommitted() ||
+                coyoteResponse.getHook() == null) {
+            return null;
+        }
+        CommitTimer timer = timers.get();
+        if (timer == null) {
+            timer = new CommitTimer();
+        } else {
+            timers.set(null);
+        }
+        timer.coyoteResponse = coyoteResponse;
+        timer.hook = coyoteResponse.getHook();
+        timer.commitTime = 0;
+        coyoteResponse.setHook(timer);
+        return timer;
+    }
+
+    /**
+     * Reinstate the original hook, and put the timer back in the current
+     * thread's pool.  The timer must not be used after this has been
+     * called, apart from further calls to this method, which do nothing
+     * but return the same time.
+     *
+     * @param endTime the time at which the rest of the pipeline returned,
+     *     as given by {@link System#nanoTime()}.
+     * @return the time at which the response was committed, or 
+     *     <code>endTime</code> if it hasn't been committed yet.
+     */
+    long uninstall(long endTime) {
+        if (coyoteResponse == null) {
+            return commitTime;
+        }
+        if (coyoteResponse.getHook() == this) {
+            coyoteResponse.setHook(hook);
+        }
+        coyoteResponse = null;
+        hook = null;
+        if (commitTime == 0) {
+            commitTime = endTime;
+        }
+        if (timers.get() == null) {
+            timers.set(this);
+        }
+        return commitTime;
+    }
+
+    public void action(ActionCode actionCode, Object param) {
+        hook.action(actionCode, param);
+        if (actionCode == ActionCode.ACTION_COMMIT && commitTime == 0) {
+            commitTime = System.nanoTime();
+        }
+    }
+}
@@ -21,17 +21,33 @@ package au.edu.uq.cmm.tomcat.valves;
 
 import java.io.IOException;
 import java.util.Enumeration;
-import java.util.regex.Pattern;
+import java.util.List;
+import java.util.Map;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.Cookie;
 
+import org.apache.catalina.Container;
+import org.apache.catalina.Lifecycle;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.LifecycleListener;
 import org.apache.catalina.connector.Request;
 import org.apache.catalina.connector.Response;
+import org.apache.catalina.util.LifecycleSupport;
 import org.apache.catalina.util.StringManager;
 import org.apache.catalina.valves.Constants;
 import org.apache.catalina.valves.ValveBase;
 import org.apache.juli.logging.Log;
+import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.buf.CharChunk;
+import org.apache.tomcat.util.buf.MessageBytes;
+import org.apache.tomcat.util.http.MimeHeaders;
+
+import au.edu.uq.cmm.tomcat.dumper.DumpRecord;
+import au.edu.uq.cmm.tomcat.dumper.DumperConfig;
+import au.edu.uq.cmm.tomcat.dumper.NameMatcher;
+import au.edu.uq.cmm.tomcat.dumper.Parameters;
+import au.edu.uq.cmm.tomcat.dumper.RequestDumper;
 
 
 /**
@@ -46,10 +62,17 @@ import org.apache.juli.logging.Log;
  * By default, parameters with the name "password" are obscured, and cookie
  * and header values left intact.</p>
  * 
+ * <p>While the valve is started, its settings can also be viewed and changed
+ * at runtime via the <code>au.edu.uq.cmm.tomcat:type=RequestDumper</code>
+ * MBean; e.g. to turn dumping on for the duration of an incident.  The
+ * MBean's name is the path of the container that the valve belongs to; e.g.
+ * <code>Catalina/localhost</code> for a valve on the default host.</p>
+ * 
  * <p><b>WARNING: Using this valve has side-effects.</b> The output from this 
  * valve includes any parameters associated with the request. Therefore, the
  * InputStream is consumed for requests made with the method POST and
- * content-type application/x-www-form-urlencoded.</p>
+ * content-type application/x-www-form-urlencoded.  Set the "paramMode"
+ * property to "query" or "none" to avoid this.</p>
  *
  * <p>This Valve may be attached to any Container, depending on the granularity
  * of the logging you wish to perform.</p>
@@ -59,7 +82,7 @@ import org.apache.juli.logging.Log;
  */
 
 public class RequestDumperValve
-    extends ValveBase {
+    extends ValveBase implements Lifecycle {
 
 
     // ----------------------------------------------------- Instance Variables
@@ -78,10 +101,17 @@ public class RequestDumperValve
     protected static StringManager sm =
         StringManager.getManager(Constants.Package);
     
-    private Pattern paramFilter = Pattern.compile("password");
-    private Pattern cookieFilter = null;
-    private Pattern requestHeaderFilter = null;
-    private Pattern responseHeaderFilter = null;
+    private final RequestDumper dumper = new RequestDumper(false);
+
+    /**
+     * The lifecycle event support for this component.
+     */
+    protected LifecycleSupport lifecycle = new LifecycleSupport(this);
+
+    /**
+     * Has this component been started yet?
+     */
+    private boolean started = false;
 
     // ------------------------------------------------------------- Properties
 
@@ -101,12 +131,11 @@ public class RequestDumperValve
      *     disable parameter obscuring.
      */
     public void setParamFilter(String paramFilter) {
-        this.paramFilter = paramFilter.isEmpty() ? null :
-            Pattern.compile(paramFilter);
+        dumper.setParamFilter(paramFilter);
     }
 
     public String getParamFilter() {
-        return paramFilter.toString();
+        return dumper.getParamFilter();
     }
 
     /**
@@ -117,12 +146,11 @@ public class RequestDumperValve
      *     disable cookie obscuring.
      */
     public void setCookieFilter(String cookieFilter) {
-        this.cookieFilter = cookieFilter.isEmpty() ? null :
-            Pattern.compile(cookieFilter);
+        dumper.setCookieFilter(cookieFilter);
     }
 
     public String getCookieFilter() {
-        return cookieFilter.toString();
+        return dumper.getCookieFilter();
     }
 
     /**
@@ -133,12 +161,11 @@ public class RequestDumperValve
      *     disable request header obscuring.
      */
     public void setRequestHeaderFilter(String requestHeaderFilter) {
-        this.requestHeaderFilter = requestHeaderFilter.isEmpty() ? null : 
-            Pattern.compile(requestHeaderFilter);
+        dumper.setRequestHeaderFilter(requestHeaderFilter);
     }
 
     public String getRequestHeaderFilter() {
-        return requestHeaderFilter.toString();
+        return dumper.getRequestHeaderFilter();
     }
 
     /**
@@ -149,12 +176,492 @@ public class RequestDumperValve
      *     disable response header obscuring.
      */
     public void setResponseHeaderFilter(String responseHeaderFilter) {
-        this.responseHeaderFilter = responseHeaderFilter.isEmpty() ? null : 
-            Pattern.compile(responseHeaderFilter);
+        dumper.setResponseHeaderFilter(responseHeaderFilter);
     }
 
     public String getResponseHeaderFilter() {
-        return responseHeaderFilter.toString();
+        return dumper.getResponseHeaderFilter();
+    }
+
+    /**
+     * This parameter selects the engine used to match the filter regexes;
+     * "regex" (the default) for <code>java.util.regex</code>, or "dfa" for
+     * an automaton-based engine that guarantees linear time matching but
+     * does not support backtracking features such as backreferences and
+     * lookaround.  Changing the engine recompiles the filter regexes.
+     * 
+     * @param filterEngine the engine name.
+     */
+    public void setFilterEngine(String filterEngine) {
+        dumper.setFilterEngine(filterEngine);
+    }
+
+    public String getFilterEngine() {
+        return dumper.getFilterEngine();
+    }
+
+    /**
+     * This parameter gives the pathname of a properties file that the
+     * settings are loaded from when the valve is started.  The file is 
+     * watched, and reloaded whenever it changes.  The property names are 
+     * the same as the parameter names, and the properties override the
+     * parameters.  A relative pathname is resolved against 
+     * <code>catalina.base</code>.  The default is no file.
+     * 
+     * @param configFile the pathname, or an empty string.
+     */
+    public void setConfigFile(String configFile) {
+        dumper.setConfigFile(configFile);
+    }
+
+    public String getConfigFile() {
+        String configFile = dumper.getConfigFile();
+        return configFile == null ? "" : configFile;
+    }
+
+    /**
+     * This parameter gives the pathname of the file that records are 
+     * appended to when the format is "binary".  A relative pathname is 
+     * resolved against <code>catalina.base</code>.  The default is no 
+     * file, in which case "binary" records are logged as text.
+     * 
+     * @param binaryFile the pathname, or an empty string.
+     */
+    public void setBinaryFile(String binaryFile) {
+        dumper.setBinaryFile(binaryFile);
+    }
+
+    public String getBinaryFile() {
+        String binaryFile = dumper.getBinaryFile();
+        return binaryFile == null ? "" : binaryFile;
+    }
+
+    /**
+     * This parameter gives the pathname that dump file segment names are 
+     * based on.  If it is set, dumps are written straight to memory-mapped
+     * segment files in the selected format, rather than to the log.  The
+     * segments are named <i>pathname</i>.<i>yyyyMMdd-HHmmss</i>.<i>n</i>
+     * with a ".log", ".json" or ".rdmp" extension.  A relative pathname is
+     * resolved against <code>catalina.base</code>.  The default is no 
+     * dump file.
+     * 
+     * @param dumpFile the pathname, or an empty string.
+     */
+    public void setDumpFile(String dumpFile) {
+        dumper.setDumpFile(dumpFile);
+    }
+
+    public String getDumpFile() {
+        String dumpFile = dumper.getDumpFile();
+        return dumpFile == null ? "" : dumpFile;
+    }
+
+    /**
+     * This parameter gives the size of each dump file segment in bytes.
+     * The default is 64 MiB.
+     * 
+     * @param segmentSize the segment size.
+     */
+    public void setSegmentSize(int segmentSize) {
+        dumper.setSegmentSize(segmentSize);
+    }
+
+    public int getSegmentSize() {
+        return dumper.getSegmentSize();
+    }
+
+    /**
+     * This parameter gives the time in milliseconds after which a dump
+     * file segment is rolled over, even if it is not full.  The default
+     * is one hour; zero means that segments are only rolled over when 
+     * they are full.
+     * 
+     * @param segmentInterval the interval in milliseconds, or zero.
+     */
+    public void setSegmentInterval(long segmentInterval) {
+        dumper.setSegmentInterval(segmentInterval);
+    }
+
+    public long getSegmentInterval() {
+        return dumper.getSegmentInterval();
+    }
+
+    /**
+     * This parameter selects how completed dump file segments are
+     * compressed: "none" (the default), "gzip", or "lz4" which is faster 
+     * than gzip but compresses less.  Compression runs on low priority 
+     * background threads, and never holds up requests.
+     * 
+     * @param compression the compression codec.
+     */
+    public void setCompression(String compression) {
+        dumper.setCompression(compression);
+    }
+
+    public String getCompression() {
+        return dumper.getCompression();
+    }
+
+    /**
+     * This parameter gives the number of threads that compress dump file
+     * segments.  The default is half the number of processors.
+     * 
+     * @param compressionThreads the number of threads.
+     */
+    public void setCompressionThreads(int compressionThreads) {
+        dumper.setCompressionThreads(compressionThreads);
+    }
+
+    public int getCompressionThreads() {
+        return dumper.getCompressionThreads();
+    }
+
+    /**
+     * This parameter selects how dumps are written to the dump file.  In
+     * "mapped" mode (the default), request threads copy their dumps
+     * straight into memory-mapped segments.  In "batched" mode, the async
+     * writer thread (which is started even if async mode is off) writes 
+     * the dumps that have queued up with one gathering write per batch.
+     * 
+     * @param dumpFileMode "mapped" or "batched".
+     */
+    public void setDumpFileMode(String dumpFileMode) {
+        dumper.setDumpFileMode(dumpFileMode);
+    }
+
+    public String getDumpFileMode() {
+        return dumper.getDumpFileMode();
+    }
+
+    /**
+     * This parameter gives the maximum number of dumps that the async
+     * writer thread takes at a time.  The default is 256.
+     * 
+     * @param batchSize the maximum batch size.
+     */
+    public void setBatchSize(int batchSize) {
+        dumper.setBatchSize(batchSize);
+    }
+
+    public int getBatchSize() {
+        return dumper.getBatchSize();
+    }
+
+    /**
+     * This parameter gives the time in milliseconds that the writer thread
+     * waits for a batch to fill in "batched" mode.  The default is 2ms.
+     * 
+     * @param batchWindow the window in milliseconds, or zero.
+     */
+    public void setBatchWindow(long batchWindow) {
+        dumper.setBatchWindow(batchWindow);
+    }
+
+    public long getBatchWindow() {
+        return dumper.getBatchWindow();
+    }
+
+    /**
+     * This parameter says when a batched dump file is forced to disk:
+     * "never" (though segments are synced when they are closed), 
+     * "interval" (the default) for at most once per sync interval, or
+     * "batch" for after every batch.
+     * 
+     * @param syncPolicy the sync policy.
+     */
+    public void setSyncPolicy(String syncPolicy) {
+        dumper.setSyncPolicy(syncPolicy);
+    }
+
+    public String getSyncPolicy() {
+        return dumper.getSyncPolicy();
+    }
+
+    /**
+     * This parameter gives the sync interval in milliseconds for the 
+     * "interval" sync policy.  The default is 1000ms.
+     * 
+     * @param syncInterval the interval in milliseconds.
+     */
+    public void setSyncInterval(long syncInterval) {
+        dumper.setSyncInterval(syncInterval);
+    }
+
+    public long getSyncInterval() {
+        return dumper.getSyncInterval();
+    }
+
+    /**
+     * This parameter is the master switch.  If it is false, requests are 
+     * passed straight through, without being dumped or aggregated, at the
+     * cost of reading one volatile field.  It is true by default, and 
+     * would normally be changed at runtime via JMX.
+     * 
+     * @param enabled false to disable the valve.
+     */
+    public void setEnabled(boolean enabled) {
+        dumper.setEnabled(enabled);
+    }
+
+    public boolean getEnabled() {
+        return dumper.isEnabled();
+    }
+
+    /**
+     * This parameter determines whether requests are dumped.  It is true
+     * by default, and is normally only set to false when aggregate mode
+     * is enabled.
+     * 
+     * @param dump false to disable dumping.
+     */
+    public void setDump(boolean dump) {
+        dumper.setDump(dump);
+    }
+
+    public boolean getDump() {
+        return dumper.isDump();
+    }
+
+    /**
+     * This parameter selects "aggregate" mode, in which the latencies of
+     * all requests are recorded in histograms keyed by context path, servlet
+     * path, method and status class, and published as MBeans.  This is
+     * disabled by default.
+     * 
+     * @param aggregate true to enable aggregate mode.
+     */
+    public void setAggregate(boolean aggregate) {
+        dumper.setAggregate(aggregate);
+    }
+
+    public boolean getAggregate() {
+        return dumper.isAggregate();
+    }
+
+    /**
+     * This parameter selects "single record" mode, in which the entire
+     * dump for a request is logged as one message after the request has
+     * been processed, rather than as one message per line.  This is 
+     * disabled by default.
+     * 
+     * @param singleRecord true to enable single record mode.
+     */
+    public void setSingleRecord(boolean singleRecord) {
+        dumper.setSingleRecord(singleRecord);
+    }
+
+    public boolean getSingleRecord() {
+        return dumper.isSingleRecord();
+    }
+
+    /**
+     * This parameter selects the output format.  In "text" format (the
+     * default), the dump is the traditional multi-line layout.  In "json"
+     * format, each request is logged as a single JSON object on one line,
+     * with repeated headers, cookies and parameters grouped into arrays.
+     * In "binary" format, records are written to the dump file (or else the
+     * binary dump file) in a compact encoding that can be converted back to
+     * text or JSON with {@link au.edu.uq.cmm.tomcat.dumper.DumpDecoder}.
+     * 
+     * @param format the output format.
+     */
+    public void setFormat(String format) {
+        dumper.setFormat(format);
+    }
+
+    public String getFormat() {
+        return dumper.getFormat();
+    }
+
+    /**
+     * This parameter selects "async" mode, in which each request's dump
+     * is queued for formatting and logging by a background thread.  This
+     * is disabled by default.
+     * 
+     * @param async true to enable async mode.
+     */
+    public void setAsync(boolean async) {
+        dumper.setAsync(async);
+    }
+
+    public boolean getAsync() {
+        return dumper.isAsync();
+    }
+
+    /**
+     * This parameter gives the capacity of the async mode queue.  The
+     * default is 1024 requests.
+     * 
+     * @param queueSize the queue capacity.
+     */
+    public void setQueueSize(int queueSize) {
+        dumper.setQueueSize(queueSize);
+    }
+
+    public int getQueueSize() {
+        return dumper.getQueueSize();
+    }
+
+    /**
+     * This parameter determines what happens when the async mode queue is
+     * full.  If true, the request thread waits for space in the queue.  If
+     * false (the default), the request's dump is dropped and counted.
+     * 
+     * @param blockWhenFull true to block rather than drop.
+     */
+    public void setBlockWhenFull(boolean blockWhenFull) {
+        dumper.setBlockWhenFull(blockWhenFull);
+    }
+
+    public boolean getBlockWhenFull() {
+        return dumper.isBlockWhenFull();
+    }
+
+    /**
+     * This parameter selects "failures only" mode, in which a request is
+     * only dumped if it threw an exception, if its response status is at
+     * least the failure status, or if it took longer than the slow 
+     * threshold.  This is disabled by default.
+     * 
+     * @param failuresOnly true to enable failures only mode.
+     */
+    public void setFailuresOnly(boolean failuresOnly) {
+        dumper.setFailuresOnly(failuresOnly);
+    }
+
+    public boolean getFailuresOnly() {
+        return dumper.isFailuresOnly();
+    }
+
+    /**
+     * This parameter gives the lowest response status that counts as a
+     * failure in "failures only" mode.  The default is 500.
+     * 
+     * @param failureStatus the failure status.
+     */
+    public void setFailureStatus(int failureStatus) {
+        dumper.setFailureStatus(failureStatus);
+    }
+
+    public int getFailureStatus() {
+        return dumper.getFailureStatus();
+    }
+
+    /**
+     * This parameter gives the time in milliseconds after which a request
+     * counts as a failure in "failures only" mode.  The default is zero,
+     * which means that slow requests are not dumped.
+     * 
+     * @param slowThreshold the threshold in milliseconds, or zero.
+     */
+    public void setSlowThreshold(long slowThreshold) {
+        dumper.setSlowThreshold(slowThreshold);
+    }
+
+    public long getSlowThreshold() {
+        return dumper.getSlowThreshold();
+    }
+
+    /**
+     * This parameter enables split timings, in which the request duration
+     * in the dump is broken down into the time spent in the rest of the
+     * chain and the time spent by the dumper itself.  This is disabled by
+     * default.
+     * 
+     * @param splitTimings true to enable split timings.
+     */
+    public void setSplitTimings(boolean splitTimings) {
+        dumper.setSplitTimings(splitTimings);
+    }
+
+    public boolean getSplitTimings() {
+        return dumper.isSplitTimings();
+    }
+
+    /**
+     * This parameter gives the probability that a request will be dumped,
+     * as a number between 0.0 and 1.0.  The default is 1.0; i.e. all 
+     * requests are dumped.
+     * 
+     * @param sampleRate the sample rate.
+     */
+    public void setSampleRate(String sampleRate) {
+        dumper.setSampleRate(Double.parseDouble(sampleRate));
+    }
+
+    public String getSampleRate() {
+        return Double.toString(dumper.getSampleRate());
+    }
+
+    /**
+     * This parameter gives the maximum number of requests per second
+     * that will be dumped.  The default is zero; i.e. no limit.
+     * 
+     * @param sampleLimit the rate limit, or zero.
+     */
+    public void setSampleLimit(int sampleLimit) {
+        dumper.setSampleLimit(sampleLimit);
+    }
+
+    public int getSampleLimit() {
+        return dumper.getSampleLimit();
+    }
+
+    /**
+     * This parameter gives sample rates for requests whose URIs start
+     * with particular prefixes, overriding the overall sample rate.  The
+     * rules are given as <code>prefix=rate,prefix=rate,...</code>, and the
+     * longest matching prefix wins.  The default is an empty string; i.e.
+     * no rules.
+     * 
+     * @param sampleRules the rules.
+     */
+    public void setSampleRules(String sampleRules) {
+        dumper.setSampleRules(sampleRules);
+    }
+
+    public String getSampleRules() {
+        return dumper.getSampleRules();
+    }
+
+    /**
+     * This parameter determines how request parameters are captured.  In 
+     * "all" mode (the default), all parameters are logged; this makes the
+     * container read and parse the body of a form POST before the 
+     * application sees it.  In "query" mode, only the parameters in the
+     * query string are logged, and the body is left alone.  In "none" mode,
+     * parameters are not logged.  (The RequestDumperFilter's "tee" mode is
+     * not supported by the valve.)
+     * 
+     * @param paramMode the parameter mode.
+     */
+    public void setParamMode(String paramMode) {
+        if (paramMode.equals(RequestDumper.PARAMS_TEE)) {
+            throw new IllegalArgumentException(
+                    "The valve does not support parameter mode '" + 
+                    paramMode + "'");
+        }
+        dumper.setParamMode(paramMode);
+    }
+
+    public String getParamMode() {
+        return dumper.getParamMode();
+    }
+
+    /**
+     * Return the number of dumps that have been written by the async 
+     * writer thread.
+     */
+    public long getWrittenRecords() {
+        return dumper.getWrittenRecords();
+    }
+
+    /**
+     * Return the number of dumps that have been dropped because the 
+     * async mode queue was full.
+     */
+    public long getDroppedRecords() {
+        return dumper.getDroppedRecords();
     }
 
 
@@ -174,98 +681,373 @@ public class RequestDumperValve
     public void invoke(Request request, Response response)
         throws IOException, ServletException {
 
-        Log log = container.getLogger();
-        
-        // Log pre-service information
-        log.info("REQUEST URI       =" + request.getRequestURI());
-        log.info("          authType=" + request.getAuthType());
-        log.info(" characterEncoding=" + request.getCharacterEncoding());
-        log.info("     contentLength=" + request.getContentLength());
-        log.info("       contentType=" + request.getContentType());
-        log.info("       contextPath=" + request.getContextPath());
-        Cookie cookies[] = request.getCookies();
-        if (cookies != null) {
-            for (int i = 0; i < cookies.length; i++)
-                log.info("            cookie=" + cookies[i].getName() + "=" +
-                    filter(cookies[i].getName(), cookies[i].getValue(),
-                            cookieFilter));
+        DumperConfig config = dumper.getConfig();
+        if (!config.isEnabled()) {
+            getNext().invoke(request, response);
+        } else {
+            invokeEnabled(config, request, response);
+        }
+    }
+
+    /**
+     * The body of {@link #invoke} for when the valve is enabled.  This is
+     * kept separate so that <code>invoke</code> stays small enough for the
+     * JIT compiler to inline, which makes the disabled case as cheap as a
+     * valve that just passes the request on.
+     */
+    private void invokeEnabled(DumperConfig config, Request request,
+            Response response) throws IOException, ServletException {
+        if (!config.isDump() || !config.isSampled(request)) {
+            if (dumper.isAggregating()) {
+                CommitTimer timer = CommitTimer.install(response);
+                long start = System.nanoTime();
+                int status = 500;
+                try {
+                    getNext().invoke(request, response);
+                    status = response.getStatus();
+                } finally {
+                    long end = System.nanoTime();
+                    long commitTime = timer == null ? 0 : timer.uninstall(end);
+                    aggregate(request, response, commitTime, status, start,
+                            end - start);
+                }
+            } else {
+                getNext().invoke(request, response);
+            }
+            return;
         }
-        Enumeration hnames = request.getHeaderNames();
-        while (hnames.hasMoreElements()) {
-            String hname = (String) hnames.nextElement();
-            Enumeration hvalues = request.getHeaders(hname);
-            while (hvalues.hasMoreElements()) {
-                String hvalue = (String) hvalues.nextElement();
-                log.info("            header=" + hname + "=" + 
-                        filter(hname, hvalue, requestHeaderFilter));
+
+        Log log = container.getLogger();
+        CommitTimer timer = null;
+        DumpRecord record = dumper.begin(config);
+        try {
+            // Capture pre-service information
+            record.addTimestamp("START TIME        ", 
+                    System.currentTimeMillis());
+            record.add("REQUEST URI       ", request.getRequestURI());
+            record.add("          authType", request.getAuthType());
+            record.add(" characterEncoding", request.getCharacterEncoding());
+            record.add("     contentLength", request.getContentLength());
+            record.add("       contentType", request.getContentType());
+            record.add("       contextPath", request.getContextPath());
+            Cookie cookies[] = request.getCookies();
+            if (cookies != null) {
+                for (int i = 0; i < cookies.length; i++)
+                    record.add("            cookie", cookies[i].getName(),
+                        filter(cookies[i].getName(), cookies[i].getValue(),
+                                config.getCookieMatcher()));
+            }
+            if (request.getCoyoteRequest() != null) {
+                addHeaders(record, 
+                        request.getCoyoteRequest().getMimeHeaders(),
+                        config.getRequestHeaderMatcher());
+            } else {
+                Enumeration hnames = request.getHeaderNames();
+                while (hnames.hasMoreElements()) {
+                    String hname = (String) hnames.nextElement();
+                    Enumeration hvalues = request.getHeaders(hname);
+                    while (hvalues.hasMoreElements()) {
+                        String hvalue = (String) hvalues.nextElement();
+                        record.add("            header", hname, 
+                                filter(hname, hvalue, 
+                                        config.getRequestHeaderMatcher()));
+                    }
+                }
             }
+            record.add("            locale", 
+                    RequestDumper.toString(request.getLocale()));
+            record.add("            method", request.getMethod());
+            String paramMode = config.getParamMode();
+            if (paramMode.equals(RequestDumper.PARAMS_ALL)) {
+                Enumeration pnames = request.getParameterNames();
+                while (pnames.hasMoreElements()) {
+                    String pname = (String) pnames.nextElement();
+                    String pvalues[] = request.getParameterValues(pname);
+                    int nameStart = record.textLength();
+                    record.appendText(pname);
+                    int valueStart = record.textLength();
+                    for (int i = 0; i < pvalues.length; i++) {
+                        if (i > 0)
+                            record.appendText(", ");
+                        record.appendText(filter(pname, pvalues[i], 
+                                config.getParamMatcher()));
+                    }
+                    record.addText("         parameter", nameStart, valueStart);
+                }
+            } else if (paramMode.equals(RequestDumper.PARAMS_QUERY)) {
+                addParameters(record, Parameters.parse(
+                        request.getQueryString(), 
+                        request.getConnector().getURIEncoding()));
+            }
+            record.add("          pathInfo", request.getPathInfo());
+            record.add("          protocol", request.getProtocol());
+            record.add("       queryString", request.getQueryString());
+            record.add("        remoteAddr", request.getRemoteAddr());
+            record.add("        remoteHost", request.getRemoteHost());
+            record.add("        remoteUser", request.getRemoteUser());
+            record.add("requestedSessionId", request.getRequestedSessionId());
+            record.add("            scheme", request.getScheme());
+            record.add("        serverName", request.getServerName());
+            record.add("        serverPort", request.getServerPort());
+            record.add("       servletPath", request.getServletPath());
+            record.add("          isSecure", request.isSecure());
+            record.raw("---------------------------------------------------------------");
+            dumper.preService(record, log);
+
+            // Perform the request
+            timer = CommitTimer.install(response);
+            record.chainStarted();
+            try {
+                getNext().invoke(request, response);
+            } catch (Throwable t) {
+                record.chainEnded();
+                long commitTime = addResponseTimes(record, timer);
+                aggregate(request, response, commitTime, 500, 
+                        record.getStartTime(), record.getChainTime());
+                record.raw("---------------------------------------------------------------");
+                record.add("         exception", t.toString());
+                dumper.addTimings(record);
+                record.addTimestamp("END TIME          ", 
+                        System.currentTimeMillis());
+                record.raw("===============================================================");
+                dumper.postService(record, log);
+                throw t;
+            }
+            record.chainEnded();
+            long commitTime = addResponseTimes(record, timer);
+            aggregate(request, response, commitTime, response.getStatus(), 
+                    record.getStartTime(), record.getChainTime());
+            if (!dumper.isWanted(record, response.getStatus())) {
+                return;
+            }
+
+            // Capture post-service information
+            record.raw("---------------------------------------------------------------");
+            record.add("          authType", request.getAuthType());
+            record.add("     contentLength", response.getContentLength());
+            record.add("       contentType", response.getContentType());
+            record.add(" responseBodyBytes", response.getContentCountLong());
+            Cookie rcookies[] = response.getCookies();
+            for (int i = 0; i < rcookies.length; i++) {
+                int nameStart = record.textLength();
+                record.appendText(rcookies[i].getName());
+                int valueStart = record.textLength();
+                record.appendText(filter(rcookies[i].getName(), 
+                        rcookies[i].getValue(), config.getCookieMatcher()));
+                record.appendText("; domain=");
+                record.appendText(rcookies[i].getDomain());
+                record.appendText("; path=");
+                record.appendText(rcookies[i].getPath());
+                record.addText("            cookie", nameStart, valueStart);
+            }
+            if (response.getCoyoteResponse() != null) {
+                addHeaders(record, 
+                        response.getCoyoteResponse().getMimeHeaders(),
+                        config.getResponseHeaderMatcher());
+            } else {
+                String rhnames[] = response.getHeaderNames();
+                for (int i = 0; i < rhnames.length; i++) {
+                    String rhvalues[] = response.getHeaderValues(rhnames[i]);
+                    for (int j = 0; j < rhvalues.length; j++)
+                        record.add("            header", rhnames[i], 
+                                filter(rhnames[i], rhvalues[j], 
+                                        config.getResponseHeaderMatcher()));
+                }
+            }
+            record.add("           message", response.getMessage());
+            record.add("        remoteUser", request.getRemoteUser());
+            record.add("            status", response.getStatus());
+            dumper.addTimings(record);
+            record.addTimestamp("END TIME          ", 
+                    System.currentTimeMillis());
+            record.raw("===============================================================");
+            dumper.postService(record, log);
+        } finally {
+            if (timer != null) {
+                timer.uninstall(0);
+            }
+            dumper.end(record);
         }
-        log.info("            locale=" + request.getLocale());
-        log.info("            method=" + request.getMethod());
-        Enumeration pnames = request.getParameterNames();
-        while (pnames.hasMoreElements()) {
-            String pname = (String) pnames.nextElement();
-            String pvalues[] = request.getParameterValues(pname);
-            StringBuffer result = new StringBuffer(pname);
-            result.append('=');
-            for (int i = 0; i < pvalues.length; i++) {
+
+    }
+    
+    /**
+     * Uninstall the commit timer, and record the commit time in the dump.
+     * For the valve, the time to first byte is the commit time, since the 
+     * headers are the first bytes sent.  If the response is still buffered
+     * when the chain returns, it is taken to be committed then (see 
+     * {@link CommitTimer}).
+     * 
+     * @return the commit time, or zero if it is not known.
+     */
+    private long addResponseTimes(DumpRecord record, CommitTimer timer) {
+        if (timer == null) {
+            return 0;
+        }
+        long commitTime = timer.uninstall(record.getChainEndTime());
+        record.setFirstByteTime(commitTime);
+        record.setCommitTime(commitTime);
+        return commitTime;
+    }
+    
+    private void aggregate(Request request, Response response, 
+            long commitTime, int status, long start, long nanos) {
+        if (dumper.isAggregating()) {
+            long ttfb = commitTime == 0 ? -1 : commitTime - start;
+            dumper.aggregate(request.getContextPath(), 
+                    request.getServletPath(), request.getMethod(), 
+                    status, nanos, ttfb, response.getContentCountLong(), 0);
+        }
+    }
+    
+    private void addParameters(DumpRecord record, 
+            Map<String, List<String>> params) {
+        for (Map.Entry<String, List<String>> entry : params.entrySet()) {
+            String pname = entry.getKey();
+            List<String> pvalues = entry.getValue();
+            int nameStart = record.textLength();
+            record.appendText(pname);
+            int valueStart = record.textLength();
+            for (int i = 0; i < pvalues.size(); i++) {
                 if (i > 0)
-                    result.append(", ");
-                result.append(filter(pname, pvalues[i], paramFilter));
+                    record.appendText(", ");
+                record.appendText(filter(pname, pvalues.get(i), 
+                        record.getConfig().getParamMatcher()));
             }
-            log.info("         parameter=" + result.toString());
+            record.addText("         parameter", nameStart, valueStart);
         }
-        log.info("          pathInfo=" + request.getPathInfo());
-        log.info("          protocol=" + request.getProtocol());
-        log.info("       queryString=" + request.getQueryString());
-        log.info("        remoteAddr=" + request.getRemoteAddr());
-        log.info("        remoteHost=" + request.getRemoteHost());
-        log.info("        remoteUser=" + request.getRemoteUser());
-        log.info("requestedSessionId=" + request.getRequestedSessionId());
-        log.info("            scheme=" + request.getScheme());
-        log.info("        serverName=" + request.getServerName());
-        log.info("        serverPort=" + request.getServerPort());
-        log.info("       servletPath=" + request.getServletPath());
-        log.info("          isSecure=" + request.isSecure());
-        log.info("---------------------------------------------------------------");
-
-        // Perform the request
-        getNext().invoke(request, response);
-
-        // Log post-service information
-        log.info("---------------------------------------------------------------");
-        log.info("          authType=" + request.getAuthType());
-        log.info("     contentLength=" + response.getContentLength());
-        log.info("       contentType=" + response.getContentType());
-        Cookie rcookies[] = response.getCookies();
-        for (int i = 0; i < rcookies.length; i++) {
-            log.info("            cookie=" + rcookies[i].getName() + "=" +
-                filter(rcookies[i].getName(), rcookies[i].getValue(), cookieFilter) + 
-                "; domain=" + rcookies[i].getDomain() + 
-                "; path=" + rcookies[i].getPath());
-        }
-        String rhnames[] = response.getHeaderNames();
-        for (int i = 0; i < rhnames.length; i++) {
-            String rhvalues[] = response.getHeaderValues(rhnames[i]);
-            for (int j = 0; j < rhvalues.length; j++)
-                log.info("            header=" + rhnames[i] + "=" + 
-                        filter(rhnames[i], rhvalues[j], responseHeaderFilter));
+    }
+    
+    /**
+     * Add entries for the headers in a coyote request or response.  The
+     * header names and values are copied from the connector's buffers
+     * into the record's text area, so that no strings are created.  (If
+     * there is a filter, the names have to be converted to strings to be
+     * matched, but MessageBytes caches them.)  The headers are dumped in 
+     * the order they appear, rather than grouped by name.
+     */
+    private static void addHeaders(DumpRecord record, MimeHeaders headers,
+            NameMatcher filter) {
+        for (int i = 0; i < headers.size(); i++) {
+            MessageBytes name = headers.getName(i);
+            if (filter != null && filter.matches(name.toString())) {
+                record.add("            header", name.toString(), "XXXXXX");
+                continue;
+            }
+            int nameStart = record.textLength();
+            appendText(record, name);
+            int valueStart = record.textLength();
+            appendText(record, headers.getValue(i));
+            record.addText("            header", nameStart, valueStart);
         }
-        log.info("           message=" + response.getMessage());
-        log.info("        remoteUser=" + request.getRemoteUser());
-        log.info("            status=" + response.getStatus());
-        log.info("===============================================================");
+    }
 
+    private static void appendText(DumpRecord record, MessageBytes mb) {
+        switch (mb.getType()) {
+        case MessageBytes.T_BYTES:
+            ByteChunk bc = mb.getByteChunk();
+            record.appendText(bc.getBuffer(), bc.getStart(), bc.getLength());
+            break;
+        case MessageBytes.T_CHARS:
+            CharChunk cc = mb.getCharChunk();
+            record.appendText(cc.getBuffer(), cc.getStart(), cc.getLength());
+            break;
+        case MessageBytes.T_STR:
+            record.appendText(mb.getString());
+            break;
+        default:
+            record.appendText("null");
+        }
     }
-    
-    private String filter(String subAttribute, String value, Pattern filter) {
-        if (filter == null || !filter.matcher(subAttribute).matches()) {
+
+    private String filter(String subAttribute, String value, NameMatcher filter) {
+        if (filter == null || !filter.matches(subAttribute)) {
             return value;
         } else {
             return "XXXXXX";
         }
     }
 
+    // ------------------------------------------------------ Lifecycle Methods
+
+
+    /**
+     * Add a lifecycle event listener to this component.
+     *
+     * @param listener The listener to add
+     */
+    public void addLifecycleListener(LifecycleListener listener) {
+        lifecycle.addLifecycleListener(listener);
+    }
+
+
+    /**
+     * Get the lifecycle listeners associated with this lifecycle. If this 
+     * Lifecycle has no listeners registered, a zero-length array is returned.
+     */
+    public LifecycleListener[] findLifecycleListeners() {
+        return lifecycle.findLifecycleListeners();
+    }
+
+
+    /**
+     * Remove a lifecycle event listener from this component.
+     *
+     * @param listener The listener to add
+     */
+    public void removeLifecycleListener(LifecycleListener listener) {
+        lifecycle.removeLifecycleListener(listener);
+    }
+
+
+    /**
+     * Prepare for the beginning of active use of this component.  This
+     * starts the async writer thread if async mode is enabled.
+     *
+     * @exception LifecycleException if this component detects a fatal error
+     *  that prevents this component from being used
+     */
+    public void start() throws LifecycleException {
+        if (started)
+            throw new LifecycleException
+                (sm.getString("requestFilterValve.alreadyStarted"));
+        lifecycle.fireLifecycleEvent(START_EVENT, null);
+        started = true;
+        dumper.start(container.getLogger(), dumperName(container));
+    }
+
+    /**
+     * Get a name for the dumper that is unique within the JVM, from the 
+     * names of the valve's container and its parents; e.g. 
+     * "Catalina/localhost/app" for a valve on a context.
+     */
+    private static String dumperName(Container container) {
+        String name = container.getName();
+        Container parent = container.getParent();
+        if (parent == null) {
+            return name;
+        }
+        // Context names are paths, and the root context's is empty.
+        return dumperName(parent) + (name.startsWith("/") ? "" : "/") + name;
+    }
+
+
+    /**
+     * Gracefully terminate the active use of this component.  This stops
+     * the async writer thread, after it has written any queued dumps.
+     *
+     * @exception LifecycleException if this component detects a fatal error
+     *  that needs to be reported
+     */
+    public void stop() throws LifecycleException {
+        if (!started)
+            throw new LifecycleException("Valve has not yet been started");
+        lifecycle.fireLifecycleEvent(STOP_EVENT, null);
+        started = false;
+        dumper.stop();
+    }
+
+
     /**
      * Return a String rendering of this object.
      */
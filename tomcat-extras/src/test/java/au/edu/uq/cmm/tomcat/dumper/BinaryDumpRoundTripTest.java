@@ -0,0 +1,335 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.edu.uq.cmm.tomcat.dumper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+
+/**
+ * Checks that records survive a trip through {@link BinaryDumpEncoder} and
+ * {@link BinaryDumpDecoder}: every entry kind, dictionary overflow, unpaired
+ * surrogates, and the ways that a dump file can legitimately end; i.e. with
+ * a frame truncated by a crash, or with the zero-filled tail of a pre-sized
+ * segment.
+ *
+ * @author Stephen Crawley
+ */
+public class BinaryDumpRoundTripTest {
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private final List<DumpRecord> records = new ArrayList<DumpRecord>();
+    private final List<Long> startNanos = new ArrayList<Long>();
+    private long baseMillis;
+    private long baseNanos;
+
+    @Test
+    public void testAllKinds() throws IOException {
+        BinaryDumpEncoder encoder = new BinaryDumpEncoder();
+        startSection(encoder);
+        DumpRecord record = newRecord("http-8080-exec-1", 12345);
+        record.addTimestamp("START TIME        ", baseMillis + 1);
+        record.add("        requestURI", "/app/servlet");
+        record.add("          authType", (String) null);
+        record.add("            header", "Accept", "text/html");
+        record.add("            header", "Accept", (String) null);
+        record.add("     contentLength", -1L);
+        record.add("     contentLength", Long.MAX_VALUE);
+        record.add("     contentLength", Long.MIN_VALUE);
+        record.add("          isSecure", true);
+        record.add("          isSecure", false);
+        addText(record, "            cookie", "JSESSIONID", "0123456789ABCDEF");
+        addText(record, "            cookie", "empty", "");
+        record.raw("------------------=------------------");
+        record.mark();
+        record.addDuration("         chainTime", 1234567);
+        record.addDuration("         chainTime", -1);
+        record.addTimestamp("END TIME          ", baseMillis - 1000);
+        record.addTimestamp("END TIME          ", 0);
+        write(encoder, record);
+
+        // Marks at either end, an empty record, and a null thread name
+        DumpRecord empty = newRecord(null, -5);
+        write(encoder, empty);
+        DumpRecord marked = newRecord("http-8080-exec-1", 0);
+        marked.mark();
+        marked.add("            header", "Accept", "*/*");
+        write(encoder, marked);
+        DumpRecord end = newRecord("http-8080-exec-2", 0);
+        end.add("            header", "Accept", "*/*");
+        end.mark();
+        write(encoder, end);
+
+        assertRoundTrip(out.toByteArray(), records);
+    }
+
+    @Test
+    public void testDictionaryOverflow() throws IOException {
+        BinaryDumpEncoder encoder = new BinaryDumpEncoder();
+        startSection(encoder);
+        int names = BinaryDumpEncoder.MAX_DICTIONARY + 5000;
+        int perRecord = 2000;
+        for (int i = 0; i < names; i += perRecord) {
+            DumpRecord record = newRecord("thread-" + (i % 3), i);
+            for (int j = i; j < Math.min(names, i + perRecord); j++) {
+                record.add("         parameter", "p" + j, "v" + j);
+            }
+            write(encoder, record);
+        }
+        // Names from before the overflow are references, and names after
+        // it are unshared literals.
+        DumpRecord record = newRecord("thread-0", 0);
+        for (int j = 0; j < 10; j++) {
+            record.add("         parameter", "p" + j, "again");
+            record.add("         parameter", "p" + (names - 1 - j), "again");
+            addText(record, "            cookie", "c" + (names - 1 - j), "x");
+        }
+        write(encoder, record);
+
+        // A new section starts a new dictionary.
+        startSection(encoder);
+        record = newRecord("thread-9", 0);
+        record.add("         parameter", "p" + (names - 1), "fresh");
+        record.add("         parameter", "p" + (names - 1), "ref");
+        write(encoder, record);
+
+        assertRoundTrip(out.toByteArray(), records);
+    }
+
+    @Test
+    public void testSurrogates() throws IOException {
+        String[] strings = {
+            "\ud83d\ude00",              // a pair
+            "a\ud83db",                  // an unpaired high surrogate
+            "a\ude00b",                  // an unpaired low surrogate
+            "\ude00\ud83d",              // a reversed pair
+            "\ud83d",                    // a high surrogate at the end
+            "x\ud83d\ud83d\ude00y",      // a high surrogate, then a pair
+        };
+        BinaryDumpEncoder encoder = new BinaryDumpEncoder();
+        startSection(encoder);
+        for (String str : strings) {
+            DumpRecord record = newRecord(str, 0);
+            record.add(str, str);
+            record.add("            header", str, str);
+            addText(record, "            cookie", str, str);
+            write(encoder, record);
+        }
+        // Unpaired surrogates are written as '?'.
+        List<DumpRecord> expected = new ArrayList<DumpRecord>();
+        for (int i = 0; i < strings.length; i++) {
+            String str = strings[i].replaceAll(
+                    "[\ud800-\udbff](?![\udc00-\udfff])|" +
+                    "(?<![\ud800-\udbff])[\udc00-\udfff]", "?");
+            DumpRecord record = newRecord(str, 0);
+            record.add(str, str);
+            record.add("            header", str, str);
+            addText(record, "            cookie", str, str);
+            expected.add(record);
+        }
+        assertEquals("a?b", expected.get(1).getThreadName());
+        assertEquals("\ud83d\ude00", expected.get(0).getThreadName());
+        assertRoundTrip(out.toByteArray(), expected);
+    }
+
+    @Test
+    public void testUnshared() throws IOException {
+        // Frames from encoders without a dictionary, in a section that
+        // was started by another encoder.
+        BinaryDumpEncoder sectionEncoder = new BinaryDumpEncoder();
+        startSection(sectionEncoder);
+        BinaryDumpEncoder[] encoders = {
+            new BinaryDumpEncoder(false), new BinaryDumpEncoder(false)};
+        for (BinaryDumpEncoder encoder : encoders) {
+            encoder.setBase(baseMillis, baseNanos);
+        }
+        for (int i = 0; i < 10; i++) {
+            DumpRecord record = newRecord("thread-" + (i & 1), i);
+            record.add("            header", "Accept", "*/*");
+            addText(record, "            cookie", "JSESSIONID", "id" + i);
+            write(encoders[i & 1], record);
+        }
+        assertRoundTrip(out.toByteArray(), records);
+    }
+
+    @Test
+    public void testTruncatedFrame() throws IOException {
+        BinaryDumpEncoder encoder = new BinaryDumpEncoder();
+        startSection(encoder);
+        for (int i = 0; i < 3; i++) {
+            DumpRecord record = newRecord("thread", i);
+            record.add("            header", "Accept", "*/*");
+            record.add("     contentLength", 1L << (20 * i));
+            write(encoder, record);
+        }
+        int complete = out.size();
+        DumpRecord last = newRecord("thread", 3);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            sb.append("long value ");
+        }
+        // A long value, so that the frame length takes two bytes.
+        last.add("        requestURI", sb.toString());
+        write(encoder, last);
+        byte[] bytes = out.toByteArray();
+        List<DumpRecord> expected = records.subList(0, 3);
+
+        assertRoundTrip(Arrays.copyOf(bytes, complete), expected);
+        for (int cut = complete + 1; cut < bytes.length; cut++) {
+            BinaryDumpDecoder decoder = new BinaryDumpDecoder(
+                    new ByteArrayInputStream(Arrays.copyOf(bytes, cut)));
+            DumpRecord record = new DumpRecord();
+            for (DumpRecord e : expected) {
+                assertTrue(decoder.next(record));
+                assertSame(e, record);
+            }
+            try {
+                decoder.next(record);
+                fail("Frame truncated at " + cut + " of " + bytes.length +
+                        " was not detected");
+            } catch (EOFException ex) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testZeroTail() throws IOException {
+        BinaryDumpEncoder encoder = new BinaryDumpEncoder();
+        startSection(encoder);
+        byte[] headerOnly = out.toByteArray();
+        for (int i = 0; i < 3; i++) {
+            DumpRecord record = newRecord("thread", i);
+            record.add("            header", "Accept", "*/*");
+            write(encoder, record);
+        }
+        byte[] bytes = out.toByteArray();
+        for (int tail : new int[] {1, 2, 4096}) {
+            assertRoundTrip(Arrays.copyOf(bytes, bytes.length + tail),
+                    records);
+            assertRoundTrip(Arrays.copyOf(headerOnly,
+                    headerOnly.length + tail), new ArrayList<DumpRecord>());
+        }
+        // A segment that was never written to at all.
+        assertRoundTrip(new byte[4096], new ArrayList<DumpRecord>());
+        assertRoundTrip(new byte[0], new ArrayList<DumpRecord>());
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotBinary() throws IOException {
+        BinaryDumpDecoder decoder = new BinaryDumpDecoder(
+                new ByteArrayInputStream("START TIME".getBytes("UTF-8")));
+        decoder.next(new DumpRecord());
+    }
+
+    private void startSection(BinaryDumpEncoder encoder) throws IOException {
+        encoder.startSection();
+        baseMillis = encoder.getBaseMillis();
+        baseNanos = encoder.getBaseNanos();
+        out.write(encoder.buffer(), encoder.offset(), encoder.length());
+    }
+
+    private DumpRecord newRecord(String threadName, long offsetNanos) {
+        DumpRecord record = new DumpRecord();
+        record.setThreadName(threadName);
+        record.setStartTime(baseNanos + offsetNanos);
+        return record;
+    }
+
+    private void write(BinaryDumpEncoder encoder, DumpRecord record) {
+        encoder.encode(record);
+        out.write(encoder.buffer(), encoder.offset(), encoder.length());
+        records.add(record);
+        startNanos.add(baseMillis * 1000000L + record.getStartTime() -
+                baseNanos);
+    }
+
+    private static void addText(DumpRecord record, String label, String name,
+            String value) {
+        int nameStart = record.textLength();
+        record.appendText(name);
+        int valueStart = record.textLength();
+        record.appendText(value);
+        record.addText(label, nameStart, valueStart);
+    }
+
+    private void assertRoundTrip(byte[] bytes, List<DumpRecord> expected)
+            throws IOException {
+        BinaryDumpDecoder decoder =
+                new BinaryDumpDecoder(new ByteArrayInputStream(bytes));
+        DumpRecord record = new DumpRecord();
+        for (int i = 0; i < expected.size(); i++) {
+            assertTrue(decoder.next(record));
+            assertSame(expected.get(i), record);
+            assertEquals(startNanos.get(i).longValue(),
+                    decoder.getStartNanos());
+        }
+        assertFalse(decoder.next(record));
+    }
+
+    private static void assertSame(DumpRecord expected, DumpRecord actual) {
+        assertEquals(expected.getThreadName(), actual.getThreadName());
+        assertEquals(expected.getMark(), actual.getMark());
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(describe(expected, i), describe(actual, i));
+        }
+    }
+
+    /**
+     * Describe an entry, resolving the text area references of a
+     * NAMED_TEXT entry.
+     */
+    private static String describe(DumpRecord record, int index) {
+        byte kind = record.kindAt(index);
+        StringBuilder sb = new StringBuilder();
+        sb.append(kind).append('|').append(record.labelAt(index)).append('|');
+        switch (kind) {
+        case DumpRecord.NAMED_TEXT:
+            long number = record.numberAt(index);
+            int nameStart = (int) (number >>> 32);
+            int valueStart = (int) number;
+            char[] text = record.text();
+            sb.append(text, nameStart, valueStart - nameStart).append('|');
+            sb.append(text, valueStart, record.textEndAt(index) - valueStart);
+            break;
+        case DumpRecord.VALUE:
+        case DumpRecord.NAMED_VALUE:
+            sb.append(record.nameAt(index)).append('|');
+            sb.append(record.valueAt(index));
+            break;
+        case DumpRecord.RAW:
+            break;
+        default:
+            sb.append(record.numberAt(index));
+            break;
+        }
+        return sb.toString();
+    }
+}
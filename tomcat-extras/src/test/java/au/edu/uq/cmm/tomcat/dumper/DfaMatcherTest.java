@@ -0,0 +1,167 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.edu.uq.cmm.tomcat.dumper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+
+/**
+ * Checks that {@link DfaMatcher}, and {@link NameMatcher} with either
+ * engine, agree with <code>java.util.regex</code> on a corpus of regexes
+ * and names, and that the DFA engine rejects the constructs that it
+ * doesn't support.  The names are all in the BMP, since the DFA engine
+ * matches UTF-16 code units rather than code points.
+ *
+ * @author Stephen Crawley
+ */
+public class DfaMatcherTest {
+
+    private static final String[] PATTERNS = {
+        // Literals and the shapes that NameMatcher splits out
+        "password", "pass(word)?", "(?:pass|pwd)word", "secret.*",
+        ".*token.*", ".*(key|secret)", "password|secret.*|.*token",
+        "^auth.*$", "^(x|y)$",
+        // Classes
+        "[a-z]+", "[^a-z]+", "[a-zA-Z_][a-zA-Z0-9_-]*", "[\\d]+",
+        "[\\s\\d]+", "[^\\s]+", "[\\-a]+", "[a-]+", "[\\]a]+", "[.]",
+        "[^\\n]*", "[\\u00e0-\\u00ff]+", "[^.]",
+        // Escapes and predefined classes
+        "\\d{3}-\\d{4}", "\\w+\\s\\w+", "\\W*", "\\S+", "\\D\\d",
+        "\\.\\*\\+\\?", "a\\|b", "\\(x\\)", "\\x41\\u0042", "\\t\\n",
+        "\\r?\\n", "\\e\\a\\f", "\\[\\]\\{\\}\\^\\$\\\\",
+        // Bounded and unbounded repeats
+        "x{2}", "x{2,}", "x{2,4}", "x{0,2}", "(ab){1,3}c", "a{0}b",
+        "a{0,1}b", "(a|b){3}", "[0-9]{1,3}(\\.[0-9]{1,3}){3}", "x{100}",
+        // Alternation and grouping
+        "a|b|c", "ab|", "|x", "(a|ab)(c|bcd)(d*)", "(a*)*b", "(a|b)*abb",
+        "((a|b)(c|d))+", "(?:x|)+y", "(|a)b",
+        // Reluctant quantifiers
+        "x*?y", "x+?", "x??y", "(ab)*?c", "x{1,2}?",
+        // Dot and line terminators
+        ".", "a.b", ".*", ".+", "a.*", ".*\\n.*", "a[\\s\\S]b",
+    };
+
+    private static final String[] NAMES = {
+        "", "password", "Password", "pass", "pwdword", "passwordx",
+        "secret", "secretKey", "my_token_id", "apikey", "api-key", "token",
+        "mytoken", "authorization", "auth", "x", "y", "xy", "xxy", "y y",
+        "abc", "ABC", "a", "b", "c", "ab", "aa", "xx", "xxx", "xxxx",
+        "xxxxx", "123-4567", "12-34567", "0", "12 34", "ababc", "abababc",
+        "ababababc", "c", "abcd", "abcdd", "aaab", "abb", "aababb", "acbd",
+        "ac", "aaa", "hello world", "hello\tworld", "hello  world", "_id",
+        "id-2", "-a-", "]a", ".", ".*+?", "a|b", "(x)", "AB", "\t\n", "\n",
+        "\r\n", "\u001b\u0007\f", "[]{}^$\\", "10.0.0.1", "256.1.1.1000",
+        "\u00e9t\u00e9", "caf\u00e9", "\u0100",
+        "a\nb", "a\rb", "a\u0085b", "a\u2028b", "a\u2029b", "a\u000bb",
+        "a\fb", "a b", "secret\n", "secret\nx", "secret\r", "x\u2028",
+        "password\n", "a\n", "\nb", "abab",
+    };
+
+    private static final String[] REJECTED = {
+        // Backreferences
+        "(a)\\1", "(?<n>a)\\k<n>",
+        // Lookaround
+        "(?=a)a", "(?!a)b", "(?<=a)b", "(?<!a)b",
+        // Possessive quantifiers
+        "a*+", "a++", "a?+", "a{2}+",
+        // Stacked quantifiers
+        "a{2}{3}", "a**", "a+*", "a*?*", "a?{2}",
+        // Embedded flags and other group constructs
+        "(?i)password", "(?s).*", "(?i:a)", "(?<n>a)", "(?>a)",
+        // Anchors and escapes that need more than a DFA
+        "a^b", "a$b", "\\bword\\b", "\\Aa\\z", "\\p{Alpha}", "\\Qa.b\\E",
+        "[a&&b]", "[[a]b]",
+        // Oversized automata
+        "a{101}", "a{1,101}", "((a{100}){100}){100}",
+        "(a|b)*a(a|b){12}",
+        // Syntax errors
+        "(", "a)", "[a", "*a", "a{2", "a{3,2}", "[b-a]", "\\",
+    };
+
+    @Test
+    public void testDfaMatcher() {
+        for (String regex : PATTERNS) {
+            Pattern pattern = Pattern.compile(regex);
+            DfaMatcher dfa = DfaMatcher.compile(regex);
+            for (String name : NAMES) {
+                assertEquals(describe(regex, name),
+                        pattern.matcher(name).matches(), dfa.matches(name));
+            }
+        }
+    }
+
+    @Test
+    public void testNameMatcher() {
+        for (String engine : new String[] {
+                NameMatcher.REGEX_ENGINE, NameMatcher.DFA_ENGINE}) {
+            for (String regex : PATTERNS) {
+                Pattern pattern = Pattern.compile(regex);
+                NameMatcher matcher = NameMatcher.compile(regex, engine);
+                // Twice, to check the memoised decisions too.
+                for (int i = 0; i < 2; i++) {
+                    for (String name : NAMES) {
+                        assertEquals(engine + ": " + describe(regex, name),
+                                pattern.matcher(name).matches(),
+                                matcher.matches(name));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRejected() {
+        for (String regex : REJECTED) {
+            try {
+                DfaMatcher.compile(regex);
+                fail("DfaMatcher accepted " + regex);
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+            try {
+                NameMatcher.compile(regex, NameMatcher.DFA_ENGINE);
+                fail("NameMatcher accepted " + regex);
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownEngine() {
+        NameMatcher.compile("password", "glob");
+    }
+
+    private static String describe(String regex, String name) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("regex ").append(regex).append(", name \"");
+        for (int i = 0; i < name.length(); i++) {
+            char ch = name.charAt(i);
+            if (ch < ' ' || ch > '~') {
+                sb.append(String.format("\\u%04x", (int) ch));
+            } else {
+                sb.append(ch);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
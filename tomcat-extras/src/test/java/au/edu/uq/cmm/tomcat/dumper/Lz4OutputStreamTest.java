@@ -0,0 +1,299 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.edu.uq.cmm.tomcat.dumper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+
+/**
+ * Checks that {@link Lz4OutputStream} writes valid LZ4 frames.  Its output
+ * is decompressed by a reference decoder that follows the LZ4 frame and
+ * block format specifications, including the end of block restrictions
+ * that other decoders rely on.  The inputs are random, repetitive and
+ * short (at most MF_LIMIT bytes, which are never compressed), with sizes
+ * either side of the block boundaries, and they are written in chunks of
+ * various sizes.
+ *
+ * @author Stephen Crawley
+ */
+public class Lz4OutputStreamTest {
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+
+    /**
+     * The header for version 01, independent blocks, no checksums and a
+     * 64 KiB maximum block size; i.e. the LZ4 library's default frame
+     * preferences with a 64 KiB block size.
+     */
+    private static final byte[] HEADER = {
+        0x04, 0x22, 0x4d, 0x18, 0x60, 0x40, (byte) 0x82};
+
+    private static final int[] SIZES = {
+        0, 1, MF_LIMIT, MF_LIMIT + 1, 1000, BLOCK_SIZE - 1, BLOCK_SIZE,
+        BLOCK_SIZE + 1, BLOCK_SIZE + MF_LIMIT, 2 * BLOCK_SIZE,
+        3 * BLOCK_SIZE + 7};
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void testShort() throws IOException {
+        for (int size = 0; size <= MF_LIMIT + 1; size++) {
+            byte[] zeros = new byte[size];
+            assertRoundTrip(zeros);
+            assertRoundTrip(randomBytes(size));
+        }
+    }
+
+    @Test
+    public void testRandom() throws IOException {
+        for (int size : SIZES) {
+            assertRoundTrip(randomBytes(size));
+        }
+    }
+
+    @Test
+    public void testRepetitive() throws IOException {
+        for (int size : SIZES) {
+            assertRoundTrip(new byte[size]);
+            assertRoundTrip(repeat("GET /app/servlet HTTP/1.1\r\n", size));
+            assertRoundTrip(repeat("ab", size));
+            assertRoundTrip(dumpLike(size));
+        }
+    }
+
+    @Test
+    public void testMixed() throws IOException {
+        // Incompressible and compressible runs, so that some blocks are
+        // stored and some are compressed, and matches end near the limits.
+        for (int size : SIZES) {
+            byte[] data = new byte[size];
+            int pos = 0;
+            while (pos < size) {
+                int run = Math.min(size - pos, 1 + random.nextInt(300));
+                if (random.nextBoolean()) {
+                    byte[] r = randomBytes(run);
+                    System.arraycopy(r, 0, data, pos, run);
+                } else {
+                    Arrays.fill(data, pos, pos + run, (byte) random.nextInt());
+                }
+                pos += run;
+            }
+            assertRoundTrip(data);
+        }
+    }
+
+    @Test
+    public void testLongMatchAndLiteralLengths() throws IOException {
+        // Literal and match lengths that need several extra length bytes.
+        byte[] data = new byte[BLOCK_SIZE];
+        byte[] r = randomBytes(20000);
+        System.arraycopy(r, 0, data, 0, r.length);
+        System.arraycopy(r, 0, data, 30000, r.length);
+        assertRoundTrip(data);
+    }
+
+    @Test
+    public void testCompresses() throws IOException {
+        byte[] data = dumpLike(4 * BLOCK_SIZE);
+        byte[] compressed = compress(data, data.length);
+        assertTrue("compressed to " + compressed.length + " bytes",
+                compressed.length < data.length / 4);
+        byte[] incompressible = randomBytes(4 * BLOCK_SIZE);
+        compressed = compress(incompressible, incompressible.length);
+        // Stored blocks cost a 4 byte block header each.
+        assertEquals(HEADER.length + 4 * (4 + BLOCK_SIZE) + 4,
+                compressed.length);
+    }
+
+    @Test
+    public void testHeaderChecksum() {
+        assertEquals(HEADER[6], (byte) (Lz4OutputStream.xxh32(
+                HEADER, 4, 2) >>> 8));
+    }
+
+    private void assertRoundTrip(byte[] data) throws IOException {
+        int[] chunks = {data.length, 1, 7, 4096, BLOCK_SIZE + 3,
+                1 + random.nextInt(BLOCK_SIZE)};
+        for (int chunk : chunks) {
+            byte[] compressed = compress(data, chunk);
+            assertArrayEquals("size " + data.length + ", chunk " + chunk,
+                    data, decompress(compressed));
+        }
+    }
+
+    /**
+     * Compress some data, writing it in chunks of a given size.  A chunk
+     * size of one uses the single byte write method.
+     */
+    private static byte[] compress(byte[] data, int chunk) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        Lz4OutputStream out = new Lz4OutputStream(bos);
+        for (int pos = 0; pos < data.length; pos += chunk) {
+            if (chunk == 1) {
+                out.write(data[pos]);
+            } else {
+                out.write(data, pos, Math.min(chunk, data.length - pos));
+            }
+        }
+        out.close();
+        out.close();
+        return bos.toByteArray();
+    }
+
+    private byte[] randomBytes(int size) {
+        byte[] res = new byte[size];
+        random.nextBytes(res);
+        return res;
+    }
+
+    private static byte[] repeat(String str, int size) {
+        byte[] res = new byte[size];
+        for (int i = 0; i < size; i++) {
+            res[i] = (byte) str.charAt(i % str.length());
+        }
+        return res;
+    }
+
+    /**
+     * Text that looks like a request dump: lots of repetition at varying
+     * distances, with some variation.
+     */
+    private byte[] dumpLike(int size) {
+        StringBuilder sb = new StringBuilder();
+        int n = 0;
+        while (sb.length() < size) {
+            sb.append("START TIME        =2012-05-01 10:11:12.").append(n % 1000);
+            sb.append("\n        requestURI=/app/servlet/").append(n * 7919);
+            sb.append("\n            header=Accept=text/html\n");
+            sb.append("            header=User-Agent=Mozilla/5.0 (")
+                    .append(random.nextInt(10)).append(")\n");
+            n++;
+        }
+        return repeat(sb.substring(0, size), size);
+    }
+
+    // ------------------------------------------------------ Reference decoder
+
+    /**
+     * Decompress an LZ4 frame, checking that it conforms to the format.
+     */
+    private static byte[] decompress(byte[] frame) throws IOException {
+        assertArrayEquals("frame header",
+                HEADER, Arrays.copyOf(frame, HEADER.length));
+        ByteArrayOutputStream res = new ByteArrayOutputStream();
+        int pos = HEADER.length;
+        while (true) {
+            int size = getInt(frame, pos);
+            pos += 4;
+            if (size == 0) {
+                break;
+            }
+            int length = size & 0x7fffffff;
+            assertTrue("block length " + length,
+                    length > 0 && length <= BLOCK_SIZE);
+            assertTrue("truncated block", pos + length <= frame.length);
+            if ((size & 0x80000000) != 0) {
+                res.write(frame, pos, length);
+            } else {
+                byte[] block = decompressBlock(frame, pos, length);
+                res.write(block, 0, block.length);
+            }
+            pos += length;
+        }
+        assertEquals("bytes after the end mark", frame.length, pos);
+        return res.toByteArray();
+    }
+
+    /**
+     * Decompress an independent block.
+     */
+    private static byte[] decompressBlock(byte[] src, int start, int length) {
+        byte[] dst = new byte[BLOCK_SIZE];
+        int s = start;
+        int end = start + length;
+        int d = 0;
+        int lastMatchStart = -1;
+        int lastLiterals = 0;
+        while (true) {
+            int token = src[s++] & 0xff;
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int b;
+                do {
+                    b = src[s++] & 0xff;
+                    literals += b;
+                } while (b == 255);
+            }
+            lastLiterals = d;
+            assertTrue("literals overrun the block",
+                    s + literals <= end && d + literals <= BLOCK_SIZE);
+            System.arraycopy(src, s, dst, d, literals);
+            s += literals;
+            d += literals;
+            if (s == end) {
+                // The last sequence has no match.
+                assertEquals("match length in the last sequence",
+                        0, token & 0x0f);
+                break;
+            }
+            int offset = (src[s] & 0xff) | (src[s + 1] & 0xff) << 8;
+            s += 2;
+            assertTrue("offset " + offset + " at " + d,
+                    offset > 0 && offset <= d);
+            int matchLength = token & 0x0f;
+            if (matchLength == 15) {
+                int b;
+                do {
+                    b = src[s++] & 0xff;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+            assertTrue("match overruns the block",
+                    d + matchLength <= BLOCK_SIZE);
+            lastMatchStart = d;
+            for (int i = 0; i < matchLength; i++) {
+                dst[d] = dst[d - offset];
+                d++;
+            }
+        }
+        // The end of block restrictions, from the block format spec.
+        if (lastMatchStart >= 0) {
+            assertTrue("last match starts " + (d - lastMatchStart) +
+                    " bytes from the end", d - lastMatchStart >= MF_LIMIT);
+            assertTrue("last literals", d - lastLiterals >= LAST_LITERALS);
+        }
+        return Arrays.copyOf(dst, d);
+    }
+
+    private static int getInt(byte[] buf, int pos) {
+        return (buf[pos] & 0xff) | (buf[pos + 1] & 0xff) << 8 |
+                (buf[pos + 2] & 0xff) << 16 | (buf[pos + 3] & 0xff) << 24;
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.edu.uq.cmm.tomcat.dumper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Checks that capturing and writing a dump allocates nothing on the request
+ * thread once the per-thread buffers have warmed up.  The dumps go to a
+ * memory-mapped dump file (or to the async writer's queue), since logging
+ * a message through the Log API needs a string.  The measurement is done
+ * with {@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes}, so
+ * the test is skipped on JVMs that don't support it.
+ *
+ * @author Stephen Crawley
+ */
+public class RequestDumperAllocationTest {
+
+    private static final int WARMUP = 50000;
+    private static final int REQUESTS = 20000;
+
+    private static final String SEPARATOR =
+            "------------------=--------------------------------------------";
+    private static final char[] COOKIE = "JSESSIONID=0123456789ABCDEF".toCharArray();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Log log = LogFactory.getLog(RequestDumperAllocationTest.class);
+    private RequestDumper dumper;
+
+    @After
+    public void stop() {
+        if (dumper != null) {
+            dumper.stop();
+        }
+    }
+
+    @Test
+    public void testText() throws Exception {
+        assertNoAllocation(RequestDumper.FORMAT_TEXT, false, false);
+    }
+
+    @Test
+    public void testJson() throws Exception {
+        assertNoAllocation(RequestDumper.FORMAT_JSON, false, false);
+    }
+
+    @Test
+    public void testBinary() throws Exception {
+        assertNoAllocation(RequestDumper.FORMAT_BINARY, false, false);
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        assertNoAllocation(RequestDumper.FORMAT_JSON, true, false);
+    }
+
+    @Test
+    public void testNested() throws Exception {
+        assertNoAllocation(RequestDumper.FORMAT_TEXT, false, true);
+    }
+
+    private void assertNoAllocation(String format, boolean async,
+            boolean nested) throws Exception {
+        com.sun.management.ThreadMXBean bean = threadBean();
+        dumper = new RequestDumper(true);
+        dumper.setFormat(format);
+        dumper.setAsync(async);
+        dumper.setDumpFile(new File(folder.getRoot(), "dump").getPath());
+        dumper.start(log, "allocation-test");
+        for (int i = 0; i < WARMUP; i++) {
+            request(nested);
+        }
+        long threadId = Thread.currentThread().getId();
+        long before = bean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < REQUESTS; i++) {
+            request(nested);
+        }
+        long allocated = bean.getThreadAllocatedBytes(threadId) - before;
+        // Allow for the timestamp formatter's once a minute refresh.
+        assertEquals("bytes allocated per request (" + allocated +
+                " in total)", 0, allocated / REQUESTS);
+    }
+
+    private void request(boolean nested) {
+        DumpRecord record = dumper.begin(dumper.getConfig());
+        try {
+            capture(record);
+            if (nested) {
+                DumpRecord inner = dumper.begin(dumper.getConfig());
+                try {
+                    capture(inner);
+                } finally {
+                    dumper.end(inner);
+                }
+            }
+        } finally {
+            dumper.end(record);
+        }
+    }
+
+    private void capture(DumpRecord record) {
+        record.addTimestamp("START TIME        ", System.currentTimeMillis());
+        record.add("        requestURI", "/app/servlet/path");
+        record.add("          authType", (String) null);
+        record.add("     contentLength", -1);
+        record.add("            header", "Host", "localhost:8080");
+        record.add("            header", "Accept", "text/html");
+        record.add("            header", "Accept", "*/*");
+        int nameStart = record.textLength();
+        record.appendText(COOKIE, 0, 10);
+        int valueStart = record.textLength();
+        record.appendText(COOKIE, 11, COOKIE.length - 11);
+        record.addText("            cookie", nameStart, valueStart);
+        record.add("          isSecure", false);
+        record.raw(SEPARATOR);
+        dumper.preService(record, log);
+        record.chainStarted();
+        record.chainEnded();
+        if (dumper.isWanted(record, 200)) {
+            record.raw(SEPARATOR);
+            record.add("       contentType", "text/html;charset=UTF-8");
+            record.add(" responseBodyBytes", 12345);
+            record.add("            status", 200);
+            dumper.addTimings(record);
+            record.addTimestamp("END TIME          ",
+                    System.currentTimeMillis());
+            dumper.postService(record, log);
+        }
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof
+                com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean bean =
+                (com.sun.management.ThreadMXBean)
+                ManagementFactory.getThreadMXBean();
+        assumeTrue(bean.isThreadAllocatedMemorySupported());
+        if (!bean.isThreadAllocatedMemoryEnabled()) {
+            bean.setThreadAllocatedMemoryEnabled(true);
+        }
+        return bean;
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.edu.uq.cmm.tomcat.filters;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.junit.After;
+import org.junit.Test;
+
+
+/**
+ * Checks that the filter allocates no more than its request and response
+ * wrappers (and the response wrapper's tee stream or writer) per request
+ * in aggregate-only mode (i.e. with dumping turned off).  The wrappers are
+ * not pooled, since a pooled wrapper would keep the last request and
+ * response reachable, and would be reused under an application that kept
+ * a reference to it; so the test allows {@link #MAX_BYTES_PER_REQUEST}
+ * bytes for them.  The request and response are stubs that implement just
+ * the methods that the filter and the test's servlet use, without
+ * allocating; anything else fails.
+ *
+ * @author Stephen Crawley
+ */
+public class RequestDumperFilterAllocationTest {
+
+    private static final int WARMUP = 50000;
+    private static final int REQUESTS = 20000;
+
+    /**
+     * The wrappers take about 200 bytes per request with compressed oops.
+     */
+    private static final long MAX_BYTES_PER_REQUEST = 256;
+
+    private static final byte[] BODY = "Hello, world!\n".getBytes();
+
+    private final RequestDumperFilter filter = new RequestDumperFilter();
+    private final StubRequest request = new StubRequest();
+    private final StubResponse response = new StubResponse();
+
+    /**
+     * Alternately writes the body through the output stream and through
+     * the writer, as servlets do.
+     */
+    private final FilterChain chain = new FilterChain() {
+        private int count;
+
+        @Override
+        public void doFilter(ServletRequest req, ServletResponse res)
+                throws IOException {
+            if ((count++ & 1) == 0) {
+                res.getOutputStream().write(BODY);
+            } else {
+                PrintWriter pw = res.getWriter();
+                pw.print("Hello, world!");
+                pw.println();
+                pw.flush();
+            }
+        }
+    };
+
+    @After
+    public void destroy() {
+        filter.destroy();
+    }
+
+    @Test
+    public void testAggregateOnly() throws Exception {
+        com.sun.management.ThreadMXBean bean = threadBean();
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(RequestDumperFilter.DUMP_PARAMETER, "false");
+        params.put(RequestDumperFilter.AGGREGATE_PARAMETER, "true");
+        filter.init(new StubFilterConfig(params));
+        for (int i = 0; i < WARMUP; i++) {
+            filter.doFilter(request, response, chain);
+        }
+        long threadId = Thread.currentThread().getId();
+        long before = bean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < REQUESTS; i++) {
+            filter.doFilter(request, response, chain);
+        }
+        long allocated = bean.getThreadAllocatedBytes(threadId) - before;
+        assertTrue("bytes allocated per request (" + allocated +
+                " in total)", allocated / REQUESTS <= MAX_BYTES_PER_REQUEST);
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof
+                com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean bean =
+                (com.sun.management.ThreadMXBean)
+                ManagementFactory.getThreadMXBean();
+        assumeTrue(bean.isThreadAllocatedMemorySupported());
+        if (!bean.isThreadAllocatedMemoryEnabled()) {
+            bean.setThreadAllocatedMemoryEnabled(true);
+        }
+        return bean;
+    }
+
+    /**
+     * Make an implementation of an interface that fails if it is used.
+     */
+    private static <T> T unsupported(Class<T> iface) {
+        return iface.cast(Proxy.newProxyInstance(
+                iface.getClassLoader(), new Class<?>[] {iface},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        throw new UnsupportedOperationException(
+                                method.getName());
+                    }
+                }));
+    }
+
+    /**
+     * Make a servlet context that just has the context path that the
+     * filter needs to start.
+     */
+    private static ServletContext servletContext() {
+        return (ServletContext) Proxy.newProxyInstance(
+                ServletContext.class.getClassLoader(),
+                new Class<?>[] {ServletContext.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        if (method.getName().equals("getContextPath")) {
+                            return "/app";
+                        }
+                        throw new UnsupportedOperationException(
+                                method.getName());
+                    }
+                });
+    }
+
+    private static final class StubRequest extends HttpServletRequestWrapper {
+
+        StubRequest() {
+            super(unsupported(HttpServletRequest.class));
+        }
+
+        @Override
+        public String getContextPath() {
+            return "/app";
+        }
+
+        @Override
+        public String getServletPath() {
+            return "/servlet";
+        }
+
+        @Override
+        public String getMethod() {
+            return "GET";
+        }
+
+        @Override
+        public boolean isAsyncStarted() {
+            return false;
+        }
+    }
+
+    private static final class StubResponse extends HttpServletResponseWrapper {
+
+        private final ServletOutputStream out = new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] buf, int offset, int length) {
+            }
+        };
+
+        private final PrintWriter writer = new PrintWriter(new Writer() {
+            @Override
+            public void write(char[] buf, int offset, int length) {
+            }
+
+            @Override
+            public void write(String str, int offset, int length) {
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+
+        StubResponse() {
+            super(unsupported(HttpServletResponse.class));
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            return out;
+        }
+
+        @Override
+        public PrintWriter getWriter() {
+            return writer;
+        }
+
+        @Override
+        public String getCharacterEncoding() {
+            return "UTF-8";
+        }
+
+        @Override
+        public boolean isCommitted() {
+            return false;
+        }
+
+        @Override
+        public int getStatus() {
+            return 200;
+        }
+    }
+
+    private static final class StubFilterConfig implements FilterConfig {
+        private final Map<String, String> params;
+
+        StubFilterConfig(Map<String, String> params) {
+            this.params = params;
+        }
+
+        @Override
+        public String getFilterName() {
+            return "allocation-test";
+        }
+
+        @Override
+        public ServletContext getServletContext() {
+            return servletContext();
+        }
+
+        @Override
+        public String getInitParameter(String name) {
+            return params.get(name);
+        }
+
+        @Override
+        public Enumeration<String> getInitParameterNames() {
+            return Collections.enumeration(params.keySet());
+        }
+    }
+}